@@ -0,0 +1,159 @@
+/*
+ * AllocationBenchmark.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.lipermi.call.BufferPool;
+import net.sf.lipermi.call.MessageCodec;
+import net.sf.lipermi.call.RemoteCall;
+import net.sf.lipermi.call.RemoteInstance;
+import net.sf.lipermi.call.RemoteReturn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Bytes allocated per call, meant to be run with <code>-prof gc</code> and read from
+ * <code>gc.alloc.rate.norm</code>: by the codec alone (encoding and decoding a call and its
+ * return), and by whole calls over a loopback connection with either transport. The
+ * profiler counts all threads of the VM, so the call figures include client and server.
+ * 
+ * @author rb
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AllocationBenchmark {
+
+    /**
+     * A call to <code>add(int,int)</code> and its return, as sent over the wire.
+     */
+    @State(Scope.Thread)
+    public static class Messages {
+        RemoteCall call;
+
+        RemoteReturn ret;
+
+        /** */
+        @Setup
+        public void setup() {
+            final RemoteInstance instance = new RemoteInstance(1, IBenchService.class.getName());
+            this.call = new RemoteCall(instance, null, 3, new Object[] { Integer.valueOf(17), Integer.valueOf(25) }, 1);
+            this.ret = new RemoteReturn(false, Integer.valueOf(42), 1);
+        }
+    }
+
+    /**
+     * A client connected to a server.
+     */
+    @State(Scope.Benchmark)
+    public static class Connection {
+        /** Transport to use */
+        @Param({ "socket", "nio" })
+        public String transport;
+
+        Loopback loopback;
+
+        IBenchService service;
+
+        final byte[] data = new byte[4096];
+
+        int i;
+
+        /**
+         * @throws Exception
+         */
+        @Setup
+        public void setup() throws Exception {
+            this.loopback = new Loopback(this.transport, "default"); //$NON-NLS-1$
+            this.service = this.loopback.getService();
+        }
+
+        /**
+         * @throws IOException
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            this.loopback.close();
+        }
+    }
+
+    /**
+     * @param messages
+     * @return .
+     * @throws Exception
+     */
+    @Benchmark
+    public Object codec(final Messages messages) throws Exception {
+        // Connections release frames once they are written
+        ByteBuffer frame = MessageCodec.encodeFrame(messages.call);
+        frame.position(frame.position() + 4);
+        MessageCodec.decodePayload(frame);
+        BufferPool.getDefault().release(frame);
+
+        frame = MessageCodec.encodeFrame(messages.ret);
+        frame.position(frame.position() + 4);
+        final Object result = MessageCodec.decodePayload(frame);
+        BufferPool.getDefault().release(frame);
+        return result;
+    }
+
+    /**
+     * @param connection
+     * @return .
+     */
+    @Benchmark
+    public int add(final Connection connection) {
+        return connection.service.add(connection.i++, 1);
+    }
+
+    /**
+     * @param connection
+     * @return .
+     */
+    @Benchmark
+    public byte[] echo(final Connection connection) {
+        return connection.service.echo(connection.data);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * BenchService.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.bench;
+
+/**
+ * Does as little as possible, so benchmarks measure the call.
+ * 
+ * @author rb
+ */
+public class BenchService implements IBenchService {
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.bench.IBenchService#add(int, int)
+     */
+    public int add(final int a, final int b) {
+        return a + b;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.bench.IBenchService#echo(byte[])
+     */
+    public byte[] echo(final byte[] data) {
+        return data;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.bench.IBenchService#callBack(net.sf.lipermi.bench.IBenchCallback, int)
+     */
+    public int callBack(final IBenchCallback callback, final int value) {
+        return callback.ping(value);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * CompressionBenchmark.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.bench;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import net.sf.lipermi.call.BufferPool;
+import net.sf.lipermi.call.IRemoteMessage;
+import net.sf.lipermi.call.RemoteCall;
+import net.sf.lipermi.call.RemoteInstance;
+import net.sf.lipermi.call.RemoteReturn;
+import net.sf.lipermi.handler.filter.CompressionFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sends representative messages through a {@link CompressionFilter} in every mode,
+ * measuring the time to encode and decode a frame. The bytes on the wire per message,
+ * and how long they take to transfer at the given bandwidth, are printed once a trial
+ * ends; the transfer time plus the measured time is the latency the filter adds.
+ * 
+ * @author rb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    /** Message to send */
+    @Param({ "rectangles", "logLines", "samples", "randomBytes", "smallCall" })
+    public String payload;
+
+    /** Compression mode */
+    @Param({ "NONE", "FAST", "DEFLATE", "GZIP", "ADAPTIVE" })
+    public String mode;
+
+    /** Bandwidth of the network in Mbit/s, used by the adaptive mode */
+    @Param({ "1000" })
+    public long mbits;
+
+    private CompressionFilter filter;
+
+    private IRemoteMessage message;
+
+    /**
+     * Creates the filter and the message.
+     */
+    @Setup
+    public void setup() {
+        this.filter = new CompressionFilter(CompressionFilter.Mode.valueOf(this.mode), CompressionFilter.DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION, bandwidth());
+        this.message = createMessage(this.payload);
+    }
+
+    /**
+     * Prints what went over the wire.
+     */
+    @TearDown
+    @SuppressWarnings("boxing")
+    public void tearDown() {
+        final long bytes = this.filter.getCompressedBytes() / Math.max(this.filter.getMessages(), 1);
+        System.out.printf("%n%s/%s: %d bytes/msg, ratio %.3f, %.1f us on the wire%n", this.payload, this.mode, bytes, this.filter.getCompressionRatio(), bytes * 1e6 / bandwidth()); //$NON-NLS-1$
+    }
+
+    /**
+     * @return .
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    @Benchmark
+    public IRemoteMessage roundTrip() throws IOException, ClassNotFoundException {
+        final ByteBuffer frame = this.filter.encodeFrame(this.message);
+        try {
+            frame.position(frame.position() + 4);
+            return this.filter.decodeFrame(frame);
+        } finally {
+            BufferPool.getDefault().release(frame);
+        }
+    }
+
+    /** Bandwidth in bytes/s */
+    private long bandwidth() {
+        return this.mbits * 1000 * 1000 / 8;
+    }
+
+    @SuppressWarnings("boxing")
+    private static IRemoteMessage createMessage(final String name) {
+        final Random random = new Random(0);
+
+        if ("rectangles".equals(name)) { //$NON-NLS-1$
+            final List<Rectangle> rectangles = new ArrayList<Rectangle>();
+            for (int i = 0; i < 200; i++) {
+                rectangles.add(new Rectangle(random.nextInt(1920), random.nextInt(1080), 16 + random.nextInt(64), 16 + random.nextInt(64)));
+            }
+            return new RemoteReturn(false, rectangles, 1);
+        }
+
+        if ("logLines".equals(name)) { //$NON-NLS-1$
+            final List<String> lines = new ArrayList<String>();
+            for (int i = 0; i < 500; i++) {
+                lines.add(String.format("2011-06-%02d 12:%02d:%02d INFO  [worker-%d] processed request %d in %d ms", 1 + i % 28, i % 60, (i * 7) % 60, i % 8, 100000 + i, random.nextInt(500))); //$NON-NLS-1$
+            }
+            return new RemoteReturn(false, lines, 2);
+        }
+
+        if ("samples".equals(name)) { //$NON-NLS-1$
+            final int[] samples = new int[4096];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = 1000 + (int) (100 * Math.sin(i / 50.0)) + random.nextInt(4);
+            }
+            return new RemoteReturn(false, samples, 3);
+        }
+
+        if ("randomBytes".equals(name)) { //$NON-NLS-1$
+            final byte[] noise = new byte[16 * 1024];
+            random.nextBytes(noise);
+            return new RemoteCall(new RemoteInstance(0, "test.Service"), null, 1, new Object[] { noise }, 4); //$NON-NLS-1$
+        }
+
+        if ("smallCall".equals(name)) { //$NON-NLS-1$
+            return new RemoteCall(new RemoteInstance(0, "test.Service"), null, 2, new Object[] { 42 }, 5); //$NON-NLS-1$
+        }
+
+        throw new IllegalArgumentException("Unknown payload " + name); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * DispatchBenchmark.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.lipermi.call.MessageCodec;
+import net.sf.lipermi.call.RemoteCall;
+import net.sf.lipermi.call.RemoteInstance;
+import net.sf.lipermi.call.RemoteReturn;
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.ConnectionHandler;
+import net.sf.lipermi.handler.filter.DefaultFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link CallHandler#delegateCall(RemoteCall)} alone, without any network or
+ * serialization: looking up the implementation and method and invoking it.
+ * 
+ * @author rb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    /**
+     * A connection without a socket that drops everything it should send.
+     */
+    static class NullConnectionHandler extends ConnectionHandler {
+
+        NullConnectionHandler(final CallHandler callHandler) {
+            super(null, callHandler, new DefaultFilter());
+        }
+
+        /**
+         * Handles a call as if it had been received.
+         * 
+         * @param remoteCall
+         * @throws Exception
+         */
+        void receive(final RemoteCall remoteCall) throws Exception {
+            final ByteBuffer frame = MessageCodec.encodeFrame(remoteCall);
+            frame.position(frame.position() + 4);
+            frameReceived(frame);
+        }
+
+        /* (non-Javadoc)
+         * @see net.sf.lipermi.handler.ConnectionHandler#close()
+         */
+        @Override
+        public void close() throws IOException {
+            disconnected();
+        }
+
+        /* (non-Javadoc)
+         * @see net.sf.lipermi.handler.ConnectionHandler#writeFrames(java.util.Queue)
+         */
+        @Override
+        protected boolean writeFrames(final Queue<ByteBuffer> frames) throws IOException {
+            frames.clear();
+            return true;
+        }
+    }
+
+    private CallHandler callHandler;
+
+    private NullConnectionHandler connection;
+
+    private RemoteCall remoteCall;
+
+    /**
+     * @throws Exception
+     */
+    @Setup
+    public void setup() throws Exception {
+        this.callHandler = new CallHandler();
+        this.callHandler.registerGlobal(IBenchService.class, new BenchService());
+        this.connection = new NullConnectionHandler(this.callHandler);
+
+        // The first call tells the connection which method index 0 stands for
+        final RemoteInstance instance = new RemoteInstance(0, IBenchService.class.getName());
+        final String method = IBenchService.class.getMethod("add", int.class, int.class).toString(); //$NON-NLS-1$
+        this.connection.receive(new RemoteCall(instance, CallHandler.generateCallName(method.substring(15)), 0, new Object[] { Integer.valueOf(1), Integer.valueOf(2) }, 1));
+
+        this.remoteCall = new RemoteCall(instance, null, 0, new Object[] { Integer.valueOf(1), Integer.valueOf(2) }, 2);
+        this.remoteCall.handler = this.connection;
+    }
+
+    /**
+     * @throws IOException
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        this.connection.close();
+    }
+
+    /**
+     * @return .
+     * @throws Exception
+     */
+    @Benchmark
+    public RemoteReturn delegateCall() throws Exception {
+        return this.callHandler.delegateCall(this.remoteCall);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * InvokerBenchmark.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.lipermi.handler.MethodInvoker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares dispatching small-argument interface methods with {@link Method#invoke(Object, Object...)}
+ * (as the call handler used to) and with a {@link MethodInvoker}. Each method is measured on
+ * its own, and all of them through a single call site (<code>mixed</code>), as in the call
+ * handler where one dispatch site sees every exported method.
+ * 
+ * @author rb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvokerBenchmark {
+
+    /** What we call */
+    public interface Target {
+        /** */
+        public void noop();
+
+        /**
+         * @param a
+         * @param b
+         * @return .
+         */
+        public int add(int a, int b);
+
+        /**
+         * @param s
+         * @return .
+         */
+        public String echo(String s);
+    }
+
+    /** Implementation, not public like most exported objects */
+    static class TargetImpl implements Target {
+        public void noop() {
+            //
+        }
+
+        public int add(final int a, final int b) {
+            return a + b;
+        }
+
+        public String echo(final String s) {
+            return s;
+        }
+    }
+
+    /** Method to call, <code>mixed</code> cycles through all of them */
+    @Param({ "noop", "add", "echo", "mixed" })
+    public String method;
+
+    private final Object target = new TargetImpl();
+
+    private Method[] methods;
+
+    private MethodInvoker[] invokers;
+
+    private Object[][] arguments;
+
+    private int i;
+
+    /**
+     * @throws Exception
+     */
+    @Setup
+    @SuppressWarnings("boxing")
+    public void setup() throws Exception {
+        final Method[] all = { Target.class.getMethod("noop"), //$NON-NLS-1$
+                              Target.class.getMethod("add", int.class, int.class), //$NON-NLS-1$
+                              Target.class.getMethod("echo", String.class) }; //$NON-NLS-1$
+        final Object[][] args = { null, { 1, 2 }, { "hello" } }; //$NON-NLS-1$
+
+        int from = 0;
+        int to = all.length;
+        if (!"mixed".equals(this.method)) { //$NON-NLS-1$
+            while (!all[from].getName().equals(this.method))
+                from++;
+            to = from + 1;
+        }
+
+        this.methods = new Method[to - from];
+        this.invokers = new MethodInvoker[to - from];
+        this.arguments = new Object[to - from][];
+
+        for (int m = 0; m < this.methods.length; m++) {
+            this.methods[m] = all[from + m];
+            this.methods[m].setAccessible(true);
+            this.invokers[m] = MethodInvoker.create(all[from + m]);
+            this.arguments[m] = args[from + m];
+        }
+    }
+
+    private int next() {
+        final int m = this.i;
+        this.i = m + 1 == this.methods.length ? 0 : m + 1;
+        return m;
+    }
+
+    /**
+     * @return .
+     * @throws Exception
+     */
+    @Benchmark
+    public Object methodInvoke() throws Exception {
+        final int m = next();
+        return this.methods[m].invoke(this.target, this.arguments[m]);
+    }
+
+    /**
+     * @return .
+     * @throws Throwable
+     */
+    @Benchmark
+    public Object methodInvoker() throws Throwable {
+        final int m = next();
+        return this.invokers[m].invoke(this.target, this.arguments[m]);
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * LoadGenerator.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.CallProxy;
+import net.sf.lipermi.metrics.LatencyHistogram;
+import net.sf.lipermi.net.ClientPool;
+import net.sf.lipermi.net.Server;
+
+/**
+ * Drives a mix of calls through client proxies against a real {@link Server}, either
+ * in open loop at a target rate or in closed loop at a fixed concurrency, and reports
+ * latency percentiles, error counts and throughput per interval and in total.
+ * 
+ * In open loop every call has an intended start time (start + n / rate) and its latency
+ * is measured from there, so calls held up behind slow ones count as slow as well
+ * instead of silently lowering the rate (coordinated omission). In closed loop each
+ * thread starts its next call once the last one returned and latency is measured from
+ * the actual start.
+ * 
+ * Usage (see {@link #usage()} for all options):
+ * 
+ * <pre>
+ * java -cp benchmarks.jar net.sf.lipermi.bench.LoadGenerator --rate 5000 --duration 60
+ * java -cp benchmarks.jar net.sf.lipermi.bench.LoadGenerator --serve 4455
+ * java -cp benchmarks.jar net.sf.lipermi.bench.LoadGenerator --connect host:4455 --concurrency 32 --csv
+ * </pre>
+ * 
+ * The exit code is 1 if the share of failed calls exceeds <code>--max-error-rate</code>,
+ * so soak tests can be scripted.
+ * 
+ * @author rb
+ */
+public class LoadGenerator {
+
+    /** Calls the generator can issue */
+    enum Operation {
+        /** {@link IBenchService#add(int, int)} */
+        ADD,
+
+        /** {@link IBenchService#echo(byte[])} with the configured payload */
+        ECHO,
+
+        /** {@link IBenchService#callBack(IBenchCallback, int)} */
+        CALLBACK
+    }
+
+    /** What was measured during one interval */
+    static class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    /** The options */
+    static class Options {
+        String connect;
+
+        int serve = -1;
+
+        String transport = "socket"; //$NON-NLS-1$
+
+        String filter = "default"; //$NON-NLS-1$
+
+        int connections = 1;
+
+        double rate;
+
+        int concurrency = 16;
+
+        int threads = 64;
+
+        long duration = 30;
+
+        long warmup = 5;
+
+        long interval = 1;
+
+        long timeout = 10000;
+
+        int payload = 1024;
+
+        String mix = "add:8,echo:1,callback:1"; //$NON-NLS-1$
+
+        boolean csv;
+
+        double maxErrorRate = 1;
+    }
+
+    private final Options options;
+
+    private final IBenchService service;
+
+    private final IBenchCallback callback;
+
+    private final Operation[] mix;
+
+    private final byte[] payload;
+
+    /** Stats of the current interval, replaced by the reporter */
+    private final AtomicReference<Stats> current = new AtomicReference<Stats>(new Stats());
+
+    /** Stats of the whole measurement */
+    private final Stats total = new Stats();
+
+    /** Next ticket in open loop */
+    private final AtomicLong next = new AtomicLong();
+
+    /** When recording starts and everything ends (System.nanoTime()) */
+    private volatile long measureStart;
+
+    private volatile long end;
+
+    /**
+     * @param options
+     * @param service
+     * @param callback
+     */
+    LoadGenerator(final Options options, final IBenchService service,
+                  final IBenchCallback callback) {
+        this.options = options;
+        this.service = service;
+        this.callback = callback;
+        this.mix = parseMix(options.mix);
+        this.payload = new byte[options.payload];
+        new Random(42).nextBytes(this.payload);
+    }
+
+    /**
+     * Parses a mix like <code>add:8,echo:1</code> into a table with one entry per
+     * weight, so picking a random entry follows the weights.
+     * 
+     * @param mix
+     * @return .
+     */
+    static Operation[] parseMix(final String mix) {
+        final List<Operation> table = new ArrayList<Operation>();
+        for (final String entry : mix.split(",")) { //$NON-NLS-1$
+            final String[] parts = entry.trim().split(":"); //$NON-NLS-1$
+            final Operation operation = Operation.valueOf(parts[0].trim().toUpperCase());
+            final int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                table.add(operation);
+            }
+        }
+        if (table.isEmpty()) throw new IllegalArgumentException("Empty mix " + mix); //$NON-NLS-1$
+
+        return table.toArray(new Operation[table.size()]);
+    }
+
+    /**
+     * Issues one call.
+     * 
+     * @param operation
+     * @param value
+     * @return True if the call returned what it should have.
+     */
+    boolean call(final Operation operation, final int value) {
+        switch (operation) {
+        case ADD:
+            return this.service.add(value, 1) == value + 1;
+        case ECHO:
+            return this.service.echo(this.payload).length == this.payload.length;
+        case CALLBACK:
+            return this.service.callBack(this.callback, value) == value;
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Issues one call and records it, unless it ended before the measurement started.
+     * 
+     * @param random
+     * @param start When the call was supposed to start.
+     */
+    void callAndRecord(final Random random, final long start) {
+        final Operation operation = this.mix[random.nextInt(this.mix.length)];
+
+        boolean ok;
+        try {
+            ok = call(operation, random.nextInt(1000000));
+        } catch (final RuntimeException e) {
+            ok = false;
+        }
+
+        final long now = System.nanoTime();
+        if (now < this.measureStart) return;
+
+        final Stats stats = this.current.get();
+        if (ok) {
+            stats.latency.record(now - start);
+            this.total.latency.record(now - start);
+        } else {
+            stats.errors.incrementAndGet();
+            this.total.errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Takes tickets and waits for their intended start time before calling.
+     */
+    class OpenLoopWorker implements Runnable {
+        public void run() {
+            final Random random = new Random();
+            final double interval = 1e9 / LoadGenerator.this.options.rate;
+            final long start = LoadGenerator.this.measureStart - TimeUnit.SECONDS.toNanos(LoadGenerator.this.options.warmup);
+
+            while (true) {
+                // Calls that are not issued by the end are reported as missed
+                final long intended = start + (long) (LoadGenerator.this.next.getAndIncrement() * interval);
+                if (intended >= LoadGenerator.this.end || System.nanoTime() >= LoadGenerator.this.end) return;
+
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                callAndRecord(random, intended);
+            }
+        }
+    }
+
+    /**
+     * Calls back to back.
+     */
+    class ClosedLoopWorker implements Runnable {
+        public void run() {
+            final Random random = new Random();
+            while (System.nanoTime() < LoadGenerator.this.end) {
+                callAndRecord(random, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Runs the load and prints a line per interval and a summary.
+     * 
+     * @return The share of failed calls.
+     * @throws InterruptedException
+     */
+    double run() throws InterruptedException {
+        final Options o = this.options;
+        final boolean open = o.rate > 0;
+
+        final long now = System.nanoTime();
+        this.measureStart = now + TimeUnit.SECONDS.toNanos(o.warmup);
+        this.end = this.measureStart + TimeUnit.SECONDS.toNanos(o.duration);
+
+        final int count = open ? o.threads : o.concurrency;
+        final Thread[] workers = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            workers[i] = new Thread(open ? new OpenLoopWorker() : new ClosedLoopWorker(), "LoadGenerator-" + i); //$NON-NLS-1$
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        if (open) info("Open loop at %.0f calls/s with %d threads", Double.valueOf(o.rate), Integer.valueOf(count)); //$NON-NLS-1$
+        else info("Closed loop with %d threads", Integer.valueOf(count)); //$NON-NLS-1$
+        info("Warming up for %d s, measuring for %d s", Long.valueOf(o.warmup), Long.valueOf(o.duration)); //$NON-NLS-1$
+
+        sleepUntil(this.measureStart);
+        this.current.set(new Stats());
+        printHeader();
+
+        // Report an interval at a time, the last one may be shorter
+        long intervalStart = this.measureStart;
+        while (intervalStart < this.end) {
+            final long intervalEnd = Math.min(intervalStart + TimeUnit.SECONDS.toNanos(o.interval), this.end);
+            sleepUntil(intervalEnd);
+            final Stats stats = this.current.getAndSet(new Stats());
+            print(String.format("%.1f", Double.valueOf((intervalEnd - this.measureStart) / 1e9)), stats, intervalEnd - intervalStart); //$NON-NLS-1$
+            intervalStart = intervalEnd;
+        }
+
+        // Calls still running were started in time, give them until their timeout
+        for (final Thread worker : workers) {
+            worker.join(o.timeout + 1000);
+        }
+
+        print("total", this.total, Math.max(System.nanoTime(), this.end) - this.measureStart); //$NON-NLS-1$
+
+        final long calls = this.total.latency.getCount() + this.total.errors.get();
+        if (open) {
+            final long missed = (long) (o.rate * o.duration) - calls;
+            if (missed > 0) info("%d calls of the schedule were not issued in time, the server can't keep up", Long.valueOf(missed)); //$NON-NLS-1$
+        }
+
+        return calls == 0 ? 0 : (double) this.total.errors.get() / calls;
+    }
+
+    private void printHeader() {
+        if (this.options.csv) System.out.println("time,calls_per_s,errors,p50_us,p90_us,p99_us,p999_us,max_us"); //$NON-NLS-1$
+        else System.out.printf("%8s %12s %8s %10s %10s %10s %10s %10s%n", "time", "calls/s", "errors", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$
+    }
+
+    private void print(final String time, final Stats stats, final long nanos) {
+        final LatencyHistogram h = stats.latency;
+        final double rate = (h.getCount() + stats.errors.get()) / (nanos / 1e9);
+        final String format = this.options.csv ? "%s,%.1f,%d,%d,%d,%d,%d,%d%n" : "%8s %12.1f %8d %10d %10d %10d %10d %10d%n"; //$NON-NLS-1$ //$NON-NLS-2$
+
+        System.out.printf(format, time, Double.valueOf(rate), Long.valueOf(stats.errors.get()), //
+                          Long.valueOf(h.getPercentile(50, TimeUnit.MICROSECONDS)), //
+                          Long.valueOf(h.getPercentile(90, TimeUnit.MICROSECONDS)), //
+                          Long.valueOf(h.getPercentile(99, TimeUnit.MICROSECONDS)), //
+                          Long.valueOf(h.getPercentile(99.9, TimeUnit.MICROSECONDS)), //
+                          Long.valueOf(h.getMax(TimeUnit.MICROSECONDS)));
+    }
+
+    /**
+     * Informational output goes to stderr, so stdout stays parsable.
+     */
+    static void info(final String format, final Object... args) {
+        System.err.println(String.format(format, args));
+    }
+
+    private static void sleepUntil(final long time) throws InterruptedException {
+        long wait;
+        while ((wait = time - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    static void usage() {
+        System.err.println("Usage: LoadGenerator [options]"); //$NON-NLS-1$
+        System.err.println("  --connect host:port    Load a running server instead of a local one"); //$NON-NLS-1$
+        System.err.println("  --serve port           Only run a server to be loaded from elsewhere"); //$NON-NLS-1$
+        System.err.println("  --transport socket|nio (socket)"); //$NON-NLS-1$
+        System.err.println("  --filter default|gzip|compression (default)"); //$NON-NLS-1$
+        System.err.println("  --connections n        Connections to spread the calls over (1)"); //$NON-NLS-1$
+        System.err.println("  --rate n               Open loop at n calls/s"); //$NON-NLS-1$
+        System.err.println("  --threads n            Threads issuing calls in open loop (64)"); //$NON-NLS-1$
+        System.err.println("  --concurrency n        Closed loop with n threads, used without --rate (16)"); //$NON-NLS-1$
+        System.err.println("  --mix op:w,...         Weighted mix of add, echo and callback (add:8,echo:1,callback:1)"); //$NON-NLS-1$
+        System.err.println("  --payload bytes        Size of echoed arrays (1024)"); //$NON-NLS-1$
+        System.err.println("  --warmup s             Seconds of load before measuring (5)"); //$NON-NLS-1$
+        System.err.println("  --duration s           Seconds to measure (30)"); //$NON-NLS-1$
+        System.err.println("  --interval s           Seconds per reported interval (1)"); //$NON-NLS-1$
+        System.err.println("  --timeout ms           Call timeout, timed out calls count as errors (10000)"); //$NON-NLS-1$
+        System.err.println("  --csv                  Print intervals as CSV"); //$NON-NLS-1$
+        System.err.println("  --max-error-rate r     Exit with 1 if more than this share of calls fails (1)"); //$NON-NLS-1$
+    }
+
+    static Options parse(final String[] args) {
+        final Options o = new Options();
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if ("--csv".equals(arg)) { //$NON-NLS-1$
+                o.csv = true;
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + arg); //$NON-NLS-1$
+
+            final String value = args[++i];
+            if ("--connect".equals(arg)) o.connect = value; //$NON-NLS-1$
+            else if ("--serve".equals(arg)) o.serve = Integer.parseInt(value); //$NON-NLS-1$
+            else if ("--transport".equals(arg)) o.transport = value; //$NON-NLS-1$
+            else if ("--filter".equals(arg)) o.filter = value; //$NON-NLS-1$
+            else if ("--connections".equals(arg)) o.connections = Integer.parseInt(value); //$NON-NLS-1$
+            else if ("--rate".equals(arg)) o.rate = Double.parseDouble(value); //$NON-NLS-1$
+            else if ("--threads".equals(arg)) o.threads = Integer.parseInt(value); //$NON-NLS-1$
+            else if ("--concurrency".equals(arg)) o.concurrency = Integer.parseInt(value); //$NON-NLS-1$
+            else if ("--mix".equals(arg)) o.mix = value; //$NON-NLS-1$
+            else if ("--payload".equals(arg)) o.payload = Integer.parseInt(value); //$NON-NLS-1$
+            else if ("--warmup".equals(arg)) o.warmup = Long.parseLong(value); //$NON-NLS-1$
+            else if ("--duration".equals(arg)) o.duration = Long.parseLong(value); //$NON-NLS-1$
+            else if ("--interval".equals(arg)) o.interval = Long.parseLong(value); //$NON-NLS-1$
+            else if ("--timeout".equals(arg)) o.timeout = Long.parseLong(value); //$NON-NLS-1$
+            else if ("--max-error-rate".equals(arg)) o.maxErrorRate = Double.parseDouble(value); //$NON-NLS-1$
+            else throw new IllegalArgumentException("Unknown option " + arg); //$NON-NLS-1$
+        }
+        return o;
+    }
+
+    static Server serve(final Options o, final int port) throws Exception {
+        final CallHandler callHandler = new CallHandler();
+        callHandler.registerGlobal(IBenchService.class, new BenchService());
+
+        final Server server = new Server(Loopback.transport(o.transport));
+        server.bind(port, callHandler, Loopback.filter(o.filter));
+        return server;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(final String[] args) throws Exception {
+        final Options o;
+        try {
+            o = parse(args);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+            return;
+        }
+
+        if (o.serve >= 0) {
+            serve(o, o.serve);
+            info("Serving on port %d", Integer.valueOf(o.serve)); //$NON-NLS-1$
+            Thread.sleep(Long.MAX_VALUE);
+        }
+
+        // Without a server to connect to we start one on loopback
+        String host = "127.0.0.1"; //$NON-NLS-1$
+        int port = 4455 + (int) (Math.random() * 1000);
+        Server server = null;
+        if (o.connect != null) {
+            host = o.connect.substring(0, o.connect.lastIndexOf(':'));
+            port = Integer.parseInt(o.connect.substring(o.connect.lastIndexOf(':') + 1));
+        } else {
+            server = serve(o, port);
+        }
+
+        final IBenchCallback callback = new IBenchCallback() {
+            public int ping(final int value) {
+                return value;
+            }
+        };
+
+        final CallHandler callHandler = new CallHandler();
+        callHandler.exportObject(IBenchCallback.class, callback);
+        final ClientPool pool = new ClientPool(host, port, callHandler, Loopback.filter(o.filter), Loopback.transport(o.transport), o.connections);
+        final IBenchService service = pool.getGlobal(IBenchService.class);
+        CallProxy.setTimeout(service, o.timeout, TimeUnit.MILLISECONDS);
+
+        final double errorRate = new LoadGenerator(o, service, callback).run();
+
+        pool.close();
+        if (server != null) server.close();
+
+        info("%.4f%% of the calls failed", Double.valueOf(errorRate * 100)); //$NON-NLS-1$
+        System.exit(errorRate > o.maxErrorRate ? 1 : 0);
+    }
+}
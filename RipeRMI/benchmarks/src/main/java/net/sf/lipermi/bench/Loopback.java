@@ -0,0 +1,135 @@
+/*
+ * Loopback.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import net.sf.lipermi.exception.LipeRMIException;
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.filter.CompressionFilter;
+import net.sf.lipermi.handler.filter.DefaultFilter;
+import net.sf.lipermi.handler.filter.GZipFilter;
+import net.sf.lipermi.handler.filter.IProtocolFilter;
+import net.sf.lipermi.net.Client;
+import net.sf.lipermi.net.Server;
+import net.sf.lipermi.net.SocketTransport;
+import net.sf.lipermi.net.Transport;
+import net.sf.lipermi.net.nio.NioTransport;
+
+/**
+ * A server exporting a {@link BenchService} and a client connected to it over loopback.
+ * 
+ * @author rb
+ */
+public class Loopback implements Closeable {
+
+    /**
+     * @param name <code>socket</code> or <code>nio</code>.
+     * @return .
+     */
+    public static Transport transport(final String name) {
+        if ("socket".equals(name)) return new SocketTransport(); //$NON-NLS-1$
+        if ("nio".equals(name)) return new NioTransport(); //$NON-NLS-1$
+
+        throw new IllegalArgumentException("Unknown transport " + name); //$NON-NLS-1$
+    }
+
+    /**
+     * @param name <code>default</code>, <code>gzip</code> or <code>compression</code>.
+     * @return .
+     */
+    public static IProtocolFilter filter(final String name) {
+        if ("default".equals(name)) return new DefaultFilter(); //$NON-NLS-1$
+        if ("gzip".equals(name)) return new GZipFilter(); //$NON-NLS-1$
+        if ("compression".equals(name)) return new CompressionFilter(); //$NON-NLS-1$
+
+        throw new IllegalArgumentException("Unknown filter " + name); //$NON-NLS-1$
+    }
+
+    private final Server server;
+
+    private final Client client;
+
+    private final CallHandler clientHandler;
+
+    private final IBenchService service;
+
+    /**
+     * @param transport See {@link #transport(String)}.
+     * @param filter See {@link #filter(String)}.
+     * @throws IOException
+     * @throws LipeRMIException
+     */
+    public Loopback(final String transport, final String filter) throws IOException,
+                                                                    LipeRMIException {
+        final int port = freePort();
+
+        final CallHandler serverHandler = new CallHandler();
+        serverHandler.registerGlobal(IBenchService.class, new BenchService());
+
+        this.server = new Server(transport(transport));
+        this.server.bind(port, serverHandler, filter(filter));
+
+        this.clientHandler = new CallHandler();
+        this.client = new Client("127.0.0.1", port, this.clientHandler, filter(filter), transport(transport)); //$NON-NLS-1$
+        this.service = this.client.getGlobal(IBenchService.class);
+    }
+
+    /**
+     * @return The client's proxy of the service.
+     */
+    public IBenchService getService() {
+        return this.service;
+    }
+
+    /**
+     * @return The call handler of the client, to export callbacks with.
+     */
+    public CallHandler getClientHandler() {
+        return this.clientHandler;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        this.client.close();
+        this.server.close();
+    }
+
+    private static int freePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * BufferInput.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.call;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads from a buffer, advancing its position.
+ * 
+ * @author rb
+ */
+class BufferInput extends InputStream implements DataInput {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+    /** Recently read ASCII strings (class names, mostly), shared by all inputs */
+    private static final String[] STRINGS = new String[256];
+
+    /** Largest scratch array kept between buffers */
+    private static final int MAX_RETAINED_SCRATCH = 4096;
+
+    private ByteBuffer buffer;
+
+    /** For decoding strings out of direct buffers */
+    private byte[] scratch;
+
+    /**
+     * @param buffer
+     */
+    BufferInput(final ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reads another buffer from now on.
+     * 
+     * @param buffer Null once done reading, so the input can be reused.
+     */
+    void reset(final ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer == null && this.scratch != null && this.scratch.length > MAX_RETAINED_SCRATCH) this.scratch = null;
+    }
+
+    /**
+     * @return True while reading a buffer.
+     */
+    boolean isReading() {
+        return this.buffer != null;
+    }
+
+    /**
+     * Reads a string of the given number of UTF-8 bytes. Short ASCII strings read
+     * before are returned without decoding them again.
+     * 
+     * @param length
+     * @return .
+     * @throws IOException
+     */
+    String readString(final int length) throws IOException {
+        require(length);
+
+        final ByteBuffer buffer = this.buffer;
+        final int start = buffer.position();
+
+        // Look the string up
+        int hash = 0;
+        boolean ascii = length <= 128;
+        for (int i = 0; ascii && i < length; i++) {
+            final byte b = buffer.get(start + i);
+            hash = 31 * hash + b;
+            ascii = b >= 0;
+        }
+
+        final int slot = hash & (STRINGS.length - 1);
+        if (ascii) {
+            final String known = STRINGS[slot];
+            if (known != null && matches(known, start, length)) {
+                buffer.position(start + length);
+                return known;
+            }
+        }
+
+        final String string;
+        if (buffer.hasArray()) {
+            string = new String(buffer.array(), buffer.arrayOffset() + start, length, UTF8);
+        } else {
+            if (this.scratch == null || this.scratch.length < length) this.scratch = new byte[Math.max(length, 64)];
+            buffer.duplicate().get(this.scratch, 0, length);
+            string = new String(this.scratch, 0, length, UTF8);
+        }
+
+        // Strings are immutable, so racing on the table is fine
+        if (ascii) STRINGS[slot] = string;
+
+        buffer.position(start + length);
+        return string;
+    }
+
+    /**
+     * Limits reading to the next bytes.
+     * 
+     * @param length
+     * @return The previous limit, to pass to {@link #widen(int)}.
+     * @throws EOFException
+     */
+    int narrow(final int length) throws EOFException {
+        require(length);
+
+        final int limit = this.buffer.limit();
+        this.buffer.limit(this.buffer.position() + length);
+        return limit;
+    }
+
+    /**
+     * Skips whatever is left of the bytes reading was limited to and removes the limit.
+     * 
+     * @param limit As returned by {@link #narrow(int)}.
+     */
+    void widen(final int limit) {
+        this.buffer.position(this.buffer.limit());
+        this.buffer.limit(limit);
+    }
+
+    private boolean matches(final String string, final int start, final int length) {
+        if (string.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (this.buffer.get(start + i) != string.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void require(final int count) throws EOFException {
+        if (this.buffer.remaining() < count) throw new EOFException();
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() {
+        if (!this.buffer.hasRemaining()) return -1;
+        return this.buffer.get() & 0xFF;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+        if (len == 0) return 0;
+
+        final int count = Math.min(len, this.buffer.remaining());
+        if (count == 0) return -1;
+
+        this.buffer.get(b, off, count);
+        return count;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#available()
+     */
+    @Override
+    public int available() {
+        return this.buffer.remaining();
+    }
+
+    public void readFully(final byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(final byte[] b, final int off, final int len) throws IOException {
+        require(len);
+        this.buffer.get(b, off, len);
+    }
+
+    public int skipBytes(final int n) {
+        final int count = Math.max(0, Math.min(n, this.buffer.remaining()));
+        this.buffer.position(this.buffer.position() + count);
+        return count;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        require(1);
+        return this.buffer.get();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    public short readShort() throws IOException {
+        require(2);
+        return this.buffer.getShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    public char readChar() throws IOException {
+        require(2);
+        return this.buffer.getChar();
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        return this.buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        require(8);
+        return this.buffer.getLong();
+    }
+
+    public float readFloat() throws IOException {
+        require(4);
+        return this.buffer.getFloat();
+    }
+
+    public double readDouble() throws IOException {
+        require(8);
+        return this.buffer.getDouble();
+    }
+
+    @Deprecated
+    public String readLine() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
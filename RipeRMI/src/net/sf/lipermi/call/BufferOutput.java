@@ -0,0 +1,235 @@
+/*
+ * BufferOutput.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.call;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes into a buffer taken from a {@link BufferPool}, swapping it for a larger one
+ * when it is full.
+ * 
+ * @author rb
+ */
+class BufferOutput extends OutputStream implements DataOutput {
+
+    private final BufferPool pool;
+
+    private ByteBuffer buffer;
+
+    /**
+     * @param pool
+     * @param capacity Initial capacity.
+     */
+    BufferOutput(final BufferPool pool, final int capacity) {
+        this.pool = pool;
+        this.buffer = pool.acquire(capacity);
+    }
+
+    /**
+     * @return Number of bytes written (or skipped) so far.
+     */
+    int position() {
+        return this.buffer.position();
+    }
+
+    /**
+     * Skips bytes, to be filled in later.
+     * 
+     * @param count
+     */
+    void skip(final int count) {
+        ensure(count);
+        this.buffer.position(this.buffer.position() + count);
+    }
+
+    /**
+     * Writes an int at an earlier position as variable length number of exactly 5 bytes.
+     * 
+     * @param position
+     * @param value Must not be negative.
+     */
+    void putPaddedVarInt(final int position, final int value) {
+        for (int i = 0; i < 4; i++) {
+            this.buffer.put(position + i, (byte) (((value >>> (7 * i)) & 0x7F) | 0x80));
+        }
+        this.buffer.put(position + 4, (byte) (value >>> 28));
+    }
+
+    /**
+     * Writes a string as its length in UTF-8 followed by the UTF-8 bytes, without
+     * copying if it only has ASCII characters.
+     * 
+     * @param string
+     * @return False if the string has other characters and nothing was written.
+     */
+    boolean writeAscii(final String string) {
+        final int length = string.length();
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) >= 0x80) return false;
+        }
+
+        int remaining = length;
+        while ((remaining & ~0x7F) != 0) {
+            write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        write(remaining);
+
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            this.buffer.put((byte) string.charAt(i));
+        }
+        return true;
+    }
+
+    /**
+     * Ends writing.
+     * 
+     * @param start Position the written data starts at.
+     * @return The buffer, positioned at start, its limit behind the data. Belongs to the
+     * pool, should be released once it was used.
+     */
+    ByteBuffer finish(final int start) {
+        final ByteBuffer result = this.buffer;
+        this.buffer = null;
+
+        result.limit(result.position());
+        result.position(start);
+        return result;
+    }
+
+    /**
+     * Returns the buffer to the pool if writing failed.
+     */
+    void discard() {
+        this.pool.release(this.buffer);
+        this.buffer = null;
+    }
+
+    private void ensure(final int count) {
+        if (this.buffer.remaining() >= count) return;
+
+        final int needed = this.buffer.position() + count;
+        if (needed < 0) throw new IllegalStateException("Message too large"); //$NON-NLS-1$
+
+        final ByteBuffer larger = this.pool.acquire(Math.max(needed, this.buffer.capacity() * 2));
+        this.buffer.flip();
+        larger.put(this.buffer);
+        this.pool.release(this.buffer);
+        this.buffer = larger;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(final int b) {
+        ensure(1);
+        this.buffer.put((byte) b);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        ensure(len);
+        this.buffer.put(b, off, len);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(byte[])
+     */
+    @Override
+    public void write(final byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    public void writeBoolean(final boolean v) {
+        write(v ? 1 : 0);
+    }
+
+    public void writeByte(final int v) {
+        write(v);
+    }
+
+    public void writeShort(final int v) {
+        ensure(2);
+        this.buffer.putShort((short) v);
+    }
+
+    public void writeChar(final int v) {
+        ensure(2);
+        this.buffer.putChar((char) v);
+    }
+
+    public void writeInt(final int v) {
+        ensure(4);
+        this.buffer.putInt(v);
+    }
+
+    public void writeLong(final long v) {
+        ensure(8);
+        this.buffer.putLong(v);
+    }
+
+    public void writeFloat(final float v) {
+        ensure(4);
+        this.buffer.putFloat(v);
+    }
+
+    public void writeDouble(final double v) {
+        ensure(8);
+        this.buffer.putDouble(v);
+    }
+
+    public void writeBytes(final String s) {
+        final int length = s.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            this.buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    public void writeChars(final String s) {
+        final int length = s.length();
+        ensure(2 * length);
+        for (int i = 0; i < length; i++) {
+            this.buffer.putChar(s.charAt(i));
+        }
+    }
+
+    public void writeUTF(final String s) throws IOException {
+        // Not used by the codec, so this may be slow
+        new DataOutputStream(this).writeUTF(s);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * BufferPool.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.call;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte buffers in power of two size classes. Messages are encoded into
+ * buffers of the pool, and connections return them once they have been written, so
+ * sending a message does not produce garbage.
+ * 
+ * Buffers larger than the largest class are heap buffers allocated (and dropped) as
+ * needed, as direct memory is only freed once the GC collects its buffers.
+ * Released buffers must not be used anymore, and must not be released twice; buffers
+ * the pool does not know (views, or buffers of the wrong kind or size) are ignored.
+ * 
+ * @author rb
+ */
+public final class BufferPool {
+
+    /** Smallest size class, 256 bytes */
+    private static final int MIN_SHIFT = 8;
+
+    /** Largest size class, 1 MB */
+    private static final int MAX_SHIFT = 20;
+
+    /** Default number of bytes kept idle per size class */
+    private static final int DEFAULT_RETAINED = 4 * 1024 * 1024;
+
+    /** Max. number of idle buffers per size class */
+    private static final int MAX_RETAINED_BUFFERS = 256;
+
+    /** Pool of direct buffers used by the codec and connections */
+    private static final BufferPool DEFAULT = new BufferPool(true, DEFAULT_RETAINED);
+
+    /**
+     * @return The pool messages are encoded with.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    private final boolean direct;
+
+    /** Idle buffers, by size class */
+    private final BlockingQueue<ByteBuffer>[] classes;
+
+    /** Statistics */
+    private final AtomicLong acquired = new AtomicLong();
+
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * @param direct Pool direct (off-heap) buffers, or heap buffers.
+     * @param retained Max. number of idle bytes kept per size class.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public BufferPool(final boolean direct, final int retained) {
+        this.direct = direct;
+        // Arrays of generic types can only be created raw
+        this.classes = new BlockingQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < this.classes.length; i++) {
+            final int buffers = Math.max(2, Math.min(MAX_RETAINED_BUFFERS, retained >> (MIN_SHIFT + i)));
+            this.classes[i] = new ArrayBlockingQueue<ByteBuffer>(buffers);
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool.
+     * 
+     * @param capacity Min. capacity needed.
+     * @return A cleared buffer, its limit at its capacity (which can be larger than asked for).
+     */
+    public ByteBuffer acquire(final int capacity) {
+        this.acquired.incrementAndGet();
+
+        final int index = classIndex(capacity);
+        if (index >= this.classes.length) {
+            this.allocated.incrementAndGet();
+            return ByteBuffer.allocate(capacity);
+        }
+
+        final ByteBuffer buffer = this.classes[index].poll();
+        if (buffer != null) return buffer;
+
+        return allocate(1 << (MIN_SHIFT + index));
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     * 
+     * @param buffer May be null.
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != this.direct || buffer.isReadOnly()) return;
+
+        final int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1) return;
+
+        final int index = classIndex(capacity);
+        if (index >= this.classes.length || (1 << (MIN_SHIFT + index)) != capacity) return;
+
+        // Views of heap buffers have the capacity of a class but share arrays
+        if (!this.direct && (buffer.arrayOffset() != 0 || buffer.array().length != capacity)) return;
+
+        buffer.clear();
+        this.classes[index].offer(buffer);
+    }
+
+    /**
+     * @return True if this pool holds direct buffers.
+     */
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+    /**
+     * @return Number of buffers handed out so far.
+     */
+    public long getAcquired() {
+        return this.acquired.get();
+    }
+
+    /**
+     * @return Number of buffers handed out that had to be allocated.
+     */
+    public long getAllocated() {
+        return this.allocated.get();
+    }
+
+    private ByteBuffer allocate(final int capacity) {
+        this.allocated.incrementAndGet();
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @param capacity
+     * @return Index of the smallest class holding the capacity (may be past the largest).
+     */
+    private static int classIndex(final int capacity) {
+        if (capacity <= 1 << MIN_SHIFT) return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+}
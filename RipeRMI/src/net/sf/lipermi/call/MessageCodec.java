@@ -0,0 +1,628 @@
+/*
+ * MessageCodec.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.call;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary wire format of all messages. Every message is sent as a frame: its length
+ * (4 bytes) followed by a type byte and the envelope of the message (call ID,
+ * remote instance, method, flags) in a compact binary form. Arguments and return
+ * values of primitive types, strings, byte arrays and remote instances are written
+ * directly, only other values fall back to Java serialization.
+ * 
+ * Filters may turn messages into something else before they are sent. Byte arrays
+ * they return are sent as they are, other objects are serialized.
+ * 
+ * @author rb
+ */
+public class MessageCodec {
+
+    /** Frames larger than this are considered garbage */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /** Inputs payloads are decoded with, reused by each thread */
+    private static final ThreadLocal<BufferInput> INPUTS = new ThreadLocal<BufferInput>();
+
+    /** Message types */
+    private static final byte TYPE_CALL = 1;
+
+    private static final byte TYPE_RETURN = 2;
+
+    private static final byte TYPE_BEACON = 3;
+
+    private static final byte TYPE_BYTES = 4;
+
+    private static final byte TYPE_OBJECT = 5;
+
+    private static final byte TYPE_CHUNK = 6;
+
+    private static final byte TYPE_CREDIT = 7;
+
+    private static final byte TYPE_REJECT = 8;
+
+    private static final byte TYPE_CANCEL = 9;
+
+    private static final byte TYPE_RELEASE = 10;
+
+    private static final byte TYPE_RENEW = 11;
+
+    /** Call flags */
+    private static final int FLAG_METHOD_ID = 0x01;
+
+    private static final int FLAG_ONE_WAY = 0x02;
+
+    /** Chunk flags */
+    private static final int FLAG_LAST = 0x01;
+
+    private static final int FLAG_ERROR = 0x02;
+
+    /** Value tags */
+    private static final byte NULL = 0;
+
+    private static final byte INT = 1;
+
+    private static final byte LONG = 2;
+
+    private static final byte TRUE = 3;
+
+    private static final byte FALSE = 4;
+
+    private static final byte DOUBLE = 5;
+
+    private static final byte FLOAT = 6;
+
+    private static final byte SHORT = 7;
+
+    private static final byte BYTE = 8;
+
+    private static final byte CHAR = 9;
+
+    private static final byte STRING = 10;
+
+    private static final byte REMOTE_INSTANCE = 11;
+
+    private static final byte BYTES = 12;
+
+    private static final byte SERIALIZED = 13;
+
+    private static final byte STREAM = 14;
+
+    private static final byte CHANNEL = 15;
+
+    private MessageCodec() {
+        //
+    }
+
+    /**
+     * Encodes an object (as returned by the filter) into a frame, including its length.
+     * 
+     * @param obj
+     * @return A buffer positioned at the start of the frame.
+     * @throws IOException
+     */
+    public static ByteBuffer encodeFrame(final Object obj) throws IOException {
+        return toFrame(encodePayload(obj, 4));
+    }
+
+    /**
+     * Encodes an object into the payload of a frame.
+     * 
+     * @param obj
+     * @param headroom Number of bytes to leave free in front of the payload.
+     * @return A buffer of the {@link BufferPool#getDefault() default pool}, positioned at
+     * the payload. The space behind its limit is free as well.
+     * @throws IOException
+     */
+    public static ByteBuffer encodePayload(final Object obj, final int headroom) throws IOException {
+        final BufferOutput output = new BufferOutput(BufferPool.getDefault(), headroom + 256);
+        try {
+            output.skip(headroom);
+            write(output, obj);
+        } catch (final IOException e) {
+            output.discard();
+            throw e;
+        } catch (final RuntimeException e) {
+            output.discard();
+            throw e;
+        }
+
+        return output.finish(headroom);
+    }
+
+    /**
+     * Turns a payload into a frame by putting its length in front. If there are 4
+     * bytes free in front of the payload, this happens in place. Otherwise the payload
+     * is copied into a buffer of the {@link BufferPool#getDefault() default pool} (and
+     * may be released).
+     * 
+     * @param payload
+     * @return A buffer positioned at the start of the frame.
+     * @throws IOException If the payload is too large.
+     */
+    public static ByteBuffer toFrame(final ByteBuffer payload) throws IOException {
+        final int length = payload.remaining();
+        if (length > MAX_FRAME_SIZE) throw new IOException("Message too large: " + length + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+
+        if (payload.position() >= 4 && !payload.isReadOnly()) {
+            payload.position(payload.position() - 4);
+            payload.putInt(payload.position(), length);
+            return payload;
+        }
+
+        final ByteBuffer frame = BufferPool.getDefault().acquire(4 + length);
+        frame.putInt(length);
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Decodes a payload, leaving the buffer positioned behind it.
+     * 
+     * @param payload
+     * @return The object to pass to the filter.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static Object decodePayload(final ByteBuffer payload) throws IOException,
+                                                                ClassNotFoundException {
+        BufferInput input = INPUTS.get();
+        if (input == null) {
+            input = new BufferInput(null);
+            INPUTS.set(input);
+        }
+
+        // Filters may decode payloads while decoding one
+        if (input.isReading()) return read(new BufferInput(payload));
+
+        input.reset(payload);
+        try {
+            return read(input);
+        } finally {
+            input.reset(null);
+        }
+    }
+
+    /**
+     * Decodes the payload of a frame (without its length).
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     * @return The object to pass to the filter.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static Object decodeFrame(final byte[] data, final int offset, final int length)
+                                                                                         throws IOException,
+                                                                                         ClassNotFoundException {
+        return decodePayload(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Writes a message (or whatever the filter turned it into).
+     * 
+     * @param out
+     * @param obj
+     * @throws IOException
+     */
+    public static void write(final DataOutput out, final Object obj) throws IOException {
+        if (obj instanceof RemoteCall) {
+            final RemoteCall call = (RemoteCall) obj;
+            out.writeByte(TYPE_CALL);
+            writeVarLong(out, call.callId);
+            out.writeByte((call.methodId != null ? FLAG_METHOD_ID : 0) | (call.oneWay ? FLAG_ONE_WAY : 0));
+            writeRemoteInstance(out, call.remoteInstance);
+            writeVarLong(out, call.methodIndex);
+            if (call.methodId != null) writeString(out, call.methodId);
+            writeArgs(out, call.args);
+        } else if (obj instanceof RemoteReturn) {
+            final RemoteReturn ret = (RemoteReturn) obj;
+            out.writeByte(TYPE_RETURN);
+            writeVarLong(out, ret.callId);
+            out.writeBoolean(ret.throwing);
+            writeValue(out, ret.ret);
+        } else if (obj instanceof RemoteChunk) {
+            final RemoteChunk chunk = (RemoteChunk) obj;
+            out.writeByte(TYPE_CHUNK);
+            writeVarLong(out, chunk.streamId);
+            out.writeByte((chunk.last ? FLAG_LAST : 0) | (chunk.error != null ? FLAG_ERROR : 0));
+            if (chunk.error != null) writeString(out, chunk.error);
+            writeVarLong(out, chunk.length);
+            if (chunk.length > 0) out.write(chunk.data, 0, chunk.length);
+        } else if (obj instanceof RemoteCredit) {
+            final RemoteCredit credit = (RemoteCredit) obj;
+            out.writeByte(TYPE_CREDIT);
+            writeVarLong(out, credit.streamId);
+            writeVarLong(out, zigZag(credit.credit));
+        } else if (obj instanceof RemoteCancel) {
+            out.writeByte(TYPE_CANCEL);
+            writeVarLong(out, ((RemoteCancel) obj).callId);
+        } else if (obj instanceof RemoteRelease) {
+            final RemoteRelease release = (RemoteRelease) obj;
+            out.writeByte(TYPE_RELEASE);
+            writeVarLong(out, zigZag(release.instanceId));
+            writeVarLong(out, release.references);
+        } else if (obj instanceof RemoteRenew) {
+            final long[] instanceIds = ((RemoteRenew) obj).instanceIds;
+            out.writeByte(TYPE_RENEW);
+            writeVarLong(out, instanceIds.length);
+            for (final long instanceId : instanceIds) {
+                writeVarLong(out, zigZag(instanceId));
+            }
+        } else if (obj instanceof RemoteReject) {
+            out.writeByte(TYPE_REJECT);
+            writeString(out, ((RemoteReject) obj).reason);
+        } else if (obj instanceof RemoteBeacon) {
+            out.writeByte(TYPE_BEACON);
+            writeVarLong(out, ((RemoteBeacon) obj).getId());
+        } else if (obj instanceof byte[]) {
+            final byte[] bytes = (byte[]) obj;
+            out.writeByte(TYPE_BYTES);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        } else {
+            out.writeByte(TYPE_OBJECT);
+            writeSerialized(out, obj);
+        }
+    }
+
+    /**
+     * Reads a message (or whatever the filter turned it into).
+     * 
+     * @param in
+     * @return .
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static Object read(final DataInput in) throws IOException, ClassNotFoundException {
+        final byte type = in.readByte();
+        switch (type) {
+        case TYPE_CALL: {
+            final long callId = readVarLong(in);
+            final int flags = in.readUnsignedByte();
+            final RemoteInstance remoteInstance = readRemoteInstance(in);
+            final int methodIndex = (int) readVarLong(in);
+            final String methodId = (flags & FLAG_METHOD_ID) != 0 ? readString(in) : null;
+            final Object[] args = readArgs(in);
+            return new RemoteCall(remoteInstance, methodId, methodIndex, args, callId, (flags & FLAG_ONE_WAY) != 0);
+        }
+        case TYPE_RETURN: {
+            final long callId = readVarLong(in);
+            final boolean throwing = in.readBoolean();
+            return new RemoteReturn(throwing, readValue(in), callId);
+        }
+        case TYPE_CHUNK: {
+            final long streamId = readVarLong(in);
+            final int flags = in.readUnsignedByte();
+            final String error = (flags & FLAG_ERROR) != 0 ? readString(in) : null;
+            final byte[] data = new byte[readLength(in)];
+            in.readFully(data);
+            return new RemoteChunk(streamId, data, data.length, (flags & FLAG_LAST) != 0, error);
+        }
+        case TYPE_CREDIT: {
+            final long streamId = readVarLong(in);
+            return new RemoteCredit(streamId, (int) unZigZag(readVarLong(in)));
+        }
+        case TYPE_CANCEL:
+            return new RemoteCancel(readVarLong(in));
+        case TYPE_RELEASE: {
+            final long instanceId = unZigZag(readVarLong(in));
+            return new RemoteRelease(instanceId, (int) readVarLong(in));
+        }
+        case TYPE_RENEW: {
+            final long[] instanceIds = new long[readCount(in, readVarLong(in))];
+            for (int i = 0; i < instanceIds.length; i++) {
+                instanceIds[i] = unZigZag(readVarLong(in));
+            }
+            return new RemoteRenew(instanceIds);
+        }
+        case TYPE_REJECT:
+            return new RemoteReject(readString(in));
+        case TYPE_BEACON:
+            return new RemoteBeacon((int) readVarLong(in));
+        case TYPE_BYTES: {
+            final byte[] bytes = new byte[readLength(in)];
+            in.readFully(bytes);
+            return bytes;
+        }
+        case TYPE_OBJECT:
+            return readSerialized(in);
+        default:
+            throw new StreamCorruptedException("Unknown message type " + type); //$NON-NLS-1$
+        }
+    }
+
+    private static void writeArgs(final DataOutput out, final Object[] args) throws IOException {
+        if (args == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+
+        writeVarLong(out, args.length + 1);
+        for (final Object arg : args) {
+            writeValue(out, arg);
+        }
+    }
+
+    private static Object[] readArgs(final DataInput in) throws IOException,
+                                                        ClassNotFoundException {
+        final long encoded = readVarLong(in);
+        if (encoded == 0) return null;
+
+        final Object[] args = new Object[readCount(in, encoded - 1)];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = readValue(in);
+        }
+        return args;
+    }
+
+    @SuppressWarnings("boxing")
+    private static void writeValue(final DataOutput out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            writeVarLong(out, zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out, zigZag((Long) value));
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof RemoteInstance) {
+            out.writeByte(REMOTE_INSTANCE);
+            writeRemoteInstance(out, (RemoteInstance) value);
+        } else if (value instanceof RemoteStream) {
+            final RemoteStream stream = (RemoteStream) value;
+            out.writeByte(stream.channel ? CHANNEL : STREAM);
+            writeVarLong(out, stream.streamId);
+        } else if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        } else {
+            out.writeByte(SERIALIZED);
+            writeSerialized(out, value);
+        }
+    }
+
+    @SuppressWarnings("boxing")
+    private static Object readValue(final DataInput in) throws IOException,
+                                                       ClassNotFoundException {
+        final byte tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case INT:
+            return (int) unZigZag(readVarLong(in));
+        case LONG:
+            return unZigZag(readVarLong(in));
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case DOUBLE:
+            return in.readDouble();
+        case FLOAT:
+            return in.readFloat();
+        case SHORT:
+            return in.readShort();
+        case BYTE:
+            return in.readByte();
+        case CHAR:
+            return in.readChar();
+        case STRING:
+            return readString(in);
+        case REMOTE_INSTANCE:
+            return readRemoteInstance(in);
+        case BYTES: {
+            final byte[] bytes = new byte[readLength(in)];
+            in.readFully(bytes);
+            return bytes;
+        }
+        case SERIALIZED:
+            return readSerialized(in);
+        case STREAM:
+            return new RemoteStream(readVarLong(in), false);
+        case CHANNEL:
+            return new RemoteStream(readVarLong(in), true);
+        default:
+            throw new StreamCorruptedException("Unknown value tag " + tag); //$NON-NLS-1$
+        }
+    }
+
+    private static void writeRemoteInstance(final DataOutput out,
+                                            final RemoteInstance remoteInstance)
+                                                                                throws IOException {
+        writeString(out, remoteInstance.className);
+        writeVarLong(out, zigZag(remoteInstance.instanceId));
+    }
+
+    private static RemoteInstance readRemoteInstance(final DataInput in) throws IOException {
+        final String className = readString(in);
+        final long instanceId = unZigZag(readVarLong(in));
+        return new RemoteInstance(instanceId, className);
+    }
+
+    private static void writeString(final DataOutput out, final String string) throws IOException {
+        if (out instanceof BufferOutput && ((BufferOutput) out).writeAscii(string)) return;
+
+        final byte[] bytes = string.getBytes("UTF-8"); //$NON-NLS-1$
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInput in) throws IOException {
+        if (in instanceof BufferInput) return ((BufferInput) in).readString(readLength(in));
+
+        final byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8"); //$NON-NLS-1$
+    }
+
+    private static void writeSerialized(final DataOutput out, final Object value) throws IOException {
+        // Serialize in place and fill in the length afterwards
+        if (out instanceof BufferOutput) {
+            final BufferOutput buffer = (BufferOutput) out;
+            final int start = buffer.position();
+            buffer.skip(5);
+
+            final ObjectOutputStream output = new ObjectOutputStream(buffer);
+            output.writeUnshared(value);
+            output.flush();
+
+            buffer.putPaddedVarInt(start, buffer.position() - start - 5);
+            return;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeUnshared(value);
+        output.close();
+
+        writeVarLong(out, bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    private static Object readSerialized(final DataInput in) throws IOException,
+                                                            ClassNotFoundException {
+        // Deserialize in place
+        if (in instanceof BufferInput) {
+            final BufferInput buffer = (BufferInput) in;
+            final int limit = buffer.narrow(readLength(in));
+            try {
+                return new ObjectInputStream(buffer).readUnshared();
+            } finally {
+                buffer.widen(limit);
+            }
+        }
+
+        final byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+
+        final ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return input.readUnshared();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Checks the number of bytes that follow, so a corrupt length can't make us allocate
+     * more than the frame could hold.
+     * 
+     * @param in
+     * @return .
+     * @throws IOException
+     */
+    private static int readLength(final DataInput in) throws IOException {
+        final long length = readVarLong(in);
+        if (length < 0 || length > left(in))
+            throw new StreamCorruptedException("Invalid length " + length); //$NON-NLS-1$
+        return (int) length;
+    }
+
+    /**
+     * Checks the number of elements that follow, each taking at least one byte, so a
+     * corrupt count can't make us allocate more than the frame could hold.
+     * 
+     * @param in
+     * @param count
+     * @return .
+     * @throws IOException
+     */
+    private static int readCount(final DataInput in, final long count) throws IOException {
+        if (count < 0 || count > left(in))
+            throw new StreamCorruptedException("Invalid count " + count); //$NON-NLS-1$
+        return (int) count;
+    }
+
+    /**
+     * @param in
+     * @return Bytes left in the frame, or the largest frame size if we can't tell.
+     */
+    private static int left(final DataInput in) {
+        return in instanceof BufferInput ? ((BufferInput) in).available() : MAX_FRAME_SIZE;
+    }
+
+    private static void writeVarLong(final DataOutput out, final long value) throws IOException {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(final DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new StreamCorruptedException("Malformed variable length number"); //$NON-NLS-1$
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
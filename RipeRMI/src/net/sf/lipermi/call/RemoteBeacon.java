@@ -23,7 +23,8 @@
 package net.sf.lipermi.call;
 
 /**
- * Class that holds method return information.
+ * Heartbeat telling the peer that the connection is alive. A ping is
+ * answered with a pong.
  * 
  * @date   05/10/2006 
  * @author Ralf Biedert
@@ -32,8 +33,11 @@ public class RemoteBeacon implements IRemoteMessage {
 
     private static final long serialVersionUID = -2364273867409L;
 
-    /** */
-    private byte[] payload = new byte[32];
+    /** ID of beacons answered by the peer */
+    public static final int PING = 1;
+
+    /** ID of answers to pings */
+    public static final int PONG = 0;
 
     /** */
     private int id = 0;
@@ -44,7 +48,6 @@ public class RemoteBeacon implements IRemoteMessage {
      * @param i The ID to create.
      */
     public RemoteBeacon(int i) {
-        this.payload.hashCode();
         this.id = i;
     }
 
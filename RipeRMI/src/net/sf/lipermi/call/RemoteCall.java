@@ -39,32 +39,50 @@ public class RemoteCall implements IRemoteMessage {
     /** The id is a number unique in client and server to identify the call */
     long callId;
 
-    /** method's name */
+    /** method's name, only sent until the peer knows the method index */
     String methodId;
 
-    /** A hash for the method ID in case it was already transmitted */
-    long methodIdHash;
+    /** Index of the method, assigned by the caller per connection */
+    int methodIndex;
 
     /** Instance will receive the call */
     RemoteInstance remoteInstance;
+
+    /** Set if the caller does not want a return */
+    boolean oneWay;
     
     /** The connection handler that received the call */
     transient public ConnectionHandler handler;
 
     /**
      * @param remoteInstance
-     * @param methodId
-     * @param methodIdHash
+     * @param methodId Call name of the method, or null if the index is already known.
+     * @param methodIndex
      * @param args
      * @param callId
      */
     public RemoteCall(final RemoteInstance remoteInstance, final String methodId,
-                      final long methodIdHash, final Object[] args, final long callId) {
+                      final int methodIndex, final Object[] args, final long callId) {
+        this(remoteInstance, methodId, methodIndex, args, callId, false);
+    }
+
+    /**
+     * @param remoteInstance
+     * @param methodId Call name of the method, or null if the index is already known.
+     * @param methodIndex
+     * @param args
+     * @param callId
+     * @param oneWay True if the caller does not want a return.
+     */
+    public RemoteCall(final RemoteInstance remoteInstance, final String methodId,
+                      final int methodIndex, final Object[] args, final long callId,
+                      final boolean oneWay) {
         this.remoteInstance = remoteInstance;
         this.methodId = methodId;
-        this.methodIdHash = methodIdHash;
+        this.methodIndex = methodIndex;
         this.args = args;
         this.callId = callId;
+        this.oneWay = oneWay;
     }
 
     /**
@@ -91,8 +109,15 @@ public class RemoteCall implements IRemoteMessage {
     /**
      * @return .
      */
-    public long getMethodIDHash() {
-        return this.methodIdHash;
+    public int getMethodIndex() {
+        return this.methodIndex;
+    }
+
+    /**
+     * @return True if the caller does not want a return.
+     */
+    public boolean isOneWay() {
+        return this.oneWay;
     }
 
     /**
@@ -0,0 +1,104 @@
+/*
+ * RemoteChunk.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.call;
+
+/**
+ * A piece of a {@link RemoteStream}. The last chunk of a stream is flagged, and
+ * carries an error message if reading the stream failed.
+ * 
+ * @author rb
+ */
+public class RemoteChunk implements IRemoteMessage {
+
+    private static final long serialVersionUID = -1590356371185417642L;
+
+    /** Stream the chunk belongs to */
+    long streamId;
+
+    /** Data, only the first length bytes count */
+    byte[] data;
+
+    int length;
+
+    /** Last chunk of the stream? */
+    boolean last;
+
+    /** Why the stream ended early, or null */
+    String error;
+
+    /**
+     * @param streamId
+     * @param data May be null if length is 0.
+     * @param length
+     * @param last
+     * @param error
+     */
+    public RemoteChunk(final long streamId, final byte[] data, final int length,
+                       final boolean last, final String error) {
+        this.streamId = streamId;
+        this.data = data;
+        this.length = length;
+        this.last = last;
+        this.error = error;
+    }
+
+    /**
+     * @return .
+     */
+    public long getStreamID() {
+        return this.streamId;
+    }
+
+    /**
+     * @return .
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+
+    /**
+     * @return .
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return .
+     */
+    public boolean isLast() {
+        return this.last;
+    }
+
+    /**
+     * @return .
+     */
+    public String getError() {
+        return this.error;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * RemoteCredit.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.call;
+
+/**
+ * Sent by the receiver of a {@link RemoteStream} to allow the sender more bytes, or to
+ * make it stop.
+ * 
+ * @author rb
+ */
+public class RemoteCredit implements IRemoteMessage {
+
+    private static final long serialVersionUID = 7723104785961406213L;
+
+    /** Stream the credit is for */
+    long streamId;
+
+    /** Number of bytes the sender may send in addition, or -1 to cancel the stream */
+    int credit;
+
+    /**
+     * @param streamId
+     * @param credit Number of bytes, or -1 to cancel the stream.
+     */
+    public RemoteCredit(final long streamId, final int credit) {
+        this.streamId = streamId;
+        this.credit = credit;
+    }
+
+    /**
+     * @return .
+     */
+    public long getStreamID() {
+        return this.streamId;
+    }
+
+    /**
+     * @return .
+     */
+    public int getCredit() {
+        return this.credit;
+    }
+
+    /**
+     * @return True if the receiver does not want the stream anymore.
+     */
+    public boolean isCancel() {
+        return this.credit < 0;
+    }
+}
@@ -80,6 +80,7 @@ public class RemoteInstance implements Serializable {
 
     @Override
     public int hashCode() {
-        return this.className.hashCode();
+        // Instances of the same interface only differ by their ID
+        return 31 * this.className.hashCode() + (int) (this.instanceId ^ (this.instanceId >>> 32));
     }
 }
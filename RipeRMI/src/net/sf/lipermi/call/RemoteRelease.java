@@ -0,0 +1,69 @@
+/*
+ * RemoteRelease.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.call;
+
+/**
+ * Tells the remote party that we dropped our proxy of one of its instances. As the
+ * party may have sent the instance again in the meantime, the release carries how often
+ * we received it; the lease only ends once all references sent are released.
+ * 
+ * @author rb
+ */
+public class RemoteRelease implements IRemoteMessage {
+
+    private static final long serialVersionUID = 2755385003461378370L;
+
+    /** Instance released */
+    long instanceId;
+
+    /** How often we received the instance */
+    int references;
+
+    /**
+     * @param instanceId
+     * @param references
+     */
+    public RemoteRelease(final long instanceId, final int references) {
+        this.instanceId = instanceId;
+        this.references = references;
+    }
+
+    /**
+     * @return .
+     */
+    public long getInstanceID() {
+        return this.instanceId;
+    }
+
+    /**
+     * @return .
+     */
+    public int getReferences() {
+        return this.references;
+    }
+}
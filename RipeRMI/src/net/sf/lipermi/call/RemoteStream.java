@@ -0,0 +1,71 @@
+/*
+ * RemoteStream.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.call;
+
+import java.io.Serializable;
+
+/**
+ * Sent in place of a stream (an {@link java.io.InputStream} or a
+ * {@link java.nio.channels.ReadableByteChannel}) passed to or returned by a remote
+ * method. The content of the stream follows in {@link RemoteChunk}s.
+ * 
+ * @author rb
+ */
+public class RemoteStream implements Serializable {
+
+    private static final long serialVersionUID = 4630277245069012387L;
+
+    /** ID of the stream, unique per connection and sender */
+    long streamId;
+
+    /** The receiver gets a channel instead of an input stream */
+    boolean channel;
+
+    /**
+     * @param streamId
+     * @param channel
+     */
+    public RemoteStream(final long streamId, final boolean channel) {
+        this.streamId = streamId;
+        this.channel = channel;
+    }
+
+    /**
+     * @return .
+     */
+    public long getStreamID() {
+        return this.streamId;
+    }
+
+    /**
+     * @return True if the stream was a channel.
+     */
+    public boolean isChannel() {
+        return this.channel;
+    }
+}
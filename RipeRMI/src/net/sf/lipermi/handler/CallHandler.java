@@ -22,17 +22,20 @@
 
 package net.sf.lipermi.handler;
 
-import static net.jcores.jre.CoreKeeper.$;
-
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 import net.sf.lipermi.call.RemoteCall;
 import net.sf.lipermi.call.RemoteInstance;
 import net.sf.lipermi.call.RemoteReturn;
 import net.sf.lipermi.exception.LipeRMIException;
+import net.sf.lipermi.metrics.Metrics;
 
 /**
  * A handler who know a RemoteInstance and its
@@ -43,15 +46,65 @@ import net.sf.lipermi.exception.LipeRMIException;
  * methods {@link net.sf.lipermi.handler.CallHandler#registerGlobal registerGlobal} and
  * {@link net.sf.lipermi.handler.CallHandler#exportObject exportObject} to work remotelly.
  * 
+ * Incoming calls of all connections using this handler are executed by its
+ * dispatch executor.
+ * 
+ * Objects passed to or returned from remote calls as interfaces are auto exported. Peers
+ * hold leases on them while they use them, auto exported objects are unexported once
+ * all leases are released, expired or gone with their connection.
+ * 
  * @author lipe
  * @date 05/10/2006
  * 
  * @see net.sf.lipermi.call.RemoteInstance
  */
 public class CallHandler {
+    /** Threads the default dispatch executor uses at most */
+    private static final int DEFAULT_DISPATCH_THREADS = 256;
+
+    /** Calls the default dispatch executor queues at most */
+    private static final int DEFAULT_DISPATCH_QUEUE = 4096;
+
     /** All our exported objects */
     private final Map<RemoteInstance, Object> exportedObjects = new ConcurrentHashMap<RemoteInstance, Object>();
 
+    /** Reverse index of exportedObjects, by object identity, guarded by itself */
+    private final Map<Object, RemoteInstance> exportedReferences = new IdentityHashMap<Object, RemoteInstance>();
+
+    /** References peers hold on auto exported objects, guarded by exportedReferences */
+    private final Map<RemoteInstance, Integer> leasedReferences = new HashMap<RemoteInstance, Integer>();
+
+    /** Dispatch tables of all exported interfaces, by interface name */
+    private final ConcurrentMap<String, DispatchTable> dispatchTables = new ConcurrentHashMap<String, DispatchTable>();
+
+    /** Executes incoming calls */
+    private final Executor dispatchExecutor;
+
+    /** Metrics of all connections using this handler */
+    private final Metrics metrics = new Metrics(this);
+
+    /** Told about failed one way calls, null to print them */
+    private volatile IOneWayErrorListener oneWayErrorListener = null;
+
+    /**
+     * Creates a call handler dispatching with a bounded pool of daemon threads.
+     */
+    public CallHandler() {
+        this(DispatchExecutors.newBoundedExecutor(DEFAULT_DISPATCH_THREADS, DEFAULT_DISPATCH_QUEUE));
+    }
+
+    /**
+     * Creates a call handler dispatching incoming calls with the given executor.
+     * Calls the executor rejects are answered with an
+     * {@link net.sf.lipermi.exception.OverloadException OverloadException}.
+     * 
+     * @param dispatchExecutor
+     * @see net.sf.lipermi.handler.DispatchExecutors
+     */
+    public CallHandler(final Executor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
     /**
      * Generates a call name for the given class and method id.
      * 
@@ -85,7 +138,10 @@ public class CallHandler {
      * 
      * @param callName
      * @return .
+     * @deprecated Calls are identified by method indices the peers agree on, these IDs
+     * are not used anymore (and were never unique).
      */
+    @Deprecated
     public static long generateCAllID(String callName) {
         return callName.hashCode() + 2 ^ 32 * callName.substring(1).hashCode();
     }
@@ -108,55 +164,19 @@ public class CallHandler {
                                                                  IllegalArgumentException,
                                                                  IllegalAccessException {
 
-        // Try to get the object for which we have been called
+        // Try to get the object for which we have been called, it may have been unexported since
         final Object implementator = this.exportedObjects.get(remoteCall.getRemoteInstance());
-        if (implementator == null)
-            throw new LipeRMIException(String.format("Class %s doesn't have implementation", remoteCall.getRemoteInstance().getClassName())); //$NON-NLS-1$
-
-        final Cache cache = remoteCall.handler.getCache();
-        final RemoteInstance instance = remoteCall.getRemoteInstance();
-
-        // Try to get the method the peer was looking for
-        final long methodID = remoteCall.getMethodIDHash();
-        final String className = cache.getClassID(instance.getClassName(), instance.getInstanceID());
-        final String request = cache.getMethodID(className, remoteCall.getMethodID(), methodID);
-
-        // Try to get the cached method without doing reflection
-        Method implementationMethod = cache.getMethod(className, null, methodID);
-
-        // All the methods to consider
-        final Method[] methods = implementator.getClass().getDeclaredMethods();
-        final Method[] moreMethods = implementator.getClass().getMethods();
-        
-        if (implementationMethod == null) {
-            // Locate the method for which we have been called (first check declared methods of this class)
-            for (final Method method : $(methods).add(moreMethods)) {
-                String mname = method.toString();
-
-                Class<?> some = implementator.getClass();
-                while (some != null) {
-                    String name = some.getName();
-                    mname = mname.replaceAll(name, "");
-                    some = some.getSuperclass();
-                }
-
-                if (mname.endsWith(request)) {
-                    implementationMethod = method;
-                    break;
-                }
-            }
-
-            // Make method accessible (only required once).
-            if(implementationMethod != null)
-                implementationMethod.setAccessible(true);
-
-            
-            // And store the method in the cache
-            cache.getMethod(className, implementationMethod, methodID);
+        if (implementator == null) {
+            final LipeRMIException e = new LipeRMIException(String.format("Class %s doesn't have implementation", remoteCall.getRemoteInstance().getClassName())); //$NON-NLS-1$
+            return new RemoteReturn(true, e, remoteCall.getCallID());
         }
 
+        // Look up the method by the index the peer assigned to it
+        final MethodInvoker invoker = remoteCall.handler.getBoundMethod(remoteCall.getMethodIndex());
+
         // Ups ... method does not exist ...
-        if (implementationMethod == null) { 
+        if (invoker == null) { 
+            final String request = remoteCall.handler.getBoundMethodName(remoteCall.getMethodIndex());
             return new RemoteReturn(true, new NoSuchMethodException(request), remoteCall.getCallID()); 
         }
 
@@ -168,21 +188,22 @@ public class CallHandler {
             Object methodReturn = null;
 
             // Invoke the method>
-            methodReturn = implementationMethod.invoke(implementator, remoteCall.getArgs());
-
-            // Auto export return value, in case it is an interface
-            if (implementationMethod.getReturnType().isInterface() && methodReturn != null) {
-                exportObject(implementationMethod.getReturnType(), methodReturn);
-            }
-
-            // In case it was already exported, return the wrapped
-            if (methodReturn != null && this.exportedObjects.containsValue(methodReturn)) {
-                methodReturn = getRemoteReference(methodReturn);
+            methodReturn = invoker.invoke(implementator, remoteCall.getArgs());
+            final Method implementationMethod = invoker.getMethod();
+
+            // Streams are sent in chunks after the return, other interfaces are auto exported. In case
+            // the return is exported, we return the wrapped.
+            if (StreamSource.isStream(methodReturn)) {
+                methodReturn = remoteCall.handler.exportStream(methodReturn);
+            } else if (methodReturn != null) {
+                final Class<?> returnType = implementationMethod.getReturnType();
+                final RemoteInstance remoteReference = remoteCall.handler.leaseReference(returnType.isInterface() ? returnType : null, methodReturn);
+                if (remoteReference != null) methodReturn = remoteReference;
             }
 
             // Setup method return value
             remoteReturn = new RemoteReturn(false, methodReturn, remoteCall.getCallID());
-        } catch (final Exception e) {
+        } catch (final Throwable e) {
             e.printStackTrace();
             remoteReturn = new RemoteReturn(true, e, remoteCall.getCallID());
         } 
@@ -191,14 +212,96 @@ public class CallHandler {
     }
 
     /**
+     * Exports an object, unless it is already exported for the same interface. Objects
+     * exported this way stay exported, also if they were auto exported before.
+     * 
      * @param cInterface
      * @param exportedObject
      * @throws LipeRMIException
      */
     public void exportObject(final Class<?> cInterface, final Object exportedObject)
                                                                                     throws LipeRMIException {
-        final UUID objUUID = java.util.UUID.randomUUID();
-        exportObject(cInterface, exportedObject, objUUID.getMostSignificantBits());
+        synchronized (this.exportedReferences) {
+            // Objects passed again and again (e.g., listeners) keep their remote instance
+            final RemoteInstance exported = getRemoteReference(exportedObject);
+            if (exported != null && cInterface.getName().equals(exported.getClassName())) {
+                this.leasedReferences.remove(exported);
+                return;
+            }
+
+            final UUID objUUID = java.util.UUID.randomUUID();
+            exportObject(cInterface, exportedObject, objUUID.getMostSignificantBits());
+        }
+    }
+
+    /**
+     * Returns the remote instance to send for an object, auto exporting it if it isn't
+     * exported for the given interface yet. Every reference to an auto exported object
+     * returned has to be released again with {@link #releaseReference(RemoteInstance, int)}.
+     * 
+     * @param cInterface Interface to export the object with, or null to only look it up.
+     * @param obj
+     * @return The remote instance, or null if the object isn't exported.
+     * @throws LipeRMIException
+     */
+    RemoteInstance acquireReference(final Class<?> cInterface, final Object obj)
+                                                                                throws LipeRMIException {
+        if (obj == null) return null;
+
+        synchronized (this.exportedReferences) {
+            RemoteInstance remoteInstance = this.exportedReferences.get(obj);
+            if (cInterface != null && (remoteInstance == null || !cInterface.getName().equals(remoteInstance.getClassName()))) {
+                remoteInstance = exportObject(cInterface, obj, java.util.UUID.randomUUID().getMostSignificantBits());
+                this.leasedReferences.put(remoteInstance, Integer.valueOf(0));
+            }
+            if (remoteInstance == null) return null;
+
+            final Integer references = this.leasedReferences.get(remoteInstance);
+            if (references != null) this.leasedReferences.put(remoteInstance, Integer.valueOf(references.intValue() + 1));
+
+            return remoteInstance;
+        }
+    }
+
+    /**
+     * Releases references to an object acquired with
+     * {@link #acquireReference(Class, Object)}. Auto exported objects are unexported
+     * once no references are left.
+     * 
+     * @param remoteInstance
+     * @param references
+     */
+    void releaseReference(final RemoteInstance remoteInstance, final int references) {
+        synchronized (this.exportedReferences) {
+            final Integer held = this.leasedReferences.get(remoteInstance);
+            if (held == null) return;
+
+            if (held.intValue() > references) {
+                this.leasedReferences.put(remoteInstance, Integer.valueOf(held.intValue() - references));
+                return;
+            }
+
+            this.leasedReferences.remove(remoteInstance);
+            final Object obj = this.exportedObjects.remove(remoteInstance);
+            if (obj != null && remoteInstance.equals(this.exportedReferences.get(obj))) this.exportedReferences.remove(obj);
+        }
+    }
+
+    /**
+     * @return Number of objects exported, including global ones.
+     */
+    public int getExportedObjectCount() {
+        return this.exportedObjects.size();
+    }
+
+    /**
+     * @return Number of auto exported objects, which are unexported once no peer holds
+     * a lease on them anymore.
+     */
+    public int getLeasedObjectCount() {
+        synchronized (this.exportedReferences) {
+            return this.leasedReferences.size();
+        }
     }
 
     /**
@@ -218,17 +321,96 @@ public class CallHandler {
      * @param cInterface
      * @param objImplementation
      * @param instanceId
+     * @return .
      * @throws LipeRMIException
      */
     @SuppressWarnings({ "unchecked", "rawtypes" })
-    private void exportObject(final Class cInterface, final Object objImplementation,
-                              final long instanceId) throws LipeRMIException {
+    private RemoteInstance exportObject(final Class cInterface, final Object objImplementation,
+                                        final long instanceId) throws LipeRMIException {
 
         if (!cInterface.isAssignableFrom(objImplementation.getClass()))
             throw new LipeRMIException(String.format("Class %s is not assignable from %s", objImplementation.getClass().getName(), cInterface.getName())); //$NON-NLS-1$
 
+        // Build the dispatch table of the interface once
+        if (!this.dispatchTables.containsKey(cInterface.getName()))
+            this.dispatchTables.putIfAbsent(cInterface.getName(), DispatchTable.create(cInterface));
+
         final RemoteInstance remoteInstance = new RemoteInstance(instanceId, cInterface.getName());
-        this.exportedObjects.put(remoteInstance, objImplementation);
+
+        synchronized (this.exportedReferences) {
+            this.exportedObjects.put(remoteInstance, objImplementation);
+            this.exportedReferences.put(objImplementation, remoteInstance);
+        }
+        return remoteInstance;
+    }
+
+    /**
+     * Returns the invoker for a method of an exported interface.
+     * 
+     * @param className Name of the interface.
+     * @param callName
+     * @return The invoker, or null if there is no such method or interface.
+     */
+    MethodInvoker getMethodInvoker(final String className, final String callName) {
+        final DispatchTable dispatchTable = this.dispatchTables.get(className);
+        return dispatchTable == null ? null : dispatchTable.getInvoker(callName);
+    }
+
+    /**
+     * Returns the executor incoming calls are executed with.
+     * 
+     * @return .
+     */
+    public Executor getDispatchExecutor() {
+        return this.dispatchExecutor;
+    }
+
+    /**
+     * Returns the metrics of all calls made and executed through this handler.
+     * 
+     * @return .
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sets who is told about one way calls that failed, both calls we made and calls we
+     * executed.
+     * 
+     * @param listener null to print failures to stderr.
+     * @see net.sf.lipermi.annotations.OneWay
+     */
+    public void setOneWayErrorListener(final IOneWayErrorListener listener) {
+        this.oneWayErrorListener = listener;
+    }
+
+    /**
+     * @return The listener told about failed one way calls, or null.
+     */
+    public IOneWayErrorListener getOneWayErrorListener() {
+        return this.oneWayErrorListener;
+    }
+
+    /**
+     * Reports a one way call that failed.
+     * 
+     * @param method
+     * @param cause
+     */
+    void oneWayCallFailed(final String method, final Throwable cause) {
+        final IOneWayErrorListener listener = this.oneWayErrorListener;
+        if (listener == null) {
+            System.err.println("One way call of " + method + " failed:"); //$NON-NLS-1$ //$NON-NLS-2$
+            cause.printStackTrace();
+            return;
+        }
+
+        try {
+            listener.oneWayCallFailed(method, cause);
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -238,10 +420,8 @@ public class CallHandler {
      * @return
      */
     RemoteInstance getRemoteReference(final Object obj) {
-        for (final RemoteInstance remoteInstance : this.exportedObjects.keySet()) {
-            final Object exportedObj = this.exportedObjects.get(remoteInstance);
-            if (exportedObj == obj) return remoteInstance;
+        synchronized (this.exportedReferences) {
+            return this.exportedReferences.get(obj);
         }
-        return null;
     }
 }
@@ -26,6 +26,8 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.SocketException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import net.sf.lipermi.call.RemoteInstance;
@@ -56,11 +58,57 @@ public class CallProxy implements InvocationHandler {
                                     final ConnectionHandler connectionHandler)
                                                                               throws ClassNotFoundException {
         final Class<?> clazz = Class.forName(remoteInstance.getClassName());
-        return Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] { clazz, Fundamental.class }, new CallProxy(connectionHandler));
+        return Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] { clazz, Fundamental.class }, new CallProxy(connectionHandler, remoteInstance, null));
+    }
+
+    /**
+     * Sets the deadline of all calls made through a proxy, overriding the ones
+     * annotated.
+     * 
+     * @param proxy A proxy of a remote object, as returned by a client or a call.
+     * @param timeout 0 to use the annotated deadlines again.
+     * @param unit
+     * @see net.sf.lipermi.annotations.Timeout
+     */
+    public static void setTimeout(final Object proxy, final long timeout, final TimeUnit unit) {
+        final InvocationHandler handler = Proxy.isProxyClass(proxy.getClass()) ? Proxy.getInvocationHandler(proxy) : null;
+        if (!(handler instanceof CallProxy)) throw new IllegalArgumentException("Not a remote proxy: " + proxy.getClass().getName()); //$NON-NLS-1$
+
+        ((CallProxy) handler).setTimeout(timeout, unit);
+    }
+
+    /**
+     * Makes calls of all void methods made through a proxy one way, as if they were
+     * annotated so.
+     * 
+     * @param proxy A proxy of a remote object, as returned by a client or a call.
+     * @param oneWay False to only make the annotated methods one way again.
+     * @see net.sf.lipermi.annotations.OneWay
+     */
+    public static void setOneWay(final Object proxy, final boolean oneWay) {
+        final InvocationHandler handler = Proxy.isProxyClass(proxy.getClass()) ? Proxy.getInvocationHandler(proxy) : null;
+        if (!(handler instanceof CallProxy)) throw new IllegalArgumentException("Not a remote proxy: " + proxy.getClass().getName()); //$NON-NLS-1$
+
+        ((CallProxy) handler).setOneWay(oneWay);
     }
 
     private final ConnectionHandler connectionHandler;
 
+    /** The remote instance called, null for global ones */
+    private final RemoteInstance remoteInstance;
+
+    /** For asynchronous views, the global remote instance the calls go to */
+    private final RemoteInstance asyncTarget;
+
+    /** For global proxies, the remote instance the calls go to, known after the first call */
+    private volatile RemoteInstance globalTarget = null;
+
+    /** Deadline (in ns) of all calls, 0 to use the annotated ones */
+    private volatile long timeout = 0;
+
+    /** Set if calls of all void methods are one way */
+    private volatile boolean oneWay = false;
+
     /**
      * Create new CallProxy with a ConnectionHandler which will
      * transport invocations on this Proxy
@@ -68,7 +116,27 @@ public class CallProxy implements InvocationHandler {
      * @param connectionHandler
      */
     public CallProxy(final ConnectionHandler connectionHandler) {
+        this(connectionHandler, null, null);
+    }
+
+    /**
+     * Create new CallProxy for an asynchronous view of a global remote interface. Methods
+     * of the view are matched to the remote interface by name and parameter types. Methods
+     * returning {@link Future} or {@link RemoteFuture} don't wait for the remote party, they
+     * return a RemoteFuture instead. All other methods are called synchronously.
+     * 
+     * @param connectionHandler
+     * @param remoteInterface
+     */
+    public CallProxy(final ConnectionHandler connectionHandler, final Class<?> remoteInterface) {
+        this(connectionHandler, null, new RemoteInstance(0, remoteInterface.getName()));
+    }
+
+    private CallProxy(final ConnectionHandler connectionHandler,
+                      final RemoteInstance remoteInstance, final RemoteInstance asyncTarget) {
         this.connectionHandler = connectionHandler;
+        this.remoteInstance = remoteInstance;
+        this.asyncTarget = asyncTarget;
     }
 
     /**
@@ -76,17 +144,62 @@ public class CallProxy implements InvocationHandler {
      */
     public Object invoke(final Object proxy, final Method method, final Object[] args)
                                                                                       throws Throwable {
-        if (method.toString().endsWith("toString()")) return this.toString();
+        if (method.getDeclaringClass() == Object.class && method.getName().equals("toString")) return this.toString(); //$NON-NLS-1$
 
         Object rval = null;
 
         try {
-            rval = this.connectionHandler.remoteInvocation(proxy, method, args);
+            if (this.remoteInstance != null) {
+                rval = this.connectionHandler.remoteInvocation(this.remoteInstance, method, args, this.timeout, this.oneWay);
+            } else if (this.asyncTarget == null) {
+                RemoteInstance target = this.globalTarget;
+                if (target == null) this.globalTarget = target = new RemoteInstance(0, proxy.getClass().getInterfaces()[0].getName());
+                rval = this.connectionHandler.remoteInvocation(target, method, args, this.timeout, this.oneWay);
+            } else if (method.getReturnType() == Future.class || method.getReturnType() == RemoteFuture.class) {
+                rval = this.connectionHandler.remoteInvocationAsync(this.asyncTarget, method, args, this.timeout);
+            } else {
+                rval = this.connectionHandler.remoteInvocation(this.asyncTarget, method, args, this.timeout, this.oneWay);
+            }
         } catch (SocketException e) {
             this.logger.fine("Socket appears to have been closed.");
-            throw new IllegalStateException("Socket to remote was closed.");
+            throw new IllegalStateException("Socket to remote was closed.", e);
         }
 
         return rval;
     }
+
+    /**
+     * @param unit
+     * @return The deadline of all calls, 0 if the annotated ones are used.
+     */
+    public long getTimeout(final TimeUnit unit) {
+        return unit.convert(this.timeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the deadline of all calls made through this proxy, overriding the ones
+     * annotated.
+     * 
+     * @param timeout 0 to use the annotated deadlines again.
+     * @param unit
+     */
+    public void setTimeout(final long timeout, final TimeUnit unit) {
+        this.timeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * @return True if calls of all void methods are one way.
+     */
+    public boolean isOneWay() {
+        return this.oneWay;
+    }
+
+    /**
+     * Makes calls of all void methods made through this proxy one way.
+     * 
+     * @param oneWay False to only make the annotated methods one way again.
+     */
+    public void setOneWay(final boolean oneWay) {
+        this.oneWay = oneWay;
+    }
 }
@@ -22,36 +22,57 @@
 
 package net.sf.lipermi.handler;
 
-import java.io.BufferedInputStream;
-import java.io.EOFException;
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.StreamCorruptedException;
 import java.lang.reflect.Method;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.LockSupport;
 
+import net.sf.lipermi.call.BufferPool;
 import net.sf.lipermi.call.IRemoteMessage;
+import net.sf.lipermi.call.MessageCodec;
 import net.sf.lipermi.call.RemoteBeacon;
 import net.sf.lipermi.call.RemoteCall;
+import net.sf.lipermi.call.RemoteCancel;
+import net.sf.lipermi.call.RemoteChunk;
+import net.sf.lipermi.call.RemoteCredit;
 import net.sf.lipermi.call.RemoteInstance;
+import net.sf.lipermi.call.RemoteReject;
+import net.sf.lipermi.call.RemoteRelease;
+import net.sf.lipermi.call.RemoteRenew;
 import net.sf.lipermi.call.RemoteReturn;
+import net.sf.lipermi.call.RemoteStream;
+import net.sf.lipermi.annotations.OneWay;
+import net.sf.lipermi.annotations.Timeout;
 import net.sf.lipermi.exception.LipeRMIException;
+import net.sf.lipermi.exception.OverloadException;
+import net.sf.lipermi.handler.filter.FilterChain;
 import net.sf.lipermi.handler.filter.IProtocolFilter;
+import net.sf.lipermi.metrics.MethodMetrics;
+import net.sf.lipermi.metrics.Metrics;
 
 /**
  * A ConnectionHandler is object which can call remote
@@ -67,29 +88,79 @@ import net.sf.lipermi.handler.filter.IProtocolFilter;
  * @see	   net.sf.lipermi.net.Client
  * @see	   net.sf.lipermi.net.Server
  * @see	   net.sf.lipermi.handler.filter.DefaultFilter
+ * @see	   net.sf.lipermi.net.Transport
  */
-public class ConnectionHandler implements Runnable {
+public abstract class ConnectionHandler {
+
+    /** Max. method index a peer may assign */
+    private static final int MAX_METHOD_INDEX = 64 * 1024;
 
     private static AtomicLong callId = new AtomicLong(0L);
 
+    /** Default duration of leases, the same as Java RMI's */
+    private static final long DEFAULT_LEASE_DURATION = TimeUnit.MINUTES.toNanos(10);
+
+    /** How often (in ns) we look for dropped proxies at least */
+    private static final long MAX_LEASE_CHECK_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    /** A proxy we built for a remote instance, weakly referenced so we notice once it is dropped */
+    private static class ProxyReference extends WeakReference<Object> {
+        final RemoteInstance remoteInstance;
+
+        /** How often the peer sent us the instance */
+        final AtomicInteger received = new AtomicInteger(0);
+
+        ProxyReference(final Object proxy, final RemoteInstance remoteInstance,
+                       final ReferenceQueue<Object> queue) {
+            super(proxy, queue);
+            this.remoteInstance = remoteInstance;
+        }
+    }
+
+    /** Index of a method we call, and whether the peer already knows it */
+    private static class MethodIndex {
+        final int index;
+
+        final String callName;
+
+        /** Parameter types of the method, kept to not copy them on every call */
+        final Class<?>[] parameterTypes;
+
+        /** Deadline (in ns) of calls as annotated, 0 if none */
+        final long timeout;
+
+        /** Set if calls are annotated one way */
+        final boolean oneWay;
+
+        /** Where calls of the method are recorded */
+        final MethodMetrics metrics;
+
+        /** Set once a call carrying the call name was queued for sending */
+        volatile boolean announced = false;
+
+        MethodIndex(final int index, final String callName, final Class<?>[] parameterTypes,
+                    final long timeout, final boolean oneWay, final MethodMetrics metrics) {
+            this.index = index;
+            this.callName = callName;
+            this.parameterTypes = parameterTypes;
+            this.timeout = timeout;
+            this.oneWay = oneWay;
+            this.metrics = metrics;
+        }
+    }
+
     /**
      * @param socket
      * @param callHandler
      * @param filter
      * @return .
      */
-    @SuppressWarnings("boxing")
     public static ConnectionHandler createConnectionHandler(
                                                             final Socket socket,
                                                             final CallHandler callHandler,
                                                             final IProtocolFilter filter) {
-        final ConnectionHandler connectionHandler = new ConnectionHandler(socket, callHandler, filter);
-        final String threadName = String.format("ConnectionHandler (%s:%d)", socket.getInetAddress().getHostAddress(), socket.getPort()); //$NON-NLS-1$
-        final Thread connectionHandlerThread = new Thread(connectionHandler, threadName);
-        
-        connectionHandlerThread.setDaemon(true);
-        connectionHandlerThread.start();
-
+        final StreamConnectionHandler connectionHandler = new StreamConnectionHandler(socket, callHandler, filter);
+        connectionHandler.start();
         return connectionHandler;
     }
 
@@ -106,75 +177,245 @@ public class ConnectionHandler implements Runnable {
                                                             final IProtocolFilter filter,
                                                             final IConnectionHandlerListener listener) {
         
-        final ConnectionHandler connectionHandler = createConnectionHandler(socket, callHandler, filter);
+        final StreamConnectionHandler connectionHandler = new StreamConnectionHandler(socket, callHandler, filter);
         
-        connectionHandler.addConnectionHandlerListener(listener);
+        if (listener != null) connectionHandler.addConnectionHandlerListener(listener);
+        connectionHandler.start();
         
         return connectionHandler;
     }
 
+    /**
+     * Tells the peer of a connection we accepted that we don't admit it, and closes the
+     * connection. No handler must have been created for the socket, and it must still
+     * be in blocking mode.
+     * 
+     * @param socket
+     * @param filter The filter the connection would have used.
+     * @param reason Told to the peer.
+     */
+    public static void reject(final Socket socket, final IProtocolFilter filter,
+                              final String reason) {
+        try {
+            final ByteBuffer frame = encodeReject(filter, reason);
+            final byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            BufferPool.getDefault().release(frame);
+
+            socket.getOutputStream().write(bytes);
+            socket.shutdownOutput();
+
+            // Closing with unread data resets the connection, which may discard the frame
+            final InputStream in = socket.getInputStream();
+            while (in.available() > 0) {
+                in.skip(in.available());
+            }
+        } catch (final IOException e) {
+            // The peer is told by the closed connection then
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                //
+            }
+        }
+    }
+
+    /**
+     * Like {@link #reject(Socket, IProtocolFilter, String)}, but never blocks, so threads
+     * serving other connections may call it. If the connection can't take the whole
+     * rejection right away, the peer only learns from the closed connection.
+     * 
+     * @param channel
+     * @param filter The filter the connection would have used.
+     * @param reason Told to the peer.
+     */
+    public static void reject(final SocketChannel channel, final IProtocolFilter filter,
+                              final String reason) {
+        try {
+            channel.configureBlocking(false);
+
+            final ByteBuffer frame = encodeReject(filter, reason);
+            try {
+                channel.write(frame);
+            } finally {
+                BufferPool.getDefault().release(frame);
+            }
+            channel.socket().shutdownOutput();
+
+            // Closing with unread data resets the connection, which may discard the frame
+            final ByteBuffer discard = ByteBuffer.allocate(512);
+            while (channel.read(discard) > 0) {
+                discard.clear();
+            }
+        } catch (final IOException e) {
+            // The peer is told by the closed connection then
+        } finally {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                //
+            }
+        }
+    }
+
+    /**
+     * @param filter
+     * @param reason
+     * @return The frame rejecting a connection.
+     * @throws IOException
+     */
+    private static ByteBuffer encodeReject(final IProtocolFilter filter, final String reason) throws IOException {
+        final RemoteReject reject = new RemoteReject(reason);
+        if (filter instanceof FilterChain) return ((FilterChain) filter).encodeFrame(reject);
+        return MessageCodec.encodeFrame(filter.prepareWrite(reject));
+    }
 
     /** Handles incoming calls */
     private final CallHandler callHandler;
 
+    /** Where we record our calls and traffic, shared with all connections of the call handler */
+    private final Metrics metrics;
+
     /** Filter, not really used */
     private final IProtocolFilter filter;
 
+    /** The filter, if it works on frames */
+    private final FilterChain filterChain;
+
     /** Listen for connection status messages */
     private final List<IConnectionHandlerListener> listeners = new LinkedList<IConnectionHandlerListener>();
 
-    /** Used to write messages (over the network) */
-    private ObjectOutputStream output;
+    /** Proxies we built for remote instances, only built while holding the lock of the map */
+    private final ConcurrentMap<RemoteInstance, ProxyReference> remoteInstanceProxys = new ConcurrentHashMap<RemoteInstance, ProxyReference>();
+
+    /** Proxies that were collected, to be removed and released */
+    private final ReferenceQueue<Object> droppedProxies = new ReferenceQueue<Object>();
+
+    /** Leases the peer holds on our objects */
+    private final Leases leases;
+
+    /** How long (in ns) leases last unless they are renewed */
+    private volatile long leaseDuration = DEFAULT_LEASE_DURATION;
+
+    /** Periodic release, renewal and expiry of leases, once there are any (written holding this) */
+    private volatile ScheduledFuture<?> leaseCheck = null;
+
+    /** When we last renewed our leases, and expired those of the peer (only used by the lease check) */
+    private long lastRenewal = System.nanoTime();
+
+    private long lastExpiry = System.nanoTime();
+
+    /** All calls we sent and for which we still wait for a return, by call ID */
+    private final ConcurrentMap<Long, RemoteFuture<Object>> pendingCalls = new ConcurrentHashMap<Long, RemoteFuture<Object>>();
+
+    /** Set once the connection died, no new calls will be accepted afterwards */
+    private volatile boolean closed = false;
 
-    /** Send lock */
-    private final Lock sendChannelLock = new ReentrantLock();
+    /** Why the peer rejected the connection, if it did */
+    private volatile String rejection = null;
 
-    /** ? */
-    private final Map<RemoteInstance, Object> remoteInstanceProxys = new HashMap<RemoteInstance, Object>();
+    /** Why we closed the connection, if we did so for a reason */
+    private volatile String closeReason = null;
 
-    /** Contains queues to all waiting threads */
-    private final List<BlockingQueue<RemoteReturn>> remoteReturnsQueues = new LinkedList<BlockingQueue<RemoteReturn>>();
+    /** When (System.nanoTime()) we last received anything */
+    private volatile long lastReceived = System.nanoTime();
 
-    /** Queues lock */
-    private final Lock returnQueuesLock = new ReentrantLock();
+    /** When we last sent or received anything but a heartbeat */
+    private volatile long lastActivity = System.nanoTime();
+
+    /** When we last pinged the peer */
+    private volatile long lastPing = System.nanoTime();
+
+    /** How often (in ns) we want to hear from the peer, 0 if we don't check */
+    private volatile long heartbeatInterval = 0;
+
+    /** Number of intervals we may not hear from the peer before we give up */
+    private volatile int maxMissedHeartbeats = 3;
+
+    /** After how long (in ns) without activity we close the connection, 0 if never */
+    private volatile long idleTimeout = 0;
+
+    /** Periodic check of heartbeats and idle time, if any (guarded by this) */
+    private ScheduledFuture<?> livenessCheck = null;
+
+    /** Calls of the peer we are executing or about to, by call ID */
+    private final ConcurrentMap<Long, Delegator> runningCalls = new ConcurrentHashMap<Long, Delegator>();
+
+    /** Number of calls of the peer we are executing */
+    private final AtomicInteger inFlightCalls = new AtomicInteger(0);
+
+    /** Max. number of calls of the peer we execute at the same time, 0 if unlimited */
+    private volatile int maxInFlightCalls = 0;
 
     /** Sockets we talk with */
     private final Socket socket;
 
-    /** ThreadPool the all the delegator threads */
-    private final Executor threadPool;
-    
-    /** Our cache */
-    private Cache cache = new Cache();
+    /** Indices of the methods we call on the peer, by remote interface name and method */
+    private final ConcurrentMap<String, ConcurrentMap<Method, MethodIndex>> methodIndices = new ConcurrentHashMap<String, ConcurrentMap<Method, MethodIndex>>();
 
+    /** Next free method index */
+    private final AtomicInteger nextMethodIndex = new AtomicInteger(0);
 
-    private ConnectionHandler(final Socket socket, final CallHandler callHandler,
-                              final IProtocolFilter filter) {
-        this.callHandler = callHandler;
-        this.socket = socket;
-        this.filter = filter;
-        
-        /** Create a daemonic thread factory */
-        this.threadPool = Executors.newCachedThreadPool(new ThreadFactory() {
-            public Thread newThread(Runnable r) {
-                final Thread t = new Thread(r);
-                t.setDaemon(true);
-                return t;
-            }
-        });
+    /** Methods the peer calls on us, by the index it assigned; only grown by the reading thread */
+    private volatile MethodInvoker[] boundMethods = new MethodInvoker[16];
 
-        // Create the output stream
-        try {
-            this.output = new ObjectOutputStream(this.socket.getOutputStream());
-            this.output.flush();
+    /** Call names of the bound methods, by index */
+    private volatile String[] boundMethodNames = new String[16];
 
-            sendMessage(new RemoteBeacon(0));
-            sendMessage(new RemoteBeacon(1));
-            sendMessage(new RemoteBeacon(2));
+    /** Metrics of the bound methods, by index */
+    private volatile MethodMetrics[] boundMethodMetrics = new MethodMetrics[16];
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    /** Bytes written to the connection, including frame lengths */
+    private final AtomicLong bytesSent = new AtomicLong(0);
+
+    /** Bytes read from the connection, including frame lengths */
+    private final AtomicLong bytesReceived = new AtomicLong(0);
+
+    /** Streams we send, by ID */
+    private final ConcurrentMap<Long, StreamSource> streamSources = new ConcurrentHashMap<Long, StreamSource>();
+
+    /** Streams we receive, by the ID the peer gave them */
+    private final ConcurrentMap<Long, RemoteInputStream> remoteStreams = new ConcurrentHashMap<Long, RemoteInputStream>();
+
+    /** Next free stream ID */
+    private final AtomicLong nextStreamId = new AtomicLong(0);
+
+    /** Encoded frames waiting to be written */
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /** Set while some thread writes the outbound frames */
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+
+    /** How long (in ns) a writer may wait for more frames before writing a batch */
+    private volatile long maxWriteLatency = 0;
+
+    /** Writes the queued frames, for messages the reading thread must not write itself */
+    private final Runnable flusher = new Runnable() {
+        public void run() {
+            try {
+                flushOutbound();
+            } catch (final IOException e) {
+                // The connection is closed by now
+            }
         }
+    };
+
+
+    /**
+     * @param socket
+     * @param callHandler
+     * @param filter
+     */
+    protected ConnectionHandler(final Socket socket, final CallHandler callHandler,
+                                final IProtocolFilter filter) {
+        this.callHandler = callHandler;
+        this.socket = socket;
+        this.filter = filter;
+        this.filterChain = filter instanceof FilterChain ? (FilterChain) filter : null;
+        this.leases = new Leases(callHandler);
+        this.metrics = callHandler.getMetrics();
+        this.metrics.connectionOpened(this);
     }
 
     /**
@@ -184,6 +425,13 @@ public class ConnectionHandler implements Runnable {
         this.listeners.add(listener);
     }
 
+    /**
+     * Closes the connection. Pending calls fail and listeners are notified.
+     *
+     * @throws IOException
+     */
+    public abstract void close() throws IOException;
+
     /**
      * @return .
      */
@@ -192,380 +440,1333 @@ public class ConnectionHandler implements Runnable {
     }
 
     /**
-     * @param listener
+     * @return True once the connection is gone.
      */
-    public void removeConnectionHandlerListener(final IConnectionHandlerListener listener) {
-        this.listeners.remove(listener);
+    public boolean isClosed() {
+        return this.closed;
     }
 
-    /* (non-Javadoc)
-     * @see java.lang.Runnable#run()
+    /**
+     * @return Number of calls sent on this connection still waiting for their return.
      */
-    public void run() {
-        try {
-            // Check if the socket is already connected.
-            if (!this.socket.isConnected()) {
-                Thread.sleep(500);
-            }
-
-            // First, try to obtain the input stream for this connection
-            final InputStream inputStream = this.socket.getInputStream();
-
-            // Now try to create a OIS. NOTE: THIS WILL BLOCK UNTIL THE OIS STREAM HEADER HAS BEEN READ! OOS HAS
-            // TO WRITE BEFORE THAT.
-            final ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(inputStream));
-
-            // Socket might be disconnected in the meantime, check that.
-
-            Object objFromStream = null;
-
-            while (this.socket.isConnected()) {
-                // Try to read a object from the stream, but only wait half a second
-                try {
-                    objFromStream = input.readUnshared();
-                } catch (StreamCorruptedException e) {
-                    Thread.sleep(250);
-                    continue;
-                }
-
-                // Convert object to a remote message using the filter
-                final IRemoteMessage remoteMessage = this.filter.readObject(objFromStream);
-
-                // Check if the incoming message is a remote call we are supposed to handle
-                if (remoteMessage instanceof RemoteCall) {
-                    final RemoteCall remoteCall = (RemoteCall) remoteMessage;
-                    remoteCall.handler = this;
-
-                    // In case there are arguments attached to the call ...
-                    if (remoteCall.getArgs() != null) {
-
-                        // We check if any of these arguments is a remote instance, in that case we're using a proxy,
-                        // otherwise the argument should have been serialized and is used directly.
-                        for (int n = 0; n < remoteCall.getArgs().length; n++) {
-                            final Object arg = remoteCall.getArgs()[n];
-                            if (arg instanceof RemoteInstance) {
-                                final RemoteInstance remoteInstance = (RemoteInstance) arg;
-                                remoteCall.getArgs()[n] = getProxyFromRemoteInstance(remoteInstance);
-                            }
-                        }
-                    }
-
-                    // Okay, in order not to block we create a delegator thread.
-                    // This thread executes the requested function
-                    this.threadPool.execute(new DelegatorThread(this, remoteCall));
-                    continue;
-                }
-
-                // Handle returns
-                if (remoteMessage instanceof RemoteReturn) {
-
-                    // In case we have a new return value add this to our remote returns, the appropriate
-                    // call will remove and use it...
-                    final RemoteReturn remoteReturn = (RemoteReturn) remoteMessage;
-
+    public int getPendingCallCount() {
+        return this.pendingCalls.size();
+    }
 
-                    this.returnQueuesLock.lock();
-                    try {
-                        for (BlockingQueue<RemoteReturn> queue : this.remoteReturnsQueues) {
-                            final boolean offer = queue.offer(remoteReturn);
-                            if (!offer)
-                                System.err.println("Error storing remote return. One of your remote answers might never arrive.");
-                        }
-                    } finally {
-                        this.returnQueuesLock.unlock();
-                    }
+    /**
+     * @return Number of calls of the peer we are executing (or are about to).
+     */
+    public int getExecutingCallCount() {
+        return this.inFlightCalls.get();
+    }
 
-                    continue;
-                }
+    /**
+     * @return Bytes sent over this connection.
+     */
+    public long getBytesSent() {
+        return this.bytesSent.get();
+    }
 
-                // Handle beacons
-                if (remoteMessage instanceof RemoteBeacon) {
-                    continue;
-                }
+    /**
+     * @return Bytes received over this connection.
+     */
+    public long getBytesReceived() {
+        return this.bytesReceived.get();
+    }
 
-                // We should never, ever see this !
-                throw new LipeRMIException("Unknown IRemoteMessage type"); //$NON-NLS-1$
-            }
+    /**
+     * @param unit
+     * @return How often we want to hear from the peer, 0 if we don't check.
+     */
+    public long getHeartbeatInterval(final TimeUnit unit) {
+        return unit.convert(this.heartbeatInterval, TimeUnit.NANOSECONDS);
+    }
 
-        } catch (final Exception e) {
-            // Decision depends on type of the exceptions
-            if (!(e instanceof EOFException)) e.printStackTrace();
+    /**
+     * Makes sure we hear from the peer regularly. Whenever we didn't hear from it for an
+     * interval, we ping it (any peer answers pings). If we don't hear from it for
+     * maxMissed intervals, the connection is considered dead: it is closed, failing all
+     * pending calls, instead of waiting for TCP to notice.
+     *
+     * @param interval 0 to turn heartbeats off.
+     * @param unit
+     * @param maxMissed Number of intervals without news before we give up.
+     */
+    public void setHeartbeat(final long interval, final TimeUnit unit, final int maxMissed) {
+        if (maxMissed < 1) throw new IllegalArgumentException("At least one heartbeat must be allowed to be missed."); //$NON-NLS-1$
 
-            // Try to close the socket
-            try {
-                this.socket.close();
-            } catch (final IOException e1) {
-                //
-            }
+        this.heartbeatInterval = unit.toNanos(interval);
+        this.maxMissedHeartbeats = maxMissed;
+        scheduleLivenessCheck();
+    }
 
-            // Make all return-awaiters wake up
-            this.returnQueuesLock.lock();
-            try {
-                for (BlockingQueue<RemoteReturn> queue : this.remoteReturnsQueues) {
-                    // FIXME: A really nasty hack to provoke an exception in the listening threads ...
-                    queue.offer((RemoteReturn) new Object());
-                }
-            } catch (ClassCastException ee) {
-                // silently fail
-            } finally {
-                this.returnQueuesLock.unlock();
-            }
+    /**
+     * @param unit
+     * @return After how long without activity the connection is closed, 0 if never.
+     */
+    public long getIdleTimeout(final TimeUnit unit) {
+        return unit.convert(this.idleTimeout, TimeUnit.NANOSECONDS);
+    }
 
-            // Tell all listeners
-            for (final IConnectionHandlerListener listener : this.listeners) {
-                listener.connectionClosed();
-            }
-        } catch (final Throwable t) {
-            t.printStackTrace();
-        }
+    /**
+     * Closes the connection once neither side used it for a while. Heartbeats don't
+     * count as use, the connection is not closed while calls or streams are running.
+     *
+     * @param timeout 0 to keep idle connections open.
+     * @param unit
+     */
+    public void setIdleTimeout(final long timeout, final TimeUnit unit) {
+        this.idleTimeout = unit.toNanos(timeout);
+        scheduleLivenessCheck();
     }
 
+    /**
+     * @return Number of our objects the peer holds a lease on.
+     */
+    public int getLeaseCount() {
+        return this.leases.size();
+    }
 
-    private class DelegatorThread extends Thread {
-        private final ConnectionHandler connectionHandler;
-        private final RemoteCall remoteCall;
+    /**
+     * @return Number of proxies of the peer's objects we hold (or dropped only recently).
+     */
+    public int getRemoteProxyCount() {
+        return this.remoteInstanceProxys.size();
+    }
 
-        public DelegatorThread(ConnectionHandler connectionHandler, RemoteCall remoteCall) {
-            this.connectionHandler = connectionHandler;
-            this.remoteCall = remoteCall;
-            this.setDaemon(true);
+    /**
+     * @param unit
+     * @return How long leases last unless they are renewed.
+     */
+    public long getLeaseDuration(final TimeUnit unit) {
+        return unit.convert(this.leaseDuration, TimeUnit.NANOSECONDS);
+    }
 
-            this.setName("Delegator");
-        }
+    /**
+     * Sets how long the peer's leases on our auto exported objects last unless it renews
+     * them, and how often we renew ours (every half duration). Both ends of a connection
+     * should use the same duration.
+     *
+     * @param duration
+     * @param unit
+     */
+    public void setLeaseDuration(final long duration, final TimeUnit unit) {
+        if (duration <= 0) throw new IllegalArgumentException("Leases must last."); //$NON-NLS-1$
 
-        @Override
-        public void run() {
-            RemoteReturn remoteReturn;
-            try {
-                // Try to delegate the local call to the call handler
-                remoteReturn = this.connectionHandler.getCallHandler().delegateCall(this.remoteCall);
+        this.leaseDuration = unit.toNanos(duration);
 
-                // And return the result
-                this.connectionHandler.sendMessage(remoteReturn);
-            } catch (final Exception e) {
-                e.printStackTrace();
-            }
+        synchronized (this) {
+            if (this.leaseCheck == null) return;
+            this.leaseCheck.cancel(false);
+            this.leaseCheck = null;
         }
+        scheduleLeaseCheck();
     }
 
-
-
-
-
     /**
-     * For a given remote instnace, try to get or construct the proper proxy.
-     *
-     * @param remoteInstance
-     * @return
+     * @return Max. number of calls of the peer executed at the same time, 0 if unlimited.
      */
-    private Object getProxyFromRemoteInstance(final RemoteInstance remoteInstance) {
-        Object proxy = this.remoteInstanceProxys.get(remoteInstance);
-        if (proxy == null) {
-            try {
-                proxy = CallProxy.buildProxy(remoteInstance, this);
-            } catch (final ClassNotFoundException e) {
-                e.printStackTrace();
-            }
-            this.remoteInstanceProxys.put(remoteInstance, proxy);
-        }
-        return proxy;
+    public int getMaxInFlightCalls() {
+        return this.maxInFlightCalls;
     }
 
     /**
-     * Try to locate a remote proxy instance for the given proxy object.
+     * Limits the number of calls of the peer executed at the same time. Calls beyond the
+     * limit fail with an {@link OverloadException} without being executed.
      *
-     * @param proxy
-     * @return
+     * @param max Max. number of calls, 0 for no limit.
      */
-    private RemoteInstance getRemoteInstanceFromProxy(final Object proxy) {
-        for (final RemoteInstance remoteInstance : this.remoteInstanceProxys.keySet()) {
-            if (this.remoteInstanceProxys.get(remoteInstance) == proxy)
-                return remoteInstance;
-        }
+    public void setMaxInFlightCalls(final int max) {
+        this.maxInFlightCalls = max;
+    }
 
-        return null;
+    /**
+     * @param listener
+     */
+    public void removeConnectionHandlerListener(final IConnectionHandlerListener listener) {
+        this.listeners.remove(listener);
     }
 
     /**
-     * Sends a message on the stream
+     * Handles a frame read from the connection.
      *
-     * @param remoteMessage
+     * @param payload The frame's payload (after its length). Only valid until the method
+     * returns, its position and limit may change.
      * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws LipeRMIException
+     * @see net.sf.lipermi.call.MessageCodec
      */
-    public void sendMessage(final IRemoteMessage remoteMessage) throws IOException {
+    protected void frameReceived(final ByteBuffer payload) throws IOException,
+                                                          ClassNotFoundException,
+                                                          LipeRMIException {
+        final int size = payload.remaining() + 4;
+        final long start = System.nanoTime();
 
-        // Don't synchronize on the whole object (deadlock in complex scenarios), rather sync.
-        // for a single call
-        this.sendChannelLock.lock();
-        if (this.output == null) {
-            this.output = new ObjectOutputStream(this.socket.getOutputStream());
-        }
-
-        final Object objToWrite = this.filter.prepareWrite(remoteMessage);
+        final IRemoteMessage remoteMessage;
+        if (this.filterChain != null) remoteMessage = this.filterChain.decodeFrame(payload);
+        else remoteMessage = this.filter.readObject(MessageCodec.decodePayload(payload));
 
-        // Send and flush our message.
-        this.output.reset();
-        this.output.writeUnshared(objToWrite);
-        this.output.flush();
+        this.metrics.frameDecoded(size, System.nanoTime() - start);
+        this.bytesReceived.addAndGet(size);
 
-        this.sendChannelLock.unlock();
+        handleMessage(remoteMessage);
     }
 
     /**
-     * Invoke a method at the remote party
+     * Handles an object read from the connection.
      *
-     * @param proxy
-     * @param method
-     * @param args
-     * @return
-     * @throws Throwable
+     * @param objFromStream
+     * @throws LipeRMIException
      */
-    @SuppressWarnings("boxing")
-    final Object remoteInvocation(final Object proxy, final Method method,
-                                  final Object[] args) throws Throwable {
+    protected void messageReceived(final Object objFromStream) throws LipeRMIException {
+        // Convert object to a remote message using the filter
+        handleMessage(this.filter.readObject(objFromStream));
+    }
 
-        // Obtain current call ID
-        final Long id = callId.getAndIncrement();
+    /**
+     * Handles a message read from the connection.
+     *
+     * @param remoteMessage
+     * @throws LipeRMIException
+     */
+    private void handleMessage(final IRemoteMessage remoteMessage) throws LipeRMIException {
+        this.lastReceived = System.nanoTime();
+        if (!(remoteMessage instanceof RemoteBeacon)) this.lastActivity = this.lastReceived;
+
+        // Check if the incoming message is a remote call we are supposed to handle
+        if (remoteMessage instanceof RemoteCall) {
+            final RemoteCall remoteCall = (RemoteCall) remoteMessage;
+            remoteCall.handler = this;
+
+            // The first calls of a method tell us which method its index stands for
+            if (remoteCall.getMethodID() != null)
+                bindMethod(remoteCall.getMethodIndex(), remoteCall.getRemoteInstance().getClassName(), remoteCall.getMethodID());
+
+            // In case there are arguments attached to the call ...
+            if (remoteCall.getArgs() != null) {
+
+                // We check if any of these arguments is a remote instance, in that case we're using a proxy,
+                // otherwise the argument should have been serialized and is used directly.
+                for (int n = 0; n < remoteCall.getArgs().length; n++) {
+                    final Object arg = remoteCall.getArgs()[n];
+                    if (arg instanceof RemoteInstance) {
+                        final RemoteInstance remoteInstance = (RemoteInstance) arg;
+                        remoteCall.getArgs()[n] = getProxyFromRemoteInstance(remoteInstance);
+                    } else if (arg instanceof RemoteStream) {
+                        remoteCall.getArgs()[n] = importStream((RemoteStream) arg);
+                    }
+                }
+            }
 
-        // Obtain remote instance if we have any ...
-        RemoteInstance remoteInstance = getRemoteInstanceFromProxy(proxy);
+            // Calls beyond our in-flight limit are rejected right away
+            final int max = this.maxInFlightCalls;
+            if (this.inFlightCalls.incrementAndGet() > max && max > 0) {
+                this.inFlightCalls.decrementAndGet();
+                sendOverloaded(remoteCall, "Too many calls in flight, call rejected."); //$NON-NLS-1$
+                return;
+            }
 
-        // ... or create a new one.
-        if (remoteInstance == null) {
-            remoteInstance = new RemoteInstance(0, proxy.getClass().getInterfaces()[0].getName());
+            // Okay, in order not to block we hand the call to the dispatch executor, which
+            // executes the requested function. If it is overloaded we tell the caller right away.
+            final Long id = Long.valueOf(remoteCall.getCallID());
+            final Delegator delegator = new Delegator(remoteCall, id);
+            this.runningCalls.put(id, delegator);
+            try {
+                this.callHandler.getDispatchExecutor().execute(delegator);
+            } catch (final RejectedExecutionException e) {
+                this.runningCalls.remove(id);
+                this.inFlightCalls.decrementAndGet();
+                sendOverloaded(remoteCall, "Server overloaded, call rejected."); //$NON-NLS-1$
+            }
+            return;
         }
 
-        // Will eventually contain the remote answer ...
-        final BlockingQueue<RemoteReturn> ourReturnQueue = new LinkedBlockingQueue<RemoteReturn>();
-
-        //  add our queue to the list of queues.
-        this.returnQueuesLock.lock();
-        this.remoteReturnsQueues.add(ourReturnQueue);
-        this.returnQueuesLock.unlock();
-
-
-        // If we have args, check if we should wrap them also
-        if (args != null) {
-            
-            // 1. Auto export if parameter type permits
-            final Class<?>[] parameterTypes = method.getParameterTypes();
-            for (int n = 0; n < parameterTypes.length; n++) {
-                Class<?> class1 = parameterTypes[n];
-
-                // TODO: Why is it done like this, wouldn't an exception be thrown when 
-                // an paramter is an interface and it was alrady 
-                if (class1.isInterface() && args[n] != null) {
-                    this.getCallHandler().exportObject(class1, args[n]);
-                }
+        // Handle returns
+        if (remoteMessage instanceof RemoteReturn) {
+
+            // Hand the return directly to the call waiting for it. Returns nobody waits for
+            // anymore are dropped.
+            RemoteReturn remoteReturn = (RemoteReturn) remoteMessage;
+            if (remoteReturn.getReturn() instanceof RemoteStream)
+                remoteReturn = new RemoteReturn(false, importStream((RemoteStream) remoteReturn.getReturn()), remoteReturn.getCallID());
+
+            final RemoteFuture<Object> future = this.pendingCalls.remove(Long.valueOf(remoteReturn.getCallID()));
+            if (future != null) {
+                completeCall(future, remoteReturn);
+            } else if (remoteReturn.getReturn() instanceof RemoteInstance) {
+                release((RemoteInstance) remoteReturn.getReturn());
+            } else {
+                closeStreams(remoteReturn.getReturn());
             }
 
-            // 2. Get remote references
-            for (int n = 0; n < args.length; n++) {
-                final RemoteInstance remoteRef = this.getCallHandler().getRemoteReference(args[n]);
-                if (remoteRef != null) {
-                    args[n] = remoteRef;
-                }
-            }
+            return;
         }
 
-        // Extract a method id and assemble a call (why the fuck 15?)
-        final String methodId = method.toString().substring(15);
-        final String methodIDShort = CallHandler.generateCallName(methodId);
-        final long callID = CallHandler.generateCAllID(methodIDShort);
-        
-        IRemoteMessage remoteCall = null;
-        
-        // Cache the method ID
-        if(getCache().hasMethodID(remoteInstance.getClassName(), methodIDShort, callID)) {
-            remoteCall = new RemoteCall(remoteInstance, null, callID, args, id);            
-        } else {
-            getCache().getMethodID(remoteInstance.getClassName(), methodIDShort, callID);
-            remoteCall = new RemoteCall(remoteInstance, methodIDShort, callID, args, id);
+        // Hand chunks to the streams reading them, chunks of streams closed already are dropped
+        if (remoteMessage instanceof RemoteChunk) {
+            final RemoteChunk chunk = (RemoteChunk) remoteMessage;
+            final Long id = Long.valueOf(chunk.getStreamID());
+            final RemoteInputStream stream = chunk.isLast() ? this.remoteStreams.remove(id) : this.remoteStreams.get(id);
+            if (stream != null) stream.received(chunk);
+            return;
         }
-        
 
-        // now really send the call over the network ...
-        sendMessage(remoteCall);
+        // Let our streams send more, or stop them
+        if (remoteMessage instanceof RemoteCredit) {
+            final RemoteCredit credit = (RemoteCredit) remoteMessage;
+            final Long id = Long.valueOf(credit.getStreamID());
+            final StreamSource source = credit.isCancel() ? this.streamSources.remove(id) : this.streamSources.get(id);
+            if (source == null) return;
 
+            if (credit.isCancel()) source.cancel();
+            else source.grant(credit.getCredit());
+            return;
+        }
 
-        // And wait for a return until either we get one or until we are disconnected.
-        RemoteReturn remoteReturn = null;
-        boolean bReturned = false;
+        // The peer gave up waiting for a call
+        if (remoteMessage instanceof RemoteCancel) {
+            final Delegator delegator = this.runningCalls.remove(Long.valueOf(((RemoteCancel) remoteMessage).getCallID()));
+            if (delegator != null) delegator.cancel();
+            return;
+        }
 
+        // The peer dropped a proxy of one of our objects
+        if (remoteMessage instanceof RemoteRelease) {
+            final RemoteRelease release = (RemoteRelease) remoteMessage;
+            this.leases.released(release.getInstanceID(), release.getReferences());
+            return;
+        }
 
-        do {
-            RemoteReturn ret = null;
+        // The peer still uses proxies of our objects
+        if (remoteMessage instanceof RemoteRenew) {
+            this.leases.renewed(((RemoteRenew) remoteMessage).getInstanceIDs(), this.leaseDuration);
+            return;
+        }
 
-            // Take something
+        // The peer does not admit us and is about to close the connection
+        if (remoteMessage instanceof RemoteReject) {
+            this.rejection = ((RemoteReject) remoteMessage).getReason();
             try {
-                ret = ourReturnQueue.take();
-            } catch (ClassCastException e) {
-                // The ClassCastHack exception is generated as we stored an object in there in case of an error.
-                throw new SocketException("Conncetion to remote host closed.");
+                close();
+            } catch (final IOException e) {
+                //
             }
+            return;
+        }
 
-
-            // Check if this answer is really the one we are looking for
-            if (ret.getCallID() == id) {
-                bReturned = true;
-                remoteReturn = ret;
+        // Answer pings, so the peer knows we're alive
+        if (remoteMessage instanceof RemoteBeacon) {
+            if (((RemoteBeacon) remoteMessage).getId() == RemoteBeacon.PING) {
+                sendFromReader(new RemoteBeacon(RemoteBeacon.PONG));
             }
-        } while (this.socket.isConnected() && !bReturned);
+            return;
+        }
 
+        // We should never, ever see this !
+        throw new LipeRMIException("Unknown IRemoteMessage type"); //$NON-NLS-1$
+    }
 
-        // Remove our queue from the list of all queues
-        this.returnQueuesLock.lock();
-        this.remoteReturnsQueues.remove(ourReturnQueue);
-        this.returnQueuesLock.unlock();
+    /**
+     * Must be called by subclasses once the connection died. Fails all pending calls and
+     * tells all listeners. Only the first call has any effect.
+     */
+    protected void disconnected() {
+        if (!failPendingCalls()) return;
 
+        this.metrics.connectionClosed(this);
 
-        // In the connection was closed
-        if ((!this.socket.isConnected() && !bReturned) || remoteReturn == null)
-            throw new LipeRMIException("Connection aborted"); //$NON-NLS-1$
+        synchronized (this) {
+            if (this.livenessCheck != null) this.livenessCheck.cancel(false);
+            if (this.leaseCheck != null) this.leaseCheck.cancel(false);
+        }
 
-        // In case the other party threw an exception
-        if (remoteReturn.isThrowing() && remoteReturn.getReturn() instanceof Throwable)
-            throw ((Throwable) remoteReturn.getReturn());
+        // The peer's leases end with the connection
+        this.leases.close();
+
+        // Nobody waits for the calls we execute anymore
+        for (final Long id : this.runningCalls.keySet()) {
+            final Delegator delegator = this.runningCalls.remove(id);
+            if (delegator != null) delegator.cancel();
+        }
 
+        // Stop all streams
+        for (final Long id : this.streamSources.keySet()) {
+            final StreamSource source = this.streamSources.remove(id);
+            if (source != null) source.cancel();
+        }
+        for (final Long id : this.remoteStreams.keySet()) {
+            final RemoteInputStream stream = this.remoteStreams.remove(id);
+            if (stream != null) stream.failed(new SocketException("Connection to remote host closed.")); //$NON-NLS-1$
+        }
 
-        // In case the answer was a remote instance
-        if (remoteReturn.getReturn() instanceof RemoteInstance) {
+        // Tell all listeners
+        for (final IConnectionHandlerListener listener : this.listeners) {
+            listener.connectionClosed();
+        }
+    }
+
+    /**
+     * Writes queued frames (each including its length) to the connection, preferably
+     * with as few writes as possible. Only one thread at a time calls this method.
+     *
+     * @param frames Frames written completely have to be removed from the queue, and
+     * should be released to the {@link BufferPool#getDefault() default pool}.
+     * @return False if the connection can't take more data right now. The handler is
+     * then told through {@link #writeBlocked()}.
+     * @throws IOException
+     * @see net.sf.lipermi.call.MessageCodec#encodeFrame(Object)
+     */
+    protected abstract boolean writeFrames(Queue<ByteBuffer> frames) throws IOException;
+
+    /**
+     * Called after {@link #writeFrames(Queue)} returned false, once other threads can
+     * write again. The handler has to call {@link #flushOutbound()} once the connection
+     * takes more data. Waiting for that any earlier would race with writers still
+     * holding the connection.
+     */
+    protected void writeBlocked() {
+        //
+    }
+
+    /**
+     * Writes the queued frames unless another thread is already doing so.
+     *
+     * @throws IOException
+     */
+    protected void flushOutbound() throws IOException {
+        flush(false);
+    }
+
+    /**
+     * Whoever gets to write also writes all frames queued by others in the meantime,
+     * so concurrent senders share one write instead of queueing up on a lock.
+     *
+     * @param linger If true, wait up to maxWriteLatency for more frames first.
+     * @throws IOException
+     */
+    private void flush(final boolean linger) throws IOException {
+        boolean first = true;
+
+        while (!this.outbound.isEmpty() && this.writing.compareAndSet(false, true)) {
+            boolean blocked = false;
+            try {
+                final long latency = this.maxWriteLatency;
+                if (linger && first && latency > 0) LockSupport.parkNanos(latency);
+                first = false;
+
+                blocked = !writeFrames(this.outbound);
+            } catch (final IOException e) {
+                ByteBuffer frame;
+                while ((frame = this.outbound.poll()) != null) {
+                    BufferPool.getDefault().release(frame);
+                }
+                try {
+                    close();
+                } catch (final IOException e1) {
+                    //
+                }
+                throw e;
+            } finally {
+                this.writing.set(false);
+            }
+
+            if (blocked) {
+                writeBlocked();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Executes an incoming call and sends its return. Calls cancelled by the caller are
+     * dropped if they didn't start yet, and interrupted otherwise.
+     */
+    private class Delegator implements Runnable {
+        private final RemoteCall remoteCall;
+
+        /** ID of the call, as key of the running calls */
+        private final Long id;
+
+        /** Thread executing the call, while it does (guarded by this) */
+        private Thread thread = null;
+
+        /** Set once the caller cancelled the call (guarded by this) */
+        private boolean cancelled = false;
+
+        public Delegator(RemoteCall remoteCall, Long id) {
+            this.remoteCall = remoteCall;
+            this.id = id;
+        }
+
+        public void run() {
+            try {
+                synchronized (this) {
+                    if (this.cancelled) {
+                        closeArgs(this.remoteCall, null);
+                        return;
+                    }
+                    this.thread = Thread.currentThread();
+                }
+
+                final MethodMetrics methodMetrics = getBoundMethodMetrics(this.remoteCall.getMethodIndex());
+                final long start = System.nanoTime();
+
+                RemoteReturn remoteReturn = null;
+                try {
+                    // Try to delegate the local call to the call handler
+                    remoteReturn = getCallHandler().delegateCall(this.remoteCall);
+                } finally {
+                    if (methodMetrics != null) methodMetrics.callExecuted(System.nanoTime() - start, remoteReturn == null || remoteReturn.isThrowing());
+
+                    // Argument streams only live as long as the call, unless they are returned
+                    closeArgs(this.remoteCall, remoteReturn == null ? null : remoteReturn.getReturn());
+
+                    // Don't let a late cancel interrupt whatever the thread does next
+                    synchronized (this) {
+                        this.thread = null;
+                        if (this.cancelled) Thread.interrupted();
+                    }
+                }
+
+                // And return the result, unless the caller doesn't want one
+                if (!this.remoteCall.isOneWay()) {
+                    sendMessage(remoteReturn);
+                } else if (remoteReturn.isThrowing()) {
+                    getCallHandler().oneWayCallFailed(getCallName(this.remoteCall), (Throwable) remoteReturn.getReturn());
+                }
+            } catch (final Exception e) {
+                e.printStackTrace();
+            } finally {
+                ConnectionHandler.this.runningCalls.remove(this.id);
+                ConnectionHandler.this.inFlightCalls.decrementAndGet();
+            }
+        }
+
+        synchronized void cancel() {
+            this.cancelled = true;
+            if (this.thread != null) this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Closes the streams passed to a call once it was executed, or won't be. Senders of
+     * streams not read to the end are told to stop.
+     *
+     * @param remoteCall
+     * @param keep A stream to leave open (the return value), or null.
+     */
+    private void closeArgs(final RemoteCall remoteCall, final Object keep) {
+        if (remoteCall.getArgs() == null) return;
+
+        for (final Object arg : remoteCall.getArgs()) {
+            if (arg != keep) closeStreams(arg);
+        }
+    }
+
+    /**
+     * Answers a call we can't execute because we are overloaded. One way calls are
+     * reported locally instead.
+     *
+     * @param remoteCall
+     * @param message
+     */
+    private void sendOverloaded(final RemoteCall remoteCall, final String message) {
+        closeArgs(remoteCall, null);
+
+        if (remoteCall.isOneWay()) {
+            this.callHandler.oneWayCallFailed(getCallName(remoteCall), new OverloadException(message));
+            return;
+        }
+
+        sendFromReader(new RemoteReturn(true, new OverloadException(message), remoteCall.getCallID()));
+    }
+
+
+
+
+
+    /**
+     * Fails all calls still waiting for a return. Called once the connection is gone.
+     *
+     * @return false if the calls had already been failed.
+     */
+    private synchronized boolean failPendingCalls() {
+        if (this.closed) return false;
+        this.closed = true;
+
+        for (final Long id : this.pendingCalls.keySet()) {
+            final RemoteFuture<Object> future = this.pendingCalls.remove(id);
+            if (future != null) {
+                future.fail(closedException());
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return What calls fail with once the connection is gone.
+     */
+    private Exception closedException() {
+        final String reason = this.rejection;
+        if (reason != null) return new OverloadException(reason);
+
+        final String closeReason = this.closeReason;
+        return new SocketException(closeReason != null ? closeReason : "Connection to remote host closed."); //$NON-NLS-1$
+    }
+
+    /**
+     * (Re)starts the liveness check with the current settings, or stops it.
+     */
+    private synchronized void scheduleLivenessCheck() {
+        if (this.livenessCheck != null) this.livenessCheck.cancel(false);
+        this.livenessCheck = null;
+
+        final long interval = this.heartbeatInterval;
+        final long idle = this.idleTimeout;
+        if (this.closed || (interval <= 0 && idle <= 0)) return;
 
-            final RemoteInstance remoteInstanceReturn = (RemoteInstance) remoteReturn.getReturn();
+        // Check often enough to ping in time and to reap idle connections at most half a timeout late
+        final long period = interval > 0 && idle > 0 ? Math.min(interval, idle / 2) : interval > 0 ? interval : idle / 2;
+        this.livenessCheck = Heartbeats.schedule(this, Math.max(period, 1));
+    }
+
+    /**
+     * Called periodically once heartbeats or an idle timeout are set. Closes the
+     * connection if the peer went silent or the connection is idle, and pings the peer
+     * if we didn't hear from it for a while.
+     */
+    void checkLiveness() {
+        if (this.closed) return;
+
+        final long now = System.nanoTime();
+        final long interval = this.heartbeatInterval;
+        final long silent = now - this.lastReceived;
+
+        if (interval > 0 && silent > interval * this.maxMissedHeartbeats) {
+            closeFor("No heartbeat from remote host for " + silent / 1000000 + " ms, connection closed."); //$NON-NLS-1$ //$NON-NLS-2$
+            return;
+        }
+
+        final long idle = this.idleTimeout;
+        if (idle > 0 && now - this.lastActivity > idle && isQuiet()) {
+            closeFor("Connection idle for " + (now - this.lastActivity) / 1000000 + " ms, closed."); //$NON-NLS-1$ //$NON-NLS-2$
+            return;
+        }
+
+        if (interval > 0 && silent >= interval && now - this.lastPing >= interval) {
+            this.lastPing = now;
+            Heartbeats.send(new Runnable() {
+                public void run() {
+                    try {
+                        sendMessage(new RemoteBeacon(RemoteBeacon.PING));
+                    } catch (final IOException e) {
+                        //
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts the periodic lease check, unless it runs already.
+     */
+    private synchronized void scheduleLeaseCheck() {
+        if (this.leaseCheck != null || this.closed) return;
+
+        this.leaseCheck = Heartbeats.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                checkLeases();
+            }
+        }, Math.max(Math.min(MAX_LEASE_CHECK_PERIOD, this.leaseDuration / 4), 1));
+    }
+
+    /**
+     * Called periodically once we hold proxies of the peer's objects or it holds leases
+     * on ours. Releases the proxies that were collected, renews the leases on those still
+     * in use and expires the leases the peer did not renew in time.
+     */
+    void checkLeases() {
+        if (this.closed) return;
+
+        final long now = System.nanoTime();
+        final long duration = this.leaseDuration;
+        final List<IRemoteMessage> messages = new ArrayList<IRemoteMessage>();
+
+        // Forget dropped proxies, unless they were replaced by a new one in the meantime, and release them
+        Reference<?> dropped;
+        while ((dropped = this.droppedProxies.poll()) != null) {
+            final ProxyReference reference = (ProxyReference) dropped;
+            this.remoteInstanceProxys.remove(reference.remoteInstance, reference);
+
+            final long instanceId = reference.remoteInstance.getInstanceID();
+            if (instanceId != 0) messages.add(new RemoteRelease(instanceId, reference.received.get()));
+        }
 
-            // Check if we already have a proper proxy?
-            Object proxyReturn = this.remoteInstanceProxys.get(remoteInstanceReturn);
+        if (now - this.lastRenewal >= duration / 2) {
+            this.lastRenewal = now;
 
-            // In case there is none, build a proper proxy
-            if (proxyReturn == null) {
-                proxyReturn = CallProxy.buildProxy(remoteInstanceReturn, this);
-                this.remoteInstanceProxys.put(remoteInstanceReturn, proxyReturn);
+            final List<Long> used = new ArrayList<Long>();
+            for (final ProxyReference reference : this.remoteInstanceProxys.values()) {
+                final long instanceId = reference.remoteInstance.getInstanceID();
+                if (instanceId != 0 && reference.get() != null) used.add(Long.valueOf(instanceId));
             }
 
-            // and return it
-            return proxyReturn;
+            if (!used.isEmpty()) {
+                final long[] instanceIds = new long[used.size()];
+                for (int i = 0; i < instanceIds.length; i++) {
+                    instanceIds[i] = used.get(i).longValue();
+                }
+                messages.add(new RemoteRenew(instanceIds));
+            }
+        }
+
+        if (now - this.lastExpiry >= duration / 4) {
+            this.lastExpiry = now;
+            this.metrics.leasesExpired(this.leases.expire(now));
+        }
+
+        if (messages.isEmpty()) return;
+
+        Heartbeats.send(new Runnable() {
+            public void run() {
+                try {
+                    for (final IRemoteMessage message : messages) {
+                        sendMessage(message);
+                    }
+                } catch (final IOException e) {
+                    // The peer's leases end with the connection anyway
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases a reference to one of the peer's objects we won't build a proxy for.
+     *
+     * @param remoteInstance
+     */
+    private void release(final RemoteInstance remoteInstance) {
+        if (remoteInstance.getInstanceID() == 0) return;
+
+        sendFromReader(new RemoteRelease(remoteInstance.getInstanceID(), 1));
+    }
+
+    /**
+     * Returns the remote instance to send to the peer for an object, auto exporting the
+     * object if necessary, and counts the reference on the peer's lease.
+     *
+     * @param cInterface Interface to auto export the object with, or null to only look it up.
+     * @param obj
+     * @return The remote instance, or null if the object isn't exported.
+     * @throws LipeRMIException
+     */
+    RemoteInstance leaseReference(final Class<?> cInterface, final Object obj)
+                                                                             throws LipeRMIException {
+        final RemoteInstance remoteInstance = this.callHandler.acquireReference(cInterface, obj);
+        if (remoteInstance == null || remoteInstance.getInstanceID() == 0) return remoteInstance;
+
+        this.leases.granted(remoteInstance, this.leaseDuration);
+        if (this.leaseCheck == null) scheduleLeaseCheck();
+        return remoteInstance;
+    }
+
+    /**
+     * @return True if no calls or streams are running.
+     */
+    private boolean isQuiet() {
+        return this.pendingCalls.isEmpty() && this.inFlightCalls.get() == 0 && this.streamSources.isEmpty() && this.remoteStreams.isEmpty();
+    }
+
+    /**
+     * Closes the connection, failing pending calls with the given reason.
+     *
+     * @param reason
+     */
+    private void closeFor(final String reason) {
+        this.closeReason = reason;
+        try {
+            close();
+        } catch (final IOException e) {
+            //
+        }
+    }
+
+    /**
+     * Forgets about a call we don't wait for anymore. If it didn't return yet, the
+     * peer is told to cancel it.
+     * 
+     * @param id
+     */
+    void callCancelled(final long id) {
+        if (this.pendingCalls.remove(Long.valueOf(id)) == null) return;
+
+        try {
+            sendMessage(new RemoteCancel(id));
+        } catch (final IOException e) {
+            // The call is gone with the connection anyway
+        }
+    }
+
+    /**
+     * Completes the future of a call with the return we got for it.
+     * 
+     * @param future
+     * @param remoteReturn
+     */
+    private void completeCall(final RemoteFuture<Object> future, final RemoteReturn remoteReturn) {
+        // In case the other party threw an exception
+        if (remoteReturn.isThrowing() && remoteReturn.getReturn() instanceof Throwable) {
+            future.fail((Throwable) remoteReturn.getReturn());
+            return;
+        }
+
+        // In case the answer was a remote instance get a proper proxy for it
+        if (remoteReturn.getReturn() instanceof RemoteInstance) {
+            try {
+                future.complete(getOrBuildProxy((RemoteInstance) remoteReturn.getReturn()));
+            } catch (final ClassNotFoundException e) {
+                future.fail(e);
+            }
+            return;
         }
 
         // Just return the result (should be serializable at this point)
-        return remoteReturn.getReturn();
+        future.complete(remoteReturn.getReturn());
     }
 
     /**
-     * Returns the call handler associated with this connection
+     * For a given remote instnace, try to get or construct the proper proxy.
+     *
+     * @param remoteInstance
+     * @return
+     */
+    private Object getProxyFromRemoteInstance(final RemoteInstance remoteInstance) {
+        try {
+            return getOrBuildProxy(remoteInstance);
+        } catch (final ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the proxy for a remote instance, building it on first use. Proxies in use
+     * are found without locking, only one thread at a time builds proxies, so there is
+     * never more than one per instance.
+     *
+     * @param remoteInstance
+     * @return .
+     * @throws ClassNotFoundException
+     */
+    private Object getOrBuildProxy(final RemoteInstance remoteInstance) throws ClassNotFoundException {
+        ProxyReference reference = this.remoteInstanceProxys.get(remoteInstance);
+        Object proxy = reference == null ? null : reference.get();
+
+        if (proxy == null) {
+            synchronized (this.remoteInstanceProxys) {
+                reference = this.remoteInstanceProxys.get(remoteInstance);
+                proxy = reference == null ? null : reference.get();
+
+                // A proxy collected already releases what it received itself
+                if (proxy == null) {
+                    proxy = CallProxy.buildProxy(remoteInstance, this);
+                    reference = new ProxyReference(proxy, remoteInstance, this.droppedProxies);
+                    this.remoteInstanceProxys.put(remoteInstance, reference);
+                }
+            }
+        }
+
+        // As we hold the proxy, it can't be released before it counted this
+        reference.received.incrementAndGet();
+
+        if (this.leaseCheck == null) scheduleLeaseCheck();
+        return proxy;
+    }
+
+    /**
+     * Sends a message on the stream. The message might be written by another sender,
+     * batched together with its own.
+     *
+     * @param remoteMessage
+     * @throws IOException
+     */
+    public void sendMessage(final IRemoteMessage remoteMessage) throws IOException {
+        enqueue(remoteMessage);
+        flush(true);
+    }
+
+    /**
+     * Sends a message from the thread reading the connection, which must not write: if
+     * the peer's reader is stuck writing to us as well, both would wait for each other
+     * forever. The message is only queued. The next sender takes it along, or else a
+     * heartbeat sender writes it.
+     *
+     * @param remoteMessage
+     */
+    private void sendFromReader(final IRemoteMessage remoteMessage) {
+        try {
+            enqueue(remoteMessage);
+        } catch (final IOException e) {
+            // The connection is gone, nobody waits for the message anymore
+            return;
+        }
+
+        Heartbeats.send(this.flusher);
+    }
+
+    /**
+     * Encodes a message and queues it for the next flush.
+     *
+     * @param remoteMessage
+     * @throws IOException
+     */
+    private void enqueue(final IRemoteMessage remoteMessage) throws IOException {
+        if (this.closed) {
+            if (this.rejection != null) throw new OverloadException(this.rejection);
+            throw new SocketException("Socket closed"); //$NON-NLS-1$
+        }
+
+        if (!(remoteMessage instanceof RemoteBeacon)) this.lastActivity = System.nanoTime();
+
+        final long start = System.nanoTime();
+        final ByteBuffer frame;
+        if (this.filterChain != null) frame = this.filterChain.encodeFrame(remoteMessage);
+        else frame = MessageCodec.encodeFrame(this.filter.prepareWrite(remoteMessage));
+
+        final int size = frame.remaining();
+        this.metrics.frameEncoded(size, System.nanoTime() - start);
+        this.bytesSent.addAndGet(size);
+        this.outbound.add(frame);
+
+        // Streams the message announced may follow it now
+        if (!this.streamSources.isEmpty()) startStreams(remoteMessage);
+    }
+
+    /**
+     * Registers a stream to send, to be started once the message carrying it was sent.
      * 
-     * @return The call handler
+     * @param stream An input stream or a readable channel.
+     * @return What to send in place of the stream.
      */
-    public CallHandler getCallHandler() {
-        return this.callHandler;
+    RemoteStream exportStream(final Object stream) {
+        final long id = this.nextStreamId.incrementAndGet();
+        this.streamSources.put(Long.valueOf(id), new StreamSource(this, id, stream));
+        return new RemoteStream(id, !(stream instanceof InputStream));
+    }
+
+    /**
+     * Creates the stream receiving a stream the peer sends.
+     * 
+     * @param remoteStream
+     * @return An input stream, or a channel if the peer sent one.
+     */
+    private Object importStream(final RemoteStream remoteStream) {
+        final RemoteInputStream stream = new RemoteInputStream(this, remoteStream.getStreamID());
+        this.remoteStreams.put(Long.valueOf(remoteStream.getStreamID()), stream);
+        if (this.closed) stream.failed(new SocketException("Connection to remote host closed.")); //$NON-NLS-1$
+
+        return remoteStream.isChannel() ? Channels.newChannel(stream) : stream;
+    }
+
+    /**
+     * Starts the streams announced by a message.
+     * 
+     * @param remoteMessage
+     */
+    private void startStreams(final IRemoteMessage remoteMessage) {
+        if (remoteMessage instanceof RemoteCall && ((RemoteCall) remoteMessage).getArgs() != null) {
+            for (final Object arg : ((RemoteCall) remoteMessage).getArgs()) {
+                startStream(arg);
+            }
+        } else if (remoteMessage instanceof RemoteReturn) {
+            startStream(((RemoteReturn) remoteMessage).getReturn());
+        }
+    }
+
+    private void startStream(final Object value) {
+        if (!(value instanceof RemoteStream)) return;
+
+        final StreamSource source = this.streamSources.get(Long.valueOf(((RemoteStream) value).getStreamID()));
+        if (source != null) source.start();
+    }
+
+    /**
+     * Closes a value if it is a stream we receive.
+     * 
+     * @param value
+     */
+    private static void closeStreams(final Object value) {
+        try {
+            if (value instanceof RemoteInputStream || value instanceof ReadableByteChannel)
+                ((Closeable) value).close();
+        } catch (final IOException e) {
+            //
+        }
+    }
+
+    /**
+     * Gives the sender of a stream more credit.
+     * 
+     * @param streamId
+     * @param credit Number of bytes, or -1 to cancel the stream.
+     */
+    void sendCredit(final long streamId, final int credit) {
+        try {
+            sendMessage(new RemoteCredit(streamId, credit));
+        } catch (final IOException e) {
+            // The stream fails anyway once the connection is gone
+        }
+    }
+
+    /**
+     * Called once a stream we receive was closed by its reader.
+     * 
+     * @param streamId
+     * @param cancel Tell the sender to stop.
+     */
+    void streamClosed(final long streamId, final boolean cancel) {
+        this.remoteStreams.remove(Long.valueOf(streamId));
+
+        // Streams nobody reads are also closed by the reading thread
+        if (cancel) sendFromReader(new RemoteCredit(streamId, -1));
+    }
+
+    /**
+     * Called once a stream we send has been sent completely (or failed).
+     * 
+     * @param streamId
+     */
+    void streamFinished(final long streamId) {
+        this.streamSources.remove(Long.valueOf(streamId));
+    }
+
+    /**
+     * Sets how long a sender may hold back a write to batch it with messages of other
+     * threads. The default of 0 never waits; messages are still batched whenever they are
+     * queued while another thread is writing.
+     *
+     * @param time
+     * @param unit
+     */
+    public void setMaxWriteLatency(final long time, final TimeUnit unit) {
+        this.maxWriteLatency = unit.toNanos(time);
+    }
+
+    /**
+     * @param unit
+     * @return The max. time a write is held back, see {@link #setMaxWriteLatency(long, TimeUnit)}.
+     */
+    public long getMaxWriteLatency(final TimeUnit unit) {
+        return unit.convert(this.maxWriteLatency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Invoke a method of the global instance a proxy stands for at the remote party
+     *
+     * @param proxy
+     * @param method
+     * @param args
+     * @param timeout Deadline of the call in ns, 0 to use the one annotated.
+     * @param oneWay True to make calls of void methods one way.
+     * @return
+     * @throws Throwable
+     */
+    final Object remoteInvocation(final Object proxy, final Method method,
+                                  final Object[] args, final long timeout,
+                                  final boolean oneWay) throws Throwable {
+        final RemoteInstance remoteInstance = new RemoteInstance(0, proxy.getClass().getInterfaces()[0].getName());
+        return remoteInvocation(remoteInstance, method, args, timeout, oneWay);
+    }
+
+    /**
+     * Invoke a method of the given remote instance and wait for its return. One way
+     * calls return once they are sent.
+     *
+     * @param remoteInstance
+     * @param method
+     * @param args
+     * @param timeout Deadline of the call in ns, 0 to use the one annotated.
+     * @param oneWay True to make calls of void methods one way.
+     * @return
+     * @throws Throwable
+     */
+    final Object remoteInvocation(final RemoteInstance remoteInstance, final Method method,
+                                  final Object[] args, final long timeout,
+                                  final boolean oneWay) throws Throwable {
+        final MethodIndex methodIndex = getMethodIndex(remoteInstance.getClassName(), method);
+        if (methodIndex.oneWay || oneWay && method.getReturnType() == void.class) {
+            invokeOneWay(remoteInstance, methodIndex, args);
+            return null;
+        }
+
+        final RemoteFuture<Object> future = remoteInvocationAsync(remoteInstance, methodIndex, args, timeout);
+
+        // Wait until either the return arrived, the deadline passed or the connection died.
+        try {
+            return future.await();
+        } finally {
+            // Futures done already are no longer pending
+            if (!future.isDone()) callCancelled(future.getCallID());
+        }
+    }
+
+    /**
+     * Invoke a method of the given remote instance without waiting for its return.
+     *
+     * @param remoteInstance
+     * @param method
+     * @param args
+     * @param timeout Deadline of the call in ns, 0 to use the one annotated.
+     * @return A future completed once the return arrived.
+     * @throws IOException
+     * @throws LipeRMIException
+     */
+    final RemoteFuture<Object> remoteInvocationAsync(final RemoteInstance remoteInstance,
+                                                     final Method method, final Object[] args,
+                                                     final long timeout)
+                                                                        throws IOException,
+                                                                                              LipeRMIException {
+        return remoteInvocationAsync(remoteInstance, getMethodIndex(remoteInstance.getClassName(), method), args, timeout);
+    }
+
+    /**
+     * @see #remoteInvocationAsync(RemoteInstance, Method, Object[], long)
+     */
+    @SuppressWarnings("boxing")
+    private RemoteFuture<Object> remoteInvocationAsync(final RemoteInstance remoteInstance,
+                                                       final MethodIndex methodIndex,
+                                                       final Object[] args, final long timeout)
+                                                                                               throws IOException,
+                                                                                               LipeRMIException {
+
+        // Obtain current call ID
+        final long start = System.nanoTime();
+        final Long id = callId.getAndIncrement();
+        prepareArgs(methodIndex, args);
+
+        // Assemble a call, telling the peer the call name of the method until it knows the index
+        final boolean announce = !methodIndex.announced;
+        final IRemoteMessage remoteCall = new RemoteCall(remoteInstance, announce ? methodIndex.callName : null, methodIndex.index, args, id);
+
+        // Register the call before sending it, the return might arrive before sendMessage() returns. In
+        // case the connection died in the meantime, the call would never be completed.
+        final RemoteFuture<Object> future = new RemoteFuture<Object>(this, id, methodIndex.metrics, start);
+        this.pendingCalls.put(id, future);
+        if (this.closed) {
+            this.pendingCalls.remove(id);
+            if (this.rejection != null) throw new OverloadException(this.rejection);
+            throw new SocketException("Connection to remote host closed."); //$NON-NLS-1$
+        }
+
+        // now really send the call over the network ...
+        boolean sent = false;
+        try {
+            sendMessage(remoteCall);
+            sent = true;
+        } finally {
+            if (!sent) this.pendingCalls.remove(id);
+        }
+
+        // Calls queued from now on are sent after this one, so they can omit the call name
+        if (announce) methodIndex.announced = true;
+
+        // Calls with a deadline fail once it passed
+        final long deadline = timeout > 0 ? timeout : methodIndex.timeout;
+        if (deadline > 0) future.expireAfter(deadline);
+
+        return future;
+    }
+
+    /**
+     * Sends a call nobody waits for. Calls that can't be sent are reported to the
+     * call handler, the caller never sees them fail.
+     *
+     * @param remoteInstance
+     * @param methodIndex
+     * @param args
+     */
+    private void invokeOneWay(final RemoteInstance remoteInstance, final MethodIndex methodIndex,
+                              final Object[] args) {
+        final long start = System.nanoTime();
+        boolean sent = false;
+        try {
+            if (this.closed) {
+                if (this.rejection != null) throw new OverloadException(this.rejection);
+                throw new SocketException("Connection to remote host closed."); //$NON-NLS-1$
+            }
+
+            prepareArgs(methodIndex, args);
+
+            final boolean announce = !methodIndex.announced;
+            sendMessage(new RemoteCall(remoteInstance, announce ? methodIndex.callName : null, methodIndex.index, args, callId.getAndIncrement(), true));
+            if (announce) methodIndex.announced = true;
+            sent = true;
+        } catch (final Exception e) {
+            this.callHandler.oneWayCallFailed(methodIndex.metrics.getName(), e);
+        } finally {
+            methodIndex.metrics.callCompleted(System.nanoTime() - start, !sent);
+        }
+    }
+
+    /**
+     * Replaces the streams and objects to export among the args of a call by their
+     * remote references.
+     *
+     * @param methodIndex
+     * @param args
+     * @throws IOException
+     * @throws LipeRMIException
+     */
+    private void prepareArgs(final MethodIndex methodIndex, final Object[] args)
+                                                                               throws IOException,
+                                                                               LipeRMIException {
+        if (args != null) {
+
+            // 0. Streams are sent in chunks after the call
+            for (int n = 0; n < args.length; n++) {
+                if (StreamSource.isStream(args[n])) args[n] = exportStream(args[n]);
+            }
+            
+            // 1. Auto export if parameter type permits, and send exported objects as remote references
+            final Class<?>[] parameterTypes = methodIndex.parameterTypes;
+            for (int n = 0; n < args.length; n++) {
+                if (args[n] == null || args[n] instanceof RemoteStream) continue;
+
+                final Class<?> class1 = parameterTypes[n];
+                final RemoteInstance remoteRef = leaseReference(class1.isInterface() ? class1 : null, args[n]);
+                if (remoteRef != null) {
+                    args[n] = remoteRef;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index of a method we call on the peer, assigning one on first use.
+     * 
+     * @param className Name of the remote interface.
+     * @param method
+     * @return .
+     */
+    private MethodIndex getMethodIndex(final String className, final Method method) {
+        ConcurrentMap<Method, MethodIndex> indices = this.methodIndices.get(className);
+        if (indices == null) {
+            final ConcurrentMap<Method, MethodIndex> created = new ConcurrentHashMap<Method, MethodIndex>();
+            indices = this.methodIndices.putIfAbsent(className, created);
+            if (indices == null) indices = created;
+        }
+
+        MethodIndex methodIndex = indices.get(method);
+        if (methodIndex == null) {
+            final String callName = DispatchTable.getCallName(method);
+            final MethodIndex created = new MethodIndex(this.nextMethodIndex.getAndIncrement(), callName, method.getParameterTypes(), getTimeout(method), getOneWay(method), this.metrics.getMethod(className, callName));
+            methodIndex = indices.putIfAbsent(method, created);
+            if (methodIndex == null) methodIndex = created;
+        }
+
+        return methodIndex;
     }
-    
+
+    /**
+     * @param method
+     * @return The deadline (in ns) annotated to the method or its interface, 0 if none.
+     */
+    private static long getTimeout(final Method method) {
+        Timeout timeout = method.getAnnotation(Timeout.class);
+        if (timeout == null) timeout = method.getDeclaringClass().getAnnotation(Timeout.class);
+        if (timeout == null) return 0;
+
+        return timeout.unit().toNanos(timeout.value());
+    }
+
     /**
-     * Returns our cache. 
+     * @param method
+     * @return True if the method or its interface is annotated one way.
+     */
+    private static boolean getOneWay(final Method method) {
+        final boolean annotated = method.isAnnotationPresent(OneWay.class);
+        if (annotated && method.getReturnType() != void.class)
+            throw new IllegalArgumentException("One way methods must return void: " + method); //$NON-NLS-1$
+
+        return annotated || method.getReturnType() == void.class && method.getDeclaringClass().isAnnotationPresent(OneWay.class);
+    }
+
+    /**
+     * Binds a method index the peer assigned to the method of an exported interface.
+     * Only called by the reading thread.
      * 
-     * @return The cache.
+     * @param index
+     * @param className Name of the exported interface.
+     * @param callName
+     * @throws LipeRMIException
      */
-    public Cache getCache() {
-        return this.cache;
+    private void bindMethod(final int index, final String className, final String callName)
+                                                                                             throws LipeRMIException {
+        if (index < 0 || index >= MAX_METHOD_INDEX)
+            throw new LipeRMIException("Invalid method index " + index); //$NON-NLS-1$
+
+        MethodInvoker[] methods = this.boundMethods;
+        String[] names = this.boundMethodNames;
+        MethodMetrics[] metrics = this.boundMethodMetrics;
+        if (index >= methods.length) {
+            final int length = Math.max(methods.length * 2, index + 1);
+            methods = Arrays.copyOf(methods, length);
+            names = Arrays.copyOf(names, length);
+            metrics = Arrays.copyOf(metrics, length);
+        }
+
+        methods[index] = this.callHandler.getMethodInvoker(className, callName);
+        names[index] = callName;
+        metrics[index] = this.metrics.getMethod(className, callName);
+
+        this.boundMethodNames = names;
+        this.boundMethodMetrics = metrics;
+        this.boundMethods = methods;
+    }
+
+    /**
+     * @param index
+     * @return The method the peer bound to the index, or null.
+     */
+    MethodInvoker getBoundMethod(final int index) {
+        final MethodInvoker[] methods = this.boundMethods;
+        return index >= 0 && index < methods.length ? methods[index] : null;
+    }
+
+    /**
+     * @param index
+     * @return Metrics of the method the peer bound to the index, or null.
+     */
+    MethodMetrics getBoundMethodMetrics(final int index) {
+        final MethodMetrics[] metrics = this.boundMethodMetrics;
+        return index >= 0 && index < metrics.length ? metrics[index] : null;
+    }
+
+    /**
+     * @param index
+     * @return The call name the peer bound to the index, or null.
+     */
+    String getBoundMethodName(final int index) {
+        final String[] names = this.boundMethodNames;
+        return index >= 0 && index < names.length ? names[index] : null;
+    }
+
+    /**
+     * @param remoteCall A call we received.
+     * @return Interface and call name of the method called.
+     */
+    private String getCallName(final RemoteCall remoteCall) {
+        return remoteCall.getRemoteInstance().getClassName() + "#" + getBoundMethodName(remoteCall.getMethodIndex()); //$NON-NLS-1$
+    }
+
+    /**
+     * Returns the call handler associated with this connection
+     * 
+     * @return The call handler
+     */
+    public CallHandler getCallHandler() {
+        return this.callHandler;
     }
-    
 }
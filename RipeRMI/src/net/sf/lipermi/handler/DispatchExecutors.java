@@ -0,0 +1,146 @@
+/*
+ * DispatchExecutors.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for executors a {@link CallHandler} can dispatch incoming calls with.
+ * Whatever executor is used, it should reject calls it can't take anymore
+ * (by throwing a {@link RejectedExecutionException}); the caller then receives an
+ * {@link net.sf.lipermi.exception.OverloadException OverloadException}.
+ * 
+ * Any other executor works as well, for example one starting a virtual thread
+ * per task on JVMs that have them, ideally wrapped with {@link #limit(Executor, int)}.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.CallHandler#CallHandler(Executor)
+ */
+public class DispatchExecutors {
+
+    /** Creates daemonic delegator threads */
+    private static class DelegatorThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public DelegatorThreadFactory() {
+            //
+        }
+
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "Delegator-" + this.count.incrementAndGet()); //$NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /** Rejects tasks once too many of them are queued or running */
+    private static class LimitedExecutor implements Executor {
+        private final Executor executor;
+
+        private final Semaphore permits;
+
+        LimitedExecutor(final Executor executor, final int maxOutstanding) {
+            this.executor = executor;
+            this.permits = new Semaphore(maxOutstanding);
+        }
+
+        public void execute(final Runnable command) {
+            if (!this.permits.tryAcquire())
+                throw new RejectedExecutionException("Too many outstanding tasks."); //$NON-NLS-1$
+
+            try {
+                this.executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            command.run();
+                        } finally {
+                            LimitedExecutor.this.permits.release();
+                        }
+                    }
+                });
+            } catch (final RuntimeException e) {
+                this.permits.release();
+                throw e;
+            }
+        }
+    }
+
+    private DispatchExecutors() {
+        //
+    }
+
+    /**
+     * Creates a pool of at most <code>threads</code> daemon threads, which die
+     * when idle, queuing at most <code>queueSize</code> calls.
+     * 
+     * @param threads
+     * @param queueSize
+     * @return .
+     */
+    public static ExecutorService newBoundedExecutor(final int threads, final int queueSize) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new DelegatorThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates a work-stealing pool with the given parallelism, accepting at most
+     * <code>maxOutstanding</code> calls at a time. Remote methods calling back
+     * into the remote party block their thread, so this pool is best suited for
+     * methods that don't.
+     * 
+     * @param parallelism
+     * @param maxOutstanding
+     * @return .
+     */
+    public static Executor newWorkStealingExecutor(final int parallelism, final int maxOutstanding) {
+        return limit(new ForkJoinPool(parallelism), maxOutstanding);
+    }
+
+    /**
+     * Limits the number of tasks the given executor has queued or running at a
+     * time. Further tasks are rejected.
+     * 
+     * @param executor
+     * @param maxOutstanding
+     * @return .
+     */
+    public static Executor limit(final Executor executor, final int maxOutstanding) {
+        return new LimitedExecutor(executor, maxOutstanding);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * DispatchTable.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable table of all methods callable on an exported interface, built once
+ * when the first object of the interface is exported. When a peer announces the index
+ * it uses for a method, the connection looks up the {@link MethodInvoker} here and binds
+ * it to the index; calls are then dispatched without any lookup by name or reflection.
+ * 
+ * The methods of the interface are invoked on the implementation (dynamic dispatch
+ * picks the implementing method), the public methods of Object are callable as well.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.CallHandler#getMethodInvoker(String, String)
+ */
+final class DispatchTable {
+
+    /**
+     * Returns the call name for a method, as sent with a call.
+     * 
+     * @param method
+     * @return .
+     */
+    static String getCallName(final Method method) {
+        // Extract a method id and assemble a call (why the fuck 15?)
+        return CallHandler.generateCallName(method.toString().substring(15));
+    }
+
+    /**
+     * Builds the table for an interface.
+     * 
+     * @param cInterface
+     * @return .
+     */
+    static DispatchTable create(final Class<?> cInterface) {
+        // Interface methods win over those of Object with the same name
+        final Map<String, Method> byName = new HashMap<String, Method>();
+        for (final Method method : Object.class.getMethods()) {
+            byName.put(getCallName(method), method);
+        }
+        for (final Method method : cInterface.getMethods()) {
+            byName.put(getCallName(method), method);
+        }
+
+        final Map<String, MethodInvoker> invokers = new HashMap<String, MethodInvoker>();
+        for (final Map.Entry<String, Method> entry : byName.entrySet()) {
+            try {
+                invokers.put(entry.getKey(), MethodInvoker.create(entry.getValue()));
+            } catch (final IllegalAccessException e) {
+                // Not callable then
+            }
+        }
+
+        return new DispatchTable(invokers);
+    }
+
+    /** All invokers by call name */
+    private final Map<String, MethodInvoker> byName;
+
+    private DispatchTable(final Map<String, MethodInvoker> byName) {
+        this.byName = byName;
+    }
+
+    /**
+     * @param callName
+     * @return The invoker of the method with the given call name, or null.
+     */
+    MethodInvoker getInvoker(final String callName) {
+        return this.byName.get(callName);
+    }
+}
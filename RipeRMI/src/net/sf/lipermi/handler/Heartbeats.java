@@ -0,0 +1,126 @@
+/*
+ * Heartbeats.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the liveness of all connections, expires calls past their deadline and
+ * checks leases from one shared timer thread. As writes may block on a dead connection, heartbeats (and
+ * cancels of expired calls) are sent from separate threads, so one dead connection
+ * can't hold up the timer.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.ConnectionHandler#setHeartbeat(long, TimeUnit, int)
+ * @see net.sf.lipermi.handler.ConnectionHandler#setIdleTimeout(long, TimeUnit)
+ */
+final class Heartbeats {
+
+    /** Runs the checks of all connections */
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "Heartbeats"); //$NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        // Most deadlines are cancelled because the call returned, don't keep them around
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Threads sending heartbeats */
+    private static final ExecutorService SENDERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "Heartbeat-" + this.count.incrementAndGet()); //$NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private Heartbeats() {
+        //
+    }
+
+    /**
+     * Checks the liveness of a connection periodically, until the check is cancelled.
+     * 
+     * @param connectionHandler
+     * @param period In ns.
+     * @return .
+     */
+    static ScheduledFuture<?> schedule(final ConnectionHandler connectionHandler,
+                                       final long period) {
+        return TIMER.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                connectionHandler.checkLiveness();
+            }
+        }, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs a task periodically, until it is cancelled.
+     * 
+     * @param task Must not block.
+     * @param period In ns.
+     * @return .
+     */
+    static ScheduledFuture<?> scheduleAtFixedRate(final Runnable task, final long period) {
+        return TIMER.scheduleAtFixedRate(task, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs a task once after a delay.
+     * 
+     * @param task Must not block.
+     * @param delay In ns.
+     * @return .
+     */
+    static ScheduledFuture<?> schedule(final Runnable task, final long delay) {
+        return TIMER.schedule(task, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends a heartbeat (or another message) without blocking the timer.
+     * 
+     * @param send
+     */
+    static void send(final Runnable send) {
+        SENDERS.execute(send);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Leases.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.lipermi.call.RemoteInstance;
+
+/**
+ * The leases the peer of a connection holds on our auto exported objects. Each
+ * reference to an object sent is counted, the peer releases them once it dropped its
+ * proxy and renews them while it keeps it. Leases released, expired or left when the
+ * connection closes are returned to the {@link CallHandler}, which unexports objects
+ * nobody holds a lease on anymore.
+ * 
+ * @author rb
+ */
+final class Leases {
+
+    /** The lease on one object */
+    private static final class Lease {
+        final RemoteInstance remoteInstance;
+
+        /** References sent and not released yet */
+        int references;
+
+        /** When (System.nanoTime()) the lease runs out unless it is renewed */
+        long expires;
+
+        Lease(final RemoteInstance remoteInstance) {
+            this.remoteInstance = remoteInstance;
+        }
+    }
+
+    private final CallHandler callHandler;
+
+    /** Leases by instance ID (guarded by this) */
+    private final Map<Long, Lease> leases = new HashMap<Long, Lease>();
+
+    /** Set once the connection closed, new references are returned right away (guarded by this) */
+    private boolean closed = false;
+
+    /**
+     * @param callHandler
+     */
+    Leases(final CallHandler callHandler) {
+        this.callHandler = callHandler;
+    }
+
+    /**
+     * Counts a reference about to be sent, acquired from the call handler before.
+     * 
+     * @param remoteInstance
+     * @param duration In ns.
+     */
+    void granted(final RemoteInstance remoteInstance, final long duration) {
+        synchronized (this) {
+            if (!this.closed) {
+                final Long id = Long.valueOf(remoteInstance.getInstanceID());
+                Lease lease = this.leases.get(id);
+                if (lease == null) {
+                    lease = new Lease(remoteInstance);
+                    this.leases.put(id, lease);
+                }
+                lease.references++;
+                lease.expires = System.nanoTime() + duration;
+                return;
+            }
+        }
+
+        this.callHandler.releaseReference(remoteInstance, 1);
+    }
+
+    /**
+     * The peer released references.
+     * 
+     * @param instanceId
+     * @param references
+     */
+    void released(final long instanceId, final int references) {
+        final RemoteInstance remoteInstance;
+        final int released;
+        synchronized (this) {
+            final Long id = Long.valueOf(instanceId);
+            final Lease lease = this.leases.get(id);
+            if (lease == null) return;
+
+            released = Math.min(references, lease.references);
+            lease.references -= released;
+            if (lease.references == 0) this.leases.remove(id);
+            remoteInstance = lease.remoteInstance;
+        }
+
+        this.callHandler.releaseReference(remoteInstance, released);
+    }
+
+    /**
+     * The peer still holds proxies of the given instances.
+     * 
+     * @param instanceIds
+     * @param duration In ns.
+     */
+    synchronized void renewed(final long[] instanceIds, final long duration) {
+        final long expires = System.nanoTime() + duration;
+        for (final long instanceId : instanceIds) {
+            final Lease lease = this.leases.get(Long.valueOf(instanceId));
+            if (lease != null) lease.expires = expires;
+        }
+    }
+
+    /**
+     * Ends all leases not renewed in time.
+     * 
+     * @param now
+     * @return Number of leases expired.
+     */
+    int expire(final long now) {
+        final List<Lease> expired = new ArrayList<Lease>();
+        synchronized (this) {
+            final Iterator<Lease> iterator = this.leases.values().iterator();
+            while (iterator.hasNext()) {
+                final Lease lease = iterator.next();
+                if (now - lease.expires < 0) continue;
+
+                iterator.remove();
+                expired.add(lease);
+            }
+        }
+
+        for (final Lease lease : expired) {
+            this.callHandler.releaseReference(lease.remoteInstance, lease.references);
+        }
+        return expired.size();
+    }
+
+    /**
+     * Ends all leases, the connection is gone.
+     */
+    void close() {
+        final List<Lease> left;
+        synchronized (this) {
+            this.closed = true;
+            left = new ArrayList<Lease>(this.leases.values());
+            this.leases.clear();
+        }
+
+        for (final Lease lease : left) {
+            this.callHandler.releaseReference(lease.remoteInstance, lease.references);
+        }
+    }
+
+    /**
+     * @return Number of objects the peer holds a lease on.
+     */
+    synchronized int size() {
+        return this.leases.size();
+    }
+}
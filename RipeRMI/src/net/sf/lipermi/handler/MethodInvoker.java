@@ -0,0 +1,313 @@
+/*
+ * MethodInvoker.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Invokes one method with a (target, arguments) signature. Where possible, a small class
+ * calling the method directly is generated once (by the LambdaMetafactory of Java 8 and
+ * later), so the JIT can inline the method into the invoker, and invocations skip the
+ * access checks and argument validation of {@link Method#invoke(Object, Object...)}.
+ * Otherwise (on Java 7, for methods with many parameters, or with types our class loader
+ * can't see) the method is invoked reflectively. Either way, exceptions thrown by the
+ * method are passed on unwrapped.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.DispatchTable
+ */
+public abstract class MethodInvoker {
+
+    /** Classes are generated for methods with at most that many parameters */
+    private static final int MAX_GENERATED_ARITY = 4;
+
+    /** Passed for methods without arguments */
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /** LambdaMetafactory.metafactory(), null before Java 8 */
+    private static final MethodHandle METAFACTORY = findMetafactory();
+
+    /** What generated classes implement, by number of parameters, for methods with results ... */
+    private static final Class<?>[] CALLS = { Call0.class, Call1.class, Call2.class, Call3.class, Call4.class };
+
+    /** ... and for void methods */
+    private static final Class<?>[] RUNS = { Run0.class, Run1.class, Run2.class, Run3.class, Run4.class };
+
+    interface Call0 {
+        Object call(Object target);
+    }
+
+    interface Call1 {
+        Object call(Object target, Object a);
+    }
+
+    interface Call2 {
+        Object call(Object target, Object a, Object b);
+    }
+
+    interface Call3 {
+        Object call(Object target, Object a, Object b, Object c);
+    }
+
+    interface Call4 {
+        Object call(Object target, Object a, Object b, Object c, Object d);
+    }
+
+    interface Run0 {
+        void run(Object target);
+    }
+
+    interface Run1 {
+        void run(Object target, Object a);
+    }
+
+    interface Run2 {
+        void run(Object target, Object a, Object b);
+    }
+
+    interface Run3 {
+        void run(Object target, Object a, Object b, Object c);
+    }
+
+    interface Run4 {
+        void run(Object target, Object a, Object b, Object c, Object d);
+    }
+
+    /**
+     * Creates an invoker for a method. Non-public methods are made accessible if possible.
+     * 
+     * @param method
+     * @return .
+     * @throws IllegalAccessException If the method is not accessible.
+     */
+    public static MethodInvoker create(final Method method) throws IllegalAccessException {
+        try {
+            method.setAccessible(true);
+        } catch (final SecurityException e) {
+            // Only public methods of public classes will work then
+        }
+
+        final Object function = generate(method);
+        if (function != null) return new Generated(method, function);
+
+        return new Reflective(method);
+    }
+
+    /** The method we call */
+    private final Method method;
+
+    MethodInvoker(final Method method) {
+        this.method = method;
+    }
+
+    /**
+     * @return The method invoked.
+     */
+    public Method getMethod() {
+        return this.method;
+    }
+
+    /**
+     * Invokes the method. Arguments of primitive parameters are unboxed, primitive
+     * return values are boxed, void methods return null.
+     * 
+     * @param target Object to call the method on.
+     * @param args Arguments, may be null if there are none.
+     * @return The return value.
+     * @throws Throwable Whatever the method threw. If the arguments don't fit, a
+     * {@link ClassCastException}, {@link NullPointerException} or {@link IllegalArgumentException}.
+     */
+    public abstract Object invoke(Object target, Object[] args) throws Throwable;
+
+    /**
+     * Calls the method through a class generated for it.
+     */
+    private static final class Generated extends MethodInvoker {
+        /** Implements one of CALLS or RUNS */
+        private final Object function;
+
+        private final int arity;
+
+        private final boolean isVoid;
+
+        Generated(final Method method, final Object function) {
+            super(method);
+            this.function = function;
+            this.arity = method.getParameterTypes().length;
+            this.isVoid = method.getReturnType() == void.class;
+        }
+
+        /* (non-Javadoc)
+         * @see net.sf.lipermi.handler.MethodInvoker#invoke(java.lang.Object, java.lang.Object[])
+         */
+        @Override
+        public Object invoke(final Object target, final Object[] args) throws Throwable {
+            final Object[] a = args == null ? NO_ARGS : args;
+            if (a.length != this.arity) throw new IllegalArgumentException("Wrong number of arguments: " + a.length); //$NON-NLS-1$
+
+            final Object f = this.function;
+            if (!this.isVoid) {
+                switch (a.length) {
+                case 0:
+                    return ((Call0) f).call(target);
+                case 1:
+                    return ((Call1) f).call(target, a[0]);
+                case 2:
+                    return ((Call2) f).call(target, a[0], a[1]);
+                case 3:
+                    return ((Call3) f).call(target, a[0], a[1], a[2]);
+                default:
+                    return ((Call4) f).call(target, a[0], a[1], a[2], a[3]);
+                }
+            }
+
+            switch (a.length) {
+            case 0:
+                ((Run0) f).run(target);
+                break;
+            case 1:
+                ((Run1) f).run(target, a[0]);
+                break;
+            case 2:
+                ((Run2) f).run(target, a[0], a[1]);
+                break;
+            case 3:
+                ((Run3) f).run(target, a[0], a[1], a[2]);
+                break;
+            default:
+                ((Run4) f).run(target, a[0], a[1], a[2], a[3]);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Calls the method reflectively.
+     */
+    private static final class Reflective extends MethodInvoker {
+        Reflective(final Method method) {
+            super(method);
+        }
+
+        /* (non-Javadoc)
+         * @see net.sf.lipermi.handler.MethodInvoker#invoke(java.lang.Object, java.lang.Object[])
+         */
+        @Override
+        public Object invoke(final Object target, final Object[] args) throws Throwable {
+            try {
+                return getMethod().invoke(target, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Generates a class calling the method.
+     * 
+     * @param method
+     * @return An instance of the class, implementing the interface of CALLS or RUNS matching
+     * the method, or null if none could be generated.
+     */
+    private static Object generate(final Method method) {
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        if (METAFACTORY == null || parameterTypes.length > MAX_GENERATED_ARITY) return null;
+
+        // The generated class casts to the declaring and parameter types, by name
+        if (!isLinkable(method.getDeclaringClass())) return null;
+        for (final Class<?> type : parameterTypes) {
+            if (!isLinkable(type)) return null;
+        }
+
+        // Arguments arrive boxed, the result leaves boxed
+        final boolean isVoid = method.getReturnType() == void.class;
+        final Class<?>[] argumentTypes = new Class<?>[parameterTypes.length + 1];
+        argumentTypes[0] = method.getDeclaringClass();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            argumentTypes[i + 1] = box(parameterTypes[i]);
+        }
+
+        final Class<?> returnType = isVoid ? void.class : Object.class;
+        final MethodType erased = MethodType.genericMethodType(argumentTypes.length).changeReturnType(returnType);
+        final MethodType instantiated = MethodType.methodType(returnType, argumentTypes);
+        final Class<?> function = isVoid ? RUNS[parameterTypes.length] : CALLS[parameterTypes.length];
+
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            final CallSite site = (CallSite) METAFACTORY.invokeWithArguments(lookup, isVoid ? "run" : "call", MethodType.methodType(function), erased, lookup.unreflect(method), instantiated); //$NON-NLS-1$ //$NON-NLS-2$
+            return site.getTarget().invokeWithArguments();
+        } catch (final Throwable e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param type
+     * @return True if generated classes can refer to the type.
+     */
+    private static boolean isLinkable(final Class<?> type) {
+        Class<?> c = type;
+        while (c.isArray()) {
+            c = c.getComponentType();
+        }
+        if (c.isPrimitive()) return true;
+        if (!Modifier.isPublic(c.getModifiers())) return false;
+
+        try {
+            return Class.forName(c.getName(), false, MethodInvoker.class.getClassLoader()) == c;
+        } catch (final ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param type
+     * @return The wrapper type of a primitive type, otherwise the type.
+     */
+    private static Class<?> box(final Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        return MethodType.methodType(type).wrap().returnType();
+    }
+
+    private static MethodHandle findMetafactory() {
+        try {
+            final Class<?> metafactory = Class.forName("java.lang.invoke.LambdaMetafactory"); //$NON-NLS-1$
+            final MethodType type = MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class, MethodType.class, MethodHandle.class, MethodType.class);
+            return MethodHandles.publicLookup().findStatic(metafactory, "metafactory", type); //$NON-NLS-1$
+        } catch (final Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * RemoteFuture.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.sf.lipermi.exception.CallTimeoutException;
+import net.sf.lipermi.metrics.MethodMetrics;
+
+/**
+ * The result of a remote call which has been sent but might not have returned yet.
+ * Futures are completed by the connection's reader thread as soon as the matching
+ * return arrives, or failed when the connection dies.
+ * 
+ * @author rb
+ * 
+ * @param <T> Type of the remote result
+ * @see net.sf.lipermi.net.Client#getAsyncGlobal(Class, Class)
+ */
+public class RemoteFuture<T> implements Future<T> {
+
+    /** Connection the call was sent on */
+    private final ConnectionHandler connectionHandler;
+
+    /** ID of the call we wait for */
+    private final long callID;
+
+    /** Where the round trip time is recorded */
+    private final MethodMetrics methodMetrics;
+
+    /** When (System.nanoTime()) the call was made */
+    private final long startTime;
+
+    /** Set once we have a result (written holding this), waiters wait on this */
+    private volatile boolean done = false;
+
+    /** Listeners to notify, created once the first is added */
+    private List<IRemoteFutureListener<? super T>> listeners = null;
+
+    private T result;
+
+    private Throwable failure;
+
+    private boolean cancelled = false;
+
+    /** Fails the call once its deadline passed, if it has one */
+    private ScheduledFuture<?> expiry = null;
+
+    RemoteFuture(final ConnectionHandler connectionHandler, final long callID,
+                 final MethodMetrics methodMetrics, final long startTime) {
+        this.connectionHandler = connectionHandler;
+        this.callID = callID;
+        this.methodMetrics = methodMetrics;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Adds a listener which is called once this future completes. If it has already
+     * completed, the listener is called immediately.
+     * 
+     * @param listener
+     */
+    public void addListener(final IRemoteFutureListener<? super T> listener) {
+        synchronized (this) {
+            if (!this.done) {
+                if (this.listeners == null) this.listeners = new LinkedList<IRemoteFutureListener<? super T>>();
+                this.listeners.add(listener);
+                return;
+            }
+        }
+
+        notifyListener(listener);
+    }
+
+    /**
+     * @return The ID of the call this future waits for.
+     */
+    public long getCallID() {
+        return this.callID;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#cancel(boolean)
+     */
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        if (!finish(null, new CancellationException("Remote call cancelled."), true)) return false; //$NON-NLS-1$
+
+        this.connectionHandler.callCancelled(this.callID);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#get()
+     */
+    public T get() throws InterruptedException, ExecutionException {
+        waitDone();
+        return report();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+     */
+    public T get(final long timeout, final TimeUnit unit) throws InterruptedException,
+                                                         ExecutionException, TimeoutException {
+        if (!waitDone(unit.toNanos(timeout)))
+            throw new TimeoutException("Remote call did not return in time."); //$NON-NLS-1$
+        return report();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#isCancelled()
+     */
+    public synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#isDone()
+     */
+    public boolean isDone() {
+        return this.done;
+    }
+
+    /**
+     * Waits for the result and throws the remote exception (or the reason the call
+     * failed locally) unwrapped. Used by blocking calls.
+     * 
+     * @return The result
+     * @throws Throwable
+     */
+    synchronized T await() throws Throwable {
+        waitDone();
+
+        if (this.failure != null) throw this.failure;
+        return this.result;
+    }
+
+    /**
+     * Fails the call with a {@link CallTimeoutException} and cancels it at the remote
+     * party unless it returned within the given time.
+     * 
+     * @param timeout In ns.
+     */
+    void expireAfter(final long timeout) {
+        final Runnable expire = new Runnable() {
+            @SuppressWarnings("boxing")
+            public void run() {
+                final String message = String.format("Remote call did not return within %d ms.", TimeUnit.NANOSECONDS.toMillis(timeout)); //$NON-NLS-1$
+                if (!fail(new CallTimeoutException(message))) return;
+
+                Heartbeats.send(new Runnable() {
+                    public void run() {
+                        RemoteFuture.this.connectionHandler.callCancelled(RemoteFuture.this.callID);
+                    }
+                });
+            }
+        };
+
+        synchronized (this) {
+            if (this.done) return;
+            this.expiry = Heartbeats.schedule(expire, timeout);
+        }
+    }
+
+    /**
+     * @param value
+     * @return true if this call completed the future.
+     */
+    boolean complete(final T value) {
+        return finish(value, null, false);
+    }
+
+    /**
+     * @param cause
+     * @return true if this call completed the future.
+     */
+    boolean fail(final Throwable cause) {
+        return finish(null, cause, false);
+    }
+
+    private boolean finish(final T value, final Throwable cause, final boolean cancel) {
+        final List<IRemoteFutureListener<? super T>> toNotify;
+
+        synchronized (this) {
+            if (this.done) return false;
+
+            this.result = value;
+            this.failure = cause;
+            this.cancelled = cancel;
+            this.done = true;
+
+            toNotify = this.listeners;
+            this.listeners = null;
+
+            if (this.expiry != null) this.expiry.cancel(false);
+            notifyAll();
+        }
+
+        this.methodMetrics.callCompleted(System.nanoTime() - this.startTime, cause != null);
+
+        if (toNotify == null) return true;
+        for (final IRemoteFutureListener<? super T> listener : toNotify) {
+            notifyListener(listener);
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits until the future is done. Unlike a latch, this allocates nothing.
+     * 
+     * @throws InterruptedException
+     */
+    private synchronized void waitDone() throws InterruptedException {
+        while (!this.done) {
+            wait();
+        }
+    }
+
+    /**
+     * @param timeout In ns.
+     * @return False if the future wasn't done in time.
+     * @throws InterruptedException
+     */
+    private synchronized boolean waitDone(final long timeout) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeout;
+        long left = timeout;
+        while (!this.done) {
+            if (left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+            left = deadline - System.nanoTime();
+        }
+        return true;
+    }
+
+    private void notifyListener(final IRemoteFutureListener<? super T> listener) {
+        try {
+            final Throwable cause;
+            final T value;
+            synchronized (this) {
+                cause = this.failure;
+                value = this.result;
+            }
+
+            if (cause == null) {
+                listener.completed(value);
+            } else {
+                listener.failed(cause);
+            }
+        } catch (final Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized T report() throws ExecutionException {
+        if (this.cancelled) throw (CancellationException) this.failure;
+        if (this.failure != null) throw new ExecutionException(this.failure);
+        return this.result;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * RemoteInputStream.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+
+import net.sf.lipermi.call.RemoteChunk;
+
+/**
+ * Receives a stream the peer passed to or returned from a remote method. Reads block
+ * until the next chunk arrived. The sender never sends more than the reader can buffer
+ * (a window of {@value StreamSource#WINDOW} bytes); as the reader consumes data, it gives
+ * the sender more credit. Closing the stream early makes the sender stop.
+ * 
+ * Streams passed to a method belong to the call: they are closed once the method
+ * returned (unless it returns the stream itself), so they have to be read before. Streams
+ * returned belong to the caller, who has to read them to the end or close them.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.call.RemoteStream
+ */
+public class RemoteInputStream extends InputStream {
+
+    private final ConnectionHandler connectionHandler;
+
+    private final long streamId;
+
+    /** Chunks received but not read yet */
+    private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+
+    /** Read position in the first chunk */
+    private int offset = 0;
+
+    /** Bytes buffered in all chunks */
+    private int buffered = 0;
+
+    /** Bytes read we didn't give credit for yet */
+    private int consumed = 0;
+
+    /** The last chunk arrived */
+    private boolean finished = false;
+
+    private boolean closed = false;
+
+    /** Why the stream ended early, reported once all data was read */
+    private IOException failure;
+
+    RemoteInputStream(final ConnectionHandler connectionHandler, final long streamId) {
+        this.connectionHandler = connectionHandler;
+        this.streamId = streamId;
+    }
+
+    /**
+     * @return The ID the sender gave the stream.
+     */
+    public long getStreamID() {
+        return this.streamId;
+    }
+
+    /**
+     * Called by the connection for each chunk of the stream.
+     * 
+     * @param chunk
+     */
+    synchronized void received(final RemoteChunk chunk) {
+        if (this.closed) return;
+
+        if (chunk.getLength() > 0) {
+            this.chunks.add(chunk.getData());
+            this.buffered += chunk.getLength();
+        }
+
+        if (chunk.isLast()) {
+            this.finished = true;
+            if (chunk.getError() != null) this.failure = new IOException("Remote stream failed: " + chunk.getError()); //$NON-NLS-1$
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Called by the connection once it is gone.
+     * 
+     * @param cause
+     */
+    synchronized void failed(final IOException cause) {
+        if (this.finished) return;
+
+        this.finished = true;
+        this.failure = cause;
+        notifyAll();
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) return 0;
+
+        int read = 0;
+        int credit = 0;
+
+        synchronized (this) {
+            while (this.buffered == 0 && !this.finished && !this.closed) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            if (this.closed) throw new IOException("Stream closed"); //$NON-NLS-1$
+            if (this.buffered == 0) {
+                if (this.failure != null) throw this.failure;
+                return -1;
+            }
+
+            // Copy from as many chunks as needed
+            while (read < len && this.buffered > 0) {
+                final byte[] chunk = this.chunks.getFirst();
+                final int count = Math.min(len - read, chunk.length - this.offset);
+                System.arraycopy(chunk, this.offset, b, off + read, count);
+
+                read += count;
+                this.offset += count;
+                this.buffered -= count;
+                if (this.offset == chunk.length) {
+                    this.chunks.removeFirst();
+                    this.offset = 0;
+                }
+            }
+
+            // Give credit once half the window was read
+            this.consumed += read;
+            if (this.consumed >= StreamSource.WINDOW / 2 && !this.finished) {
+                credit = this.consumed;
+                this.consumed = 0;
+            }
+        }
+
+        if (credit > 0) this.connectionHandler.sendCredit(this.streamId, credit);
+        return read;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#available()
+     */
+    @Override
+    public synchronized int available() {
+        return this.buffered;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#close()
+     */
+    @Override
+    public void close() {
+        final boolean cancel;
+        synchronized (this) {
+            if (this.closed) return;
+            this.closed = true;
+            cancel = !this.finished;
+
+            this.chunks.clear();
+            this.buffered = 0;
+            notifyAll();
+        }
+
+        this.connectionHandler.streamClosed(this.streamId, cancel);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * LipeRMI - a light weight Internet approach for remote method invocation
+ * Copyright (C) 2006  Felipe Santos Andrade
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * For more information, see http://lipermi.sourceforge.net/license.php
+ * You can also contact author through lipeandrade@users.sourceforge.net
+ */
+
+
+package net.sf.lipermi.handler;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+
+import net.sf.lipermi.call.BufferPool;
+import net.sf.lipermi.call.MessageCodec;
+import net.sf.lipermi.handler.filter.IProtocolFilter;
+
+/**
+ * A ConnectionHandler talking over a blocking socket, using one
+ * reader thread per connection.
+ *
+ * @author lipe
+ * @date   05/10/2006
+ *
+ * @see	   net.sf.lipermi.net.SocketTransport
+ */
+public class StreamConnectionHandler extends ConnectionHandler implements Runnable {
+
+    /** Max. number of bytes written at once */
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    /** Frames are collected here and written together, only used by the writing thread */
+    private final ByteBuffer batch = ByteBuffer.allocate(BATCH_SIZE);
+
+    /**
+     * Creates a handler which doesn't read from the socket before {@link #start()}.
+     * 
+     * @param socket
+     * @param callHandler
+     * @param filter
+     */
+    public StreamConnectionHandler(final Socket socket, final CallHandler callHandler,
+                                   final IProtocolFilter filter) {
+        super(socket, callHandler, filter);
+    }
+
+    /**
+     * Starts the reader thread. Settings and listeners should be applied before, the
+     * first frames may arrive right away.
+     */
+    @SuppressWarnings("boxing")
+    public void start() {
+        final Socket socket = getSocket();
+        final String threadName = String.format("ConnectionHandler (%s:%d)", socket.getInetAddress().getHostAddress(), socket.getPort()); //$NON-NLS-1$
+        final Thread connectionHandlerThread = new Thread(this, threadName);
+
+        connectionHandlerThread.setDaemon(true);
+        connectionHandlerThread.start();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.ConnectionHandler#close()
+     */
+    @Override
+    public void close() throws IOException {
+        getSocket().close();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        final Socket socket = getSocket();
+
+        try {
+            // Check if the socket is already connected.
+            if (!socket.isConnected()) {
+                Thread.sleep(500);
+            }
+
+            // First, try to obtain the input stream for this connection
+            final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // Frames are reused as long as they are large enough
+            ByteBuffer frame = ByteBuffer.allocate(512);
+
+            while (socket.isConnected()) {
+                final int length = input.readInt();
+                if (length < 0 || length > MessageCodec.MAX_FRAME_SIZE)
+                    throw new StreamCorruptedException("Invalid frame length " + length); //$NON-NLS-1$
+
+                if (length > frame.capacity()) frame = ByteBuffer.allocate(length);
+                input.readFully(frame.array(), 0, length);
+
+                frame.clear();
+                frame.limit(length);
+                frameReceived(frame);
+            }
+
+        } catch (final Exception e) {
+            // Decision depends on type of the exceptions
+            if (!(e instanceof EOFException)) e.printStackTrace();
+
+            // Try to close the socket
+            try {
+                socket.close();
+            } catch (final IOException e1) {
+                //
+            }
+
+            // Make all return-awaiters wake up and tell all listeners
+            disconnected();
+        } catch (final Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.ConnectionHandler#writeFrames(java.util.Queue)
+     */
+    @Override
+    protected boolean writeFrames(final Queue<ByteBuffer> frames) throws IOException {
+        final OutputStream output = getSocket().getOutputStream();
+        final ByteBuffer batch = this.batch;
+
+        // Copy as many frames as fit into one write, larger ones are written piecewise
+        ByteBuffer frame;
+        while ((frame = frames.poll()) != null) {
+            if (frame.remaining() > batch.remaining()) {
+                writeBatch(output);
+                if (frame.remaining() > batch.capacity() && frame.hasArray()) {
+                    output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    frame.position(frame.limit());
+                }
+            }
+
+            while (frame.remaining() > batch.remaining()) {
+                final int limit = frame.limit();
+                frame.limit(frame.position() + batch.remaining());
+                batch.put(frame);
+                frame.limit(limit);
+                writeBatch(output);
+            }
+            batch.put(frame);
+
+            BufferPool.getDefault().release(frame);
+        }
+
+        writeBatch(output);
+        output.flush();
+        return true;
+    }
+
+    private void writeBatch(final OutputStream output) throws IOException {
+        if (this.batch.position() == 0) return;
+
+        output.write(this.batch.array(), 0, this.batch.position());
+        this.batch.clear();
+    }
+}
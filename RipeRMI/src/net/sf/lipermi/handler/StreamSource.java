@@ -0,0 +1,189 @@
+/*
+ * StreamSource.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.lipermi.call.RemoteChunk;
+
+/**
+ * Sends the content of a stream passed to or returned by a remote method in chunks,
+ * as long as the receiver has given us credit. Runs on a thread of its own, as
+ * reading the stream may block.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.RemoteInputStream
+ */
+final class StreamSource implements Runnable {
+
+    /** Max. size of a chunk */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Bytes a receiver buffers at most (and a sender may send before it got any credit) */
+    static final int WINDOW = 4 * CHUNK_SIZE;
+
+    /** Threads pumping streams */
+    private static final ExecutorService PUMPS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "StreamSource-" + this.count.incrementAndGet()); //$NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * @param value
+     * @return True if the value is sent as a stream.
+     */
+    static boolean isStream(final Object value) {
+        return value instanceof InputStream || value instanceof ReadableByteChannel;
+    }
+
+    private final ConnectionHandler connectionHandler;
+
+    private final long streamId;
+
+    private final InputStream input;
+
+    /** Bytes we may still send */
+    private int credit = WINDOW;
+
+    private boolean cancelled = false;
+
+    private boolean started = false;
+
+    /**
+     * @param connectionHandler
+     * @param streamId
+     * @param stream An input stream or a readable channel.
+     */
+    StreamSource(final ConnectionHandler connectionHandler, final long streamId,
+                 final Object stream) {
+        this.connectionHandler = connectionHandler;
+        this.streamId = streamId;
+        this.input = stream instanceof InputStream ? (InputStream) stream : Channels.newInputStream((ReadableByteChannel) stream);
+    }
+
+    /**
+     * Starts sending, once the message announcing the stream has been sent.
+     */
+    void start() {
+        synchronized (this) {
+            if (this.started) return;
+            this.started = true;
+        }
+
+        PUMPS.execute(this);
+    }
+
+    /**
+     * @param bytes More bytes the receiver is ready to take.
+     */
+    synchronized void grant(final int bytes) {
+        this.credit += bytes;
+        notifyAll();
+    }
+
+    /**
+     * Stops sending, because the receiver doesn't want the stream anymore or the
+     * connection is gone.
+     */
+    void cancel() {
+        final boolean running;
+        synchronized (this) {
+            this.cancelled = true;
+            running = this.started;
+            notifyAll();
+        }
+
+        if (!running) closeInput();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        final byte[] buffer = new byte[CHUNK_SIZE];
+
+        try {
+            while (true) {
+                final int allowed;
+                synchronized (this) {
+                    while (this.credit <= 0 && !this.cancelled) {
+                        wait();
+                    }
+                    if (this.cancelled) return;
+                    allowed = Math.min(this.credit, CHUNK_SIZE);
+                }
+
+                final int read = this.input.read(buffer, 0, allowed);
+                if (read < 0) {
+                    this.connectionHandler.sendMessage(new RemoteChunk(this.streamId, null, 0, true, null));
+                    return;
+                }
+
+                synchronized (this) {
+                    this.credit -= read;
+                }
+
+                // The chunk is encoded right away, so the buffer can be reused
+                if (read > 0) this.connectionHandler.sendMessage(new RemoteChunk(this.streamId, buffer, read, false, null));
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final Exception e) {
+            // Tell the receiver, so it doesn't wait forever
+            try {
+                this.connectionHandler.sendMessage(new RemoteChunk(this.streamId, null, 0, true, String.valueOf(e)));
+            } catch (final IOException e1) {
+                //
+            }
+        } finally {
+            closeInput();
+            this.connectionHandler.streamFinished(this.streamId);
+        }
+    }
+
+    private void closeInput() {
+        try {
+            this.input.close();
+        } catch (final IOException e) {
+            //
+        }
+    }
+}
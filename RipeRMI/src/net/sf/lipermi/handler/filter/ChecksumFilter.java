@@ -0,0 +1,91 @@
+/*
+ * ChecksumFilter.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler.filter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Appends a CRC32 to every payload and checks it on the other side. Corrupt
+ * messages make the connection fail instead of being decoded.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.filter.FilterChain
+ */
+public class ChecksumFilter implements IFrameFilter {
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.filter.IFrameFilter#encode(java.nio.ByteBuffer)
+     */
+    public ByteBuffer encode(final ByteBuffer payload) throws IOException {
+        final int length = payload.remaining();
+        final int checksum = checksum(payload);
+
+        // Append in place if there is room
+        if (payload.hasArray() && !payload.isReadOnly() && payload.capacity() - payload.limit() >= 4) {
+            final int limit = payload.limit();
+            payload.limit(limit + 4);
+            payload.putInt(limit, checksum);
+            return payload;
+        }
+
+        final ByteBuffer output = FilterChain.allocate(length + 4);
+        output.put(payload.duplicate());
+        output.putInt(checksum);
+        output.position(output.position() - length - 4);
+        return output;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.filter.IFrameFilter#decode(java.nio.ByteBuffer)
+     */
+    public ByteBuffer decode(final ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 4) throw new IOException("Payload too short for a checksum"); //$NON-NLS-1$
+
+        final int end = payload.limit() - 4;
+        final int expected = payload.getInt(end);
+        payload.limit(end);
+
+        if (checksum(payload) != expected) throw new IOException("Checksum mismatch"); //$NON-NLS-1$
+        return payload;
+    }
+
+    private static int checksum(final ByteBuffer payload) {
+        final CRC32 crc = new CRC32();
+        if (payload.hasArray()) {
+            crc.update(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        } else {
+            final byte[] data = new byte[payload.remaining()];
+            payload.duplicate().get(data);
+            crc.update(data);
+        }
+        return (int) crc.getValue();
+    }
+}
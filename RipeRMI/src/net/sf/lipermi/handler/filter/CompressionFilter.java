@@ -0,0 +1,726 @@
+/*
+ * CompressionFilter.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler.filter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.sf.lipermi.call.BufferPool;
+import net.sf.lipermi.call.IRemoteMessage;
+import net.sf.lipermi.call.MessageCodec;
+import net.sf.lipermi.call.RemoteCall;
+import net.sf.lipermi.call.RemoteReturn;
+
+/**
+ * Compresses messages with a fast LZ codec ({@link LZCodec}), with deflate, or
+ * picks one of them (or none) per message, see {@link Mode}. Messages are encoded by
+ * the {@link MessageCodec} and compressed straight out of the encoding buffer; codecs
+ * are pooled, so nothing is allocated per message besides the buffers themselves.
+ * 
+ * The filter can be used on its own or as a stage of a {@link FilterChain}. On its own
+ * it is a chain of just itself, so connections hand it their frame buffers directly. As a
+ * stage it only sees bytes, so the adaptive mode tells payloads apart by their size
+ * instead of their type.
+ * 
+ * Messages smaller than a threshold (and messages that don't get smaller) are sent
+ * uncompressed; a flag byte in front of every message tells the receiver how it was
+ * compressed. Both peers have to use a compression filter, but they may use
+ * different modes.
+ * 
+ * The filter counts what it did, see {@link #getCompressionRatio()},
+ * {@link #getCompressionTime(TimeUnit)} and {@link #getDecompressionTime(TimeUnit)}.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.filter.GZipFilter
+ */
+public class CompressionFilter extends FilterChain implements IFrameFilter {
+
+    /** How messages are compressed */
+    public static enum Mode {
+        /** Never compress */
+        NONE,
+
+        /** Always use the LZ codec */
+        FAST,
+
+        /** Always deflate */
+        DEFLATE,
+
+        /**
+         * Always deflate, and send every compressed message as a complete gzip member
+         * (RFC 1952, readable by {@link java.util.zip.GZIPInputStream}); costs 18 bytes and
+         * a CRC per message over {@link #DEFLATE}.
+         */
+        GZIP,
+
+        /**
+         * Choose per message. Every payload type (the type of the first argument of a call
+         * or of the value a call returns) is now and then compressed with both codecs; the
+         * measured ratios and speeds then decide which codec (if any) gets the message
+         * onto the wire fastest, given the bandwidth of the network.
+         */
+        ADAPTIVE
+    }
+
+    /** Messages below this size are not compressed by default */
+    public static final int DEFAULT_THRESHOLD = 512;
+
+    /** Bandwidth the adaptive mode assumes by default (bytes/s), about 1 Gbit/s */
+    public static final long DEFAULT_BANDWIDTH = 125 * 1000 * 1000;
+
+    /** Message flags */
+    private static final byte RAW = 0;
+
+    private static final byte DEFLATED = 1;
+
+    private static final byte LZ = 2;
+
+    private static final byte GZIPPED = 3;
+
+    /** Header of gzip members, as {@link java.util.zip.GZIPOutputStream} writes it */
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0 };
+
+    /** CRC and size behind the deflated data */
+    private static final int GZIP_TRAILER = 8;
+
+    /** Flags of optional gzip header fields */
+    private static final int FHCRC = 2;
+
+    private static final int FEXTRA = 4;
+
+    private static final int FNAME = 8;
+
+    private static final int FCOMMENT = 16;
+
+    /** Max. number of idle codecs kept */
+    private static final int MAX_POOLED = 64;
+
+    /** Max. number of bytes kept per size class of scratch buffers */
+    private static final int MAX_SCRATCH = 1024 * 1024;
+
+    /** The adaptive mode measures both codecs for the first and then every n-th message of a type */
+    private static final int SAMPLES = 4;
+
+    private static final int SAMPLE_INTERVAL = 64;
+
+    /** What the adaptive mode learned about a payload type; updated racily, they are estimates */
+    private static class PayloadStatistics {
+        final AtomicLong messages = new AtomicLong();
+
+        volatile double lzRatio = 1.0;
+
+        volatile double lzNanosPerByte = 0.0;
+
+        volatile double deflateRatio = 1.0;
+
+        volatile double deflateNanosPerByte = 0.0;
+
+        PayloadStatistics() {
+            //
+        }
+
+        void sampled(final boolean deflate, final int length, final int compressed, final long nanos) {
+            final double ratio = compressed < 0 ? 1.0 : (double) compressed / length;
+            final double nanosPerByte = (double) nanos / length;
+            if (deflate) {
+                this.deflateRatio = (this.deflateRatio + ratio) / 2;
+                this.deflateNanosPerByte = (this.deflateNanosPerByte + nanosPerByte) / 2;
+            } else {
+                this.lzRatio = (this.lzRatio + ratio) / 2;
+                this.lzNanosPerByte = (this.lzNanosPerByte + nanosPerByte) / 2;
+            }
+        }
+    }
+
+    private final Mode mode;
+
+    private final int threshold;
+
+    private final int level;
+
+    /** Bandwidth in bytes per ns */
+    private final double bandwidth;
+
+    /** Idle codecs */
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(MAX_POOLED);
+
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(MAX_POOLED);
+
+    private final BlockingQueue<LZCodec> lzCodecs = new ArrayBlockingQueue<LZCodec>(MAX_POOLED);
+
+    /** Array copies of direct buffers, for the codecs */
+    private final BufferPool scratch = new BufferPool(false, MAX_SCRATCH);
+
+    /** Adaptive mode knowledge, by payload type */
+    private final ConcurrentMap<Object, PayloadStatistics> payloads = new ConcurrentHashMap<Object, PayloadStatistics>();
+
+    /** Statistics */
+    private final AtomicLong messages = new AtomicLong();
+
+    private final AtomicLong lzMessages = new AtomicLong();
+
+    private final AtomicLong deflatedMessages = new AtomicLong();
+
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    private final AtomicLong compressionTime = new AtomicLong();
+
+    private final AtomicLong decompressionTime = new AtomicLong();
+
+    /**
+     * Creates an adaptive filter with default settings.
+     */
+    public CompressionFilter() {
+        this(Mode.ADAPTIVE);
+    }
+
+    /**
+     * @param mode
+     */
+    public CompressionFilter(final Mode mode) {
+        this(mode, DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION, DEFAULT_BANDWIDTH);
+    }
+
+    /**
+     * @param mode
+     * @param threshold Messages smaller than this (in bytes) are sent uncompressed.
+     * @param level Deflate compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param bandwidth Bandwidth of the network in bytes/s, used by the adaptive mode.
+     */
+    public CompressionFilter(final Mode mode, final int threshold, final int level,
+                             final long bandwidth) {
+        this.mode = mode;
+        this.threshold = threshold;
+        this.level = level;
+        this.bandwidth = bandwidth / 1e9;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.filter.FilterChain#encodeFrame(net.sf.lipermi.call.IRemoteMessage)
+     */
+    @Override
+    public ByteBuffer encodeFrame(final IRemoteMessage message) throws IOException {
+        // Unlike a stage, we know the message and can keep statistics by its type
+        final ByteBuffer payload = MessageCodec.encodePayload(message, HEADROOM);
+        final ByteBuffer encoded = encode(payload, getPayloadType(message));
+        if (encoded != payload) BufferPool.getDefault().release(payload);
+        return MessageCodec.toFrame(encoded);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.filter.FilterChain#decodeFrame(java.nio.ByteBuffer)
+     */
+    @Override
+    public IRemoteMessage decodeFrame(final ByteBuffer payload) throws IOException,
+                                                               ClassNotFoundException {
+        final Object message = MessageCodec.decodePayload(decode(payload));
+        if (!(message instanceof IRemoteMessage)) throw new IOException("Not a message: " + message); //$NON-NLS-1$
+        return (IRemoteMessage) message;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.filter.IFrameFilter#encode(java.nio.ByteBuffer)
+     */
+    public ByteBuffer encode(final ByteBuffer payload) {
+        // Without the message, payloads are told apart by their size
+        final int length = payload.remaining();
+        return encode(payload, Integer.valueOf(32 - Integer.numberOfLeadingZeros(length)));
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.filter.IFrameFilter#decode(java.nio.ByteBuffer)
+     */
+    public ByteBuffer decode(final ByteBuffer payload) throws IOException {
+        if (!payload.hasRemaining()) throw new IOException("Empty message"); //$NON-NLS-1$
+
+        final byte flag = payload.get(payload.position());
+        switch (flag) {
+        case RAW:
+            payload.position(payload.position() + 1);
+            return payload;
+        case DEFLATED:
+        case LZ:
+        case GZIPPED:
+            try {
+                return ByteBuffer.wrap(decompress(payload));
+            } catch (final DataFormatException e) {
+                throw new IOException("Corrupt message", e); //$NON-NLS-1$
+            }
+        default:
+            throw new IOException("Unknown compression flag " + flag); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * @return The mode of this filter.
+     */
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * @return Bytes sent divided by the size of the messages before compression (1.0 if
+     * nothing was sent yet). Includes the messages sent uncompressed.
+     */
+    public double getCompressionRatio() {
+        final long uncompressed = this.uncompressedBytes.get();
+        return uncompressed == 0 ? 1.0 : (double) this.compressedBytes.get() / uncompressed;
+    }
+
+    /**
+     * @return Number of messages sent.
+     */
+    public long getMessages() {
+        return this.messages.get();
+    }
+
+    /**
+     * @return Number of messages sent compressed, by either codec.
+     */
+    public long getCompressedMessages() {
+        return this.lzMessages.get() + this.deflatedMessages.get();
+    }
+
+    /**
+     * @return Number of messages sent compressed by the LZ codec.
+     */
+    public long getFastMessages() {
+        return this.lzMessages.get();
+    }
+
+    /**
+     * @return Number of messages sent deflated.
+     */
+    public long getDeflatedMessages() {
+        return this.deflatedMessages.get();
+    }
+
+    /**
+     * @return Size of all messages sent, before compression.
+     */
+    public long getUncompressedBytes() {
+        return this.uncompressedBytes.get();
+    }
+
+    /**
+     * @return Size of all messages sent, after compression.
+     */
+    public long getCompressedBytes() {
+        return this.compressedBytes.get();
+    }
+
+    /**
+     * @param unit
+     * @return Time spent compressing (including the samples of the adaptive mode).
+     */
+    public long getCompressionTime(final TimeUnit unit) {
+        return unit.convert(this.compressionTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit
+     * @return Time spent decompressing.
+     */
+    public long getDecompressionTime(final TimeUnit unit) {
+        return unit.convert(this.decompressionTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Compresses a payload (if it is worth it) and puts the flag in front.
+     * 
+     * @param payload
+     * @param type Key the adaptive mode keeps its statistics under.
+     * @return The flagged payload.
+     */
+    private ByteBuffer encode(final ByteBuffer payload, final Object type) {
+        final int length = payload.remaining();
+
+        this.messages.incrementAndGet();
+        this.uncompressedBytes.addAndGet(length);
+
+        ByteBuffer compressed = null;
+        if (length >= this.threshold && length > 6 && this.mode != Mode.NONE) {
+            // The codecs need arrays
+            final ByteBuffer input = payload.hasArray() ? payload : copy(payload);
+            final byte[] buffer = input.array();
+            final int offset = input.arrayOffset() + input.position();
+
+            try {
+                switch (this.mode) {
+                case FAST:
+                    compressed = compress(LZ, buffer, offset, length, null);
+                    break;
+                case DEFLATE:
+                    compressed = compress(DEFLATED, buffer, offset, length, null);
+                    break;
+                case GZIP:
+                    compressed = compress(GZIPPED, buffer, offset, length, null);
+                    break;
+                case ADAPTIVE:
+                    compressed = compressAdaptive(type, buffer, offset, length);
+                    break;
+                default:
+                    break;
+                }
+            } finally {
+                if (input != payload) this.scratch.release(input);
+            }
+        }
+
+        if (compressed != null) {
+            if (compressed.get(compressed.position()) == LZ) this.lzMessages.incrementAndGet();
+            else this.deflatedMessages.incrementAndGet();
+
+            this.compressedBytes.addAndGet(compressed.remaining());
+            return compressed;
+        }
+
+        this.compressedBytes.addAndGet(length + 1);
+
+        // Put the flag in front, in place if there is room
+        if (payload.position() > 0 && !payload.isReadOnly()) {
+            payload.position(payload.position() - 1);
+            payload.put(payload.position(), RAW);
+            return payload;
+        }
+
+        final ByteBuffer output = FilterChain.allocate(length + 1);
+        output.put(RAW);
+        output.put(payload.duplicate());
+        output.position(FilterChain.HEADROOM);
+        return output;
+    }
+
+    /**
+     * Picks a codec for the payload based on what we learned about its type, or
+     * samples both.
+     */
+    private ByteBuffer compressAdaptive(final Object type, final byte[] buffer, final int offset,
+                                        final int length) {
+        PayloadStatistics statistics = this.payloads.get(type);
+        if (statistics == null) {
+            final PayloadStatistics created = new PayloadStatistics();
+            statistics = this.payloads.putIfAbsent(type, created);
+            if (statistics == null) statistics = created;
+        }
+
+        final long n = statistics.messages.getAndIncrement();
+        if (n < SAMPLES || n % SAMPLE_INTERVAL == 0) {
+            final ByteBuffer lz = compress(LZ, buffer, offset, length, statistics);
+            final ByteBuffer deflated = compress(DEFLATED, buffer, offset, length, statistics);
+            if (lz == null) return deflated;
+            if (deflated == null) return lz;
+            return deflated.remaining() < lz.remaining() ? deflated : lz;
+        }
+
+        // Estimated time (per byte of the message) until it is on the wire
+        final double none = 1.0 / this.bandwidth;
+        final double lz = statistics.lzRatio / this.bandwidth + statistics.lzNanosPerByte;
+        final double deflate = statistics.deflateRatio / this.bandwidth + statistics.deflateNanosPerByte;
+
+        if (none <= lz && none <= deflate) return null;
+        return compress(deflate < lz ? DEFLATED : LZ, buffer, offset, length, null);
+    }
+
+    /**
+     * @param message
+     * @return The type whose values make up most of the message, most likely.
+     */
+    private static Class<?> getPayloadType(final IRemoteMessage message) {
+        Object payload = null;
+
+        if (message instanceof RemoteReturn) {
+            payload = ((RemoteReturn) message).getReturn();
+        } else if (message instanceof RemoteCall) {
+            final Object[] args = ((RemoteCall) message).getArgs();
+            for (int i = 0; args != null && i < args.length && payload == null; i++) {
+                payload = args[i];
+            }
+        }
+
+        return payload == null ? message.getClass() : payload.getClass();
+    }
+
+    /**
+     * Compresses the encoded message.
+     * 
+     * @param codec {@link #DEFLATED}, {@link #GZIPPED} or {@link #LZ}.
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param statistics Sample to record, or null.
+     * @return The flagged, compressed message (with {@link FilterChain#HEADROOM} free in
+     * front), or null if it didn't get smaller.
+     */
+    private ByteBuffer compress(final byte codec, final byte[] buffer, final int offset,
+                                final int length, final PayloadStatistics statistics) {
+        final long start = System.nanoTime();
+
+        // Header, then the compressed data; give up once it gets as large as the message
+        final int headroom = FilterChain.HEADROOM;
+        final byte[] output = new byte[headroom + length];
+        output[headroom] = codec;
+        int header = headroom + 1;
+
+        final int compressed;
+        if (codec == GZIPPED) {
+            // The gzip trailer has the length
+            compressed = gzip(buffer, offset, length, output, header);
+        } else {
+            header += writeVarInt(output, header, length);
+            compressed = codec == DEFLATED ? deflate(buffer, offset, length, output, header) : lz(buffer, offset, length, output, header);
+        }
+
+        final long nanos = System.nanoTime() - start;
+        this.compressionTime.addAndGet(nanos);
+        if (statistics != null) statistics.sampled(codec != LZ, length, compressed, nanos);
+
+        return compressed < 0 ? null : ByteBuffer.wrap(output, headroom, header - headroom + compressed);
+    }
+
+    /**
+     * @return Compressed size, or -1 if the output was too small.
+     */
+    private int deflate(final byte[] buffer, final int offset, final int length,
+                        final byte[] output, final int outputOffset) {
+        Deflater deflater = this.deflaters.poll();
+        if (deflater == null) deflater = new Deflater(this.level, true);
+
+        try {
+            deflater.setInput(buffer, offset, length);
+            deflater.finish();
+
+            int position = outputOffset;
+            while (!deflater.finished()) {
+                if (position == output.length) return -1;
+                position += deflater.deflate(output, position, output.length - position);
+            }
+
+            return position - outputOffset;
+        } finally {
+            deflater.reset();
+            if (!this.deflaters.offer(deflater)) deflater.end();
+        }
+    }
+
+    /**
+     * Deflates into a gzip member.
+     * 
+     * @return Size of the member, or -1 if the output was too small.
+     */
+    private int gzip(final byte[] buffer, final int offset, final int length, final byte[] output,
+                     final int outputOffset) {
+        final int data = outputOffset + GZIP_HEADER.length;
+        if (data + GZIP_TRAILER > output.length) return -1;
+        System.arraycopy(GZIP_HEADER, 0, output, outputOffset, GZIP_HEADER.length);
+
+        final int deflated = deflate(buffer, offset, length, output, data);
+        final int trailer = data + deflated;
+        if (deflated < 0 || trailer + GZIP_TRAILER > output.length) return -1;
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer, offset, length);
+        writeInt(output, trailer, (int) crc.getValue());
+        writeInt(output, trailer + 4, length);
+
+        return trailer + GZIP_TRAILER - outputOffset;
+    }
+
+    /**
+     * @return Compressed size, or -1 if the output was too small.
+     */
+    private int lz(final byte[] buffer, final int offset, final int length, final byte[] output,
+                   final int outputOffset) {
+        LZCodec codec = this.lzCodecs.poll();
+        if (codec == null) codec = new LZCodec();
+
+        try {
+            return codec.compress(buffer, offset, length, output, outputOffset, output.length - outputOffset);
+        } finally {
+            this.lzCodecs.offer(codec);
+        }
+    }
+
+    /**
+     * Decompresses a flagged, compressed message.
+     * 
+     * @param payload
+     * @return .
+     * @throws IOException
+     * @throws DataFormatException
+     */
+    private byte[] decompress(final ByteBuffer payload) throws IOException, DataFormatException {
+        final long start = System.nanoTime();
+
+        final ByteBuffer input = payload.hasArray() ? payload : copy(payload);
+        final byte[] data = input.array();
+        final int offset = input.arrayOffset() + input.position();
+        final byte codec = data[offset];
+        int end = offset + input.remaining();
+
+        // Read the uncompressed length
+        int length = 0;
+        int position = offset + 1;
+        if (codec == GZIPPED) {
+            position = skipGZipHeader(data, position, end);
+            if (end - position < GZIP_TRAILER) throw new IOException("Truncated message"); //$NON-NLS-1$
+            end -= GZIP_TRAILER;
+            length = readInt(data, end + 4);
+        } else {
+            for (int shift = 0;; shift += 7) {
+                if (position == end || shift > 28) throw new IOException("Malformed length"); //$NON-NLS-1$
+                final byte b = data[position++];
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+        }
+        if (length < 0 || length > MessageCodec.MAX_FRAME_SIZE)
+            throw new IOException("Invalid message length " + length); //$NON-NLS-1$
+
+        final byte[] output = new byte[length];
+
+        try {
+            if (codec == LZ) {
+                LZCodec.decompress(data, position, end - position, output, 0, length);
+                return output;
+            }
+
+            Inflater inflater = this.inflaters.poll();
+            if (inflater == null) inflater = new Inflater(true);
+
+            try {
+                inflater.setInput(data, position, end - position);
+
+                int inflated = 0;
+                while (inflated < length) {
+                    final int n = inflater.inflate(output, inflated, length - inflated);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("Truncated message"); //$NON-NLS-1$
+                    inflated += n;
+                }
+
+                if (codec == GZIPPED) {
+                    final CRC32 crc = new CRC32();
+                    crc.update(output, 0, length);
+                    if ((int) crc.getValue() != readInt(data, end)) throw new IOException("Corrupt message (CRC)"); //$NON-NLS-1$
+                }
+
+                return output;
+            } finally {
+                inflater.reset();
+                if (!this.inflaters.offer(inflater)) inflater.end();
+            }
+        } finally {
+            if (input != payload) this.scratch.release(input);
+            this.decompressionTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param payload
+     * @return A copy of the payload in a scratch buffer, to be released.
+     */
+    private ByteBuffer copy(final ByteBuffer payload) {
+        final ByteBuffer copy = this.scratch.acquire(payload.remaining());
+        copy.put(payload.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * @param data
+     * @param offset Offset of the gzip header.
+     * @param end
+     * @return Offset of the deflated data.
+     * @throws IOException
+     */
+    private static int skipGZipHeader(final byte[] data, final int offset, final int end) throws IOException {
+        if (end - offset < GZIP_HEADER.length || data[offset] != GZIP_HEADER[0] || data[offset + 1] != GZIP_HEADER[1] || data[offset + 2] != GZIP_HEADER[2])
+            throw new IOException("Not a gzip member"); //$NON-NLS-1$
+
+        final int flags = data[offset + 3];
+        int position = offset + GZIP_HEADER.length;
+        if ((flags & FEXTRA) != 0) {
+            if (end - position < 2) throw new IOException("Truncated message"); //$NON-NLS-1$
+            position += 2 + ((data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8);
+        }
+        if ((flags & FNAME) != 0) position = skipString(data, position, end);
+        if ((flags & FCOMMENT) != 0) position = skipString(data, position, end);
+        if ((flags & FHCRC) != 0) position += 2;
+
+        if (position > end) throw new IOException("Truncated message"); //$NON-NLS-1$
+        return position;
+    }
+
+    /**
+     * @return Offset behind the zero terminating the string at the position.
+     */
+    private static int skipString(final byte[] data, final int offset, final int end) {
+        int position = offset;
+        while (position < end && data[position] != 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    /** Little endian, as gzip has it */
+    private static int readInt(final byte[] data, final int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    private static void writeInt(final byte[] output, final int offset, final int value) {
+        output[offset] = (byte) value;
+        output[offset + 1] = (byte) (value >>> 8);
+        output[offset + 2] = (byte) (value >>> 16);
+        output[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static int writeVarInt(final byte[] output, final int offset, final int value) {
+        int position = offset;
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            output[position++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        output[position++] = (byte) remaining;
+        return position - offset;
+    }
+}
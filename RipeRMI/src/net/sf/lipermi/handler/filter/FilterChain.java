@@ -0,0 +1,137 @@
+/*
+ * FilterChain.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler.filter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.sf.lipermi.call.BufferPool;
+import net.sf.lipermi.call.IRemoteMessage;
+import net.sf.lipermi.call.MessageCodec;
+
+/**
+ * A protocol filter passing the encoded bytes of every message through a chain of
+ * {@link IFrameFilter}s. Outgoing messages go through the stages in the given order,
+ * incoming ones in reverse order. Connections recognize the chain and hand it their
+ * frame buffers directly, so no stage sees a message as an object and nothing gets
+ * serialized twice.
+ * 
+ * Example: <code>new FilterChain(new CompressionFilter(), new ChecksumFilter())</code>
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.filter.IFrameFilter
+ */
+public class FilterChain implements IProtocolFilter {
+
+    /** Free space kept in front of payloads, for the frame length and headers of stages */
+    public static final int HEADROOM = 16;
+
+    /**
+     * Creates a buffer for a payload, with {@link #HEADROOM} free bytes in front.
+     * 
+     * @param length
+     * @return A buffer positioned at the payload, its limit behind it.
+     */
+    public static ByteBuffer allocate(final int length) {
+        return ByteBuffer.wrap(new byte[HEADROOM + length], HEADROOM, length);
+    }
+
+    private final IFrameFilter[] stages;
+
+    /**
+     * @param stages
+     */
+    public FilterChain(final IFrameFilter... stages) {
+        this.stages = stages.clone();
+    }
+
+    /**
+     * Encodes a message and passes it through all stages.
+     * 
+     * @param message
+     * @return The frame to send, including its length.
+     * @throws IOException
+     */
+    public ByteBuffer encodeFrame(final IRemoteMessage message) throws IOException {
+        ByteBuffer payload = MessageCodec.encodePayload(message, HEADROOM);
+        for (final IFrameFilter stage : this.stages) {
+            final ByteBuffer encoded = stage.encode(payload);
+            if (encoded != payload) BufferPool.getDefault().release(payload);
+            payload = encoded;
+        }
+        return MessageCodec.toFrame(payload);
+    }
+
+    /**
+     * Passes a received frame through all stages and decodes the message.
+     * 
+     * @param payload The frame's payload (after its length).
+     * @return .
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public IRemoteMessage decodeFrame(final ByteBuffer payload) throws IOException,
+                                                               ClassNotFoundException {
+        ByteBuffer decoded = payload;
+        for (int i = this.stages.length - 1; i >= 0; i--) {
+            decoded = this.stages[i].decode(decoded);
+        }
+
+        final Object message = MessageCodec.decodePayload(decoded);
+        if (!(message instanceof IRemoteMessage)) throw new IOException("Not a message: " + message); //$NON-NLS-1$
+        return (IRemoteMessage) message;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.filter.IProtocolFilter#prepareWrite(net.sf.lipermi.call.IRemoteMessage)
+     */
+    public Object prepareWrite(final IRemoteMessage message) {
+        try {
+            final ByteBuffer frame = encodeFrame(message);
+            final byte[] payload = new byte[frame.remaining() - 4];
+            frame.position(frame.position() + 4);
+            frame.get(payload);
+            BufferPool.getDefault().release(frame);
+            return payload;
+        } catch (final IOException e) {
+            throw new RuntimeException("Can't prepare message", e); //$NON-NLS-1$
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.filter.IProtocolFilter#readObject(java.lang.Object)
+     */
+    public IRemoteMessage readObject(final Object obj) {
+        try {
+            return decodeFrame(ByteBuffer.wrap((byte[]) obj));
+        } catch (final Exception e) {
+            throw new RuntimeException("Can't read message", e); //$NON-NLS-1$
+        }
+    }
+}
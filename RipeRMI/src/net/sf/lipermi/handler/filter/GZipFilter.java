@@ -22,112 +22,34 @@
 
 package net.sf.lipermi.handler.filter;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
-
-import net.sf.lipermi.call.IRemoteMessage;
+import java.util.zip.Deflater;
 
 /**
- * GZip filter to compact data using GZip I/O streams.
+ * GZip filter to compact data with the deflate algorithm. Every compressed message is a
+ * complete gzip member, see {@link CompressionFilter.Mode#GZIP}. Messages smaller than a
+ * threshold (and messages that don't get smaller) are sent uncompressed.
  * 
  * @author lipe
  * @date   07/10/2006
  * 
  * @see net.sf.lipermi.handler.filter.DefaultFilter
+ * @see net.sf.lipermi.handler.filter.CompressionFilter
  */
-public class GZipFilter implements IProtocolFilter {
-
-    public Object prepareWrite(final IRemoteMessage message) {
-        Object objectToWrite = message;
-
-        ObjectOutputStream oos = null;
-        GZIPOutputStream gzos = null;
-        try {
-            // serialize obj
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream(baos);
-            // oos.reset(); -- not needed here because the oos is
-            //                 always a new instance, reseted.
-            oos.writeUnshared(message);
-            byte[] byteObj = baos.toByteArray();
-
-            baos.reset();
-
-            // compact the serialization
-            gzos = new GZIPOutputStream(baos);
-            gzos.write(byteObj);
-            gzos.finish();
-            byteObj = baos.toByteArray();
-
-            objectToWrite = byteObj;
-        } catch (final Exception e) {
-            throw new RuntimeException("Can't prepare message", e); //$NON-NLS-1$
-        } finally {
-            if (gzos != null) {
-                try {
-                    gzos.close();
-                } catch (final IOException e) {
-                    //
-                }
-            }
-
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (final IOException e) {
-                    //
-                }
-            }
-        }
-        return objectToWrite;
+public class GZipFilter extends CompressionFilter {
+
+    /**
+     * Creates a filter compressing messages of at least {@link #DEFAULT_THRESHOLD} bytes
+     * with the default compression level.
+     */
+    public GZipFilter() {
+        this(DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION);
     }
 
-    public IRemoteMessage readObject(final Object obj) {
-        IRemoteMessage remoteMessage = null;
-        GZIPInputStream gzis = null;
-        ObjectInputStream ois = null;
-
-        try {
-            ByteArrayInputStream bais = new ByteArrayInputStream((byte[]) obj);
-            gzis = new GZIPInputStream(bais);
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            int b;
-            while ((b = gzis.read()) != -1) {
-                baos.write(b);
-            }
-
-            gzis.close();
-
-            final byte[] extractedObj = baos.toByteArray();
-
-            bais = new ByteArrayInputStream(extractedObj);
-            ois = new ObjectInputStream(bais);
-            remoteMessage = (IRemoteMessage) ois.readUnshared();
-            ois.close();
-        } catch (final Exception e) {
-            throw new RuntimeException("Can't read message", e); //$NON-NLS-1$
-        } finally {
-            if (gzis != null) {
-                try {
-                    gzis.close();
-                } catch (final IOException e) {
-                    //
-                }
-            }
-
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (final IOException e) {
-                    //
-                }
-            }
-        }
-        return remoteMessage;
+    /**
+     * @param threshold Messages smaller than this (in bytes) are sent uncompressed.
+     * @param level Compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public GZipFilter(final int threshold, final int level) {
+        super(Mode.GZIP, threshold, level, DEFAULT_BANDWIDTH);
     }
 }
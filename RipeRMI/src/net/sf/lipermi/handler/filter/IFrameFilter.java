@@ -0,0 +1,73 @@
+/*
+ * IFrameFilter.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler.filter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A stage of a {@link FilterChain}, transforming the encoded bytes of messages on
+ * their way between the codec and the connection (i.e., compression, checksums,
+ * encryption, metrics).
+ * 
+ * Stages get a buffer positioned at the payload. They may change it in place and
+ * return it, or return a new buffer. Buffers handed to {@link #encode(ByteBuffer)} have
+ * some free space in front of their position and behind their limit, so small headers
+ * and trailers can be added without copying. New buffers are best created with
+ * {@link FilterChain#allocate(int)}, which leaves room for the frame header in front.
+ * 
+ * Buffers handed to {@link #encode(ByteBuffer)} may be direct. If a stage returns a new
+ * buffer, the chain releases the old one to the
+ * {@link net.sf.lipermi.call.BufferPool#getDefault() default pool}, so new buffers must
+ * not be views of it.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.filter.FilterChain
+ */
+public interface IFrameFilter {
+
+    /**
+     * Transforms an outgoing payload.
+     * 
+     * @param payload
+     * @return The transformed payload.
+     * @throws IOException
+     */
+    public ByteBuffer encode(ByteBuffer payload) throws IOException;
+
+    /**
+     * Reverts {@link #encode(ByteBuffer)} on an incoming payload. The buffer is only
+     * valid until the method returns (the connection reuses it).
+     * 
+     * @param payload
+     * @return The original payload.
+     * @throws IOException If the payload is corrupt.
+     */
+    public ByteBuffer decode(ByteBuffer payload) throws IOException;
+}
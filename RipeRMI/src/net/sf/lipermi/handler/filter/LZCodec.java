@@ -0,0 +1,261 @@
+/*
+ * LZCodec.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler.filter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 compressor in pure Java, writing the LZ4 block format: sequences of
+ * literals and back references (2 byte offset) with a one byte token giving both
+ * lengths. It finds matches through a single hash table probe, so it compresses much
+ * less than deflate but many times faster.
+ * 
+ * An instance keeps its hash table between calls and must not be used by several threads
+ * at once.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.filter.CompressionFilter
+ */
+public final class LZCodec {
+
+    private static final int MIN_MATCH = 4;
+
+    private static final int HASH_LOG = 12;
+
+    private static final int MAX_DISTANCE = 0xFFFF;
+
+    /** The last bytes are always literals */
+    private static final int LAST_LITERALS = 5;
+
+    /** Matches must start this far from the end */
+    private static final int MATCH_FIND_LIMIT = 12;
+
+    /** Positions of recent sequences of 4 bytes, by their hash */
+    private final int[] table = new int[1 << HASH_LOG];
+
+    /**
+     * Compresses data.
+     * 
+     * @param src
+     * @param srcOff
+     * @param srcLen
+     * @param dst
+     * @param dstOff
+     * @param dstLen Max. number of bytes to write.
+     * @return The number of bytes written, or -1 if more than dstLen were needed.
+     */
+    public int compress(final byte[] src, final int srcOff, final int srcLen, final byte[] dst,
+                        final int dstOff, final int dstLen) {
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+        final int matchLimit = srcEnd - LAST_LITERALS;
+        final int findLimit = srcEnd - MATCH_FIND_LIMIT;
+
+        final int[] table = this.table;
+        Arrays.fill(table, -1);
+
+        int ip = srcOff;
+        int anchor = srcOff;
+        int op = dstOff;
+
+        while (ip < findLimit) {
+            final int sequence = readInt(src, ip);
+            final int hash = hash(sequence);
+            int ref = table[hash];
+            table[hash] = ip;
+
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                // Skip faster through data that doesn't compress
+                ip += 1 + ((ip - anchor) >>> 6);
+                continue;
+            }
+
+            // Extend the match backwards and forwards
+            while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op, dstEnd);
+            if (op < 0) return -1;
+
+            ip += matchLength;
+            anchor = ip;
+
+            if (ip < findLimit) table[hash(readInt(src, ip - 2))] = ip - 2;
+        }
+
+        op = writeSequence(src, anchor, srcEnd - anchor, 0, 0, dst, op, dstEnd);
+        return op < 0 ? -1 : op - dstOff;
+    }
+
+    /**
+     * Decompresses data.
+     * 
+     * @param src
+     * @param srcOff
+     * @param srcLen
+     * @param dst
+     * @param dstOff
+     * @param dstLen Exact size of the decompressed data.
+     * @throws IOException If the data is corrupt or doesn't decompress to dstLen bytes.
+     */
+    public static void decompress(final byte[] src, final int srcOff, final int srcLen,
+                                  final byte[] dst, final int dstOff, final int dstLen)
+                                                                                      throws IOException {
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+
+        int ip = srcOff;
+        int op = dstOff;
+
+        while (true) {
+            if (ip >= srcEnd) throw new IOException("Truncated block"); //$NON-NLS-1$
+            final int token = src[ip++] & 0xFF;
+
+            // Literals
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) throw new IOException("Truncated block"); //$NON-NLS-1$
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > srcEnd - ip || literals > dstEnd - op)
+                throw new IOException("Corrupt block"); //$NON-NLS-1$
+
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+
+            // The last sequence has no match
+            if (ip == srcEnd) break;
+
+            // Match
+            if (srcEnd - ip < 2) throw new IOException("Truncated block"); //$NON-NLS-1$
+            final int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            if (offset == 0 || offset > op - dstOff) throw new IOException("Corrupt block"); //$NON-NLS-1$
+
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) throw new IOException("Truncated block"); //$NON-NLS-1$
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) throw new IOException("Corrupt block"); //$NON-NLS-1$
+
+            // Overlapping matches repeat the bytes just written
+            final int ref = op - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+            } else {
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op + i] = dst[ref + i];
+                }
+            }
+            op += matchLength;
+        }
+
+        if (op != dstEnd) throw new IOException("Block decompressed to " + (op - dstOff) + " bytes instead of " + dstLen); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Writes literals, followed by a match unless matchLength is 0.
+     * 
+     * @return The new output position or -1 if the output is full.
+     */
+    private static int writeSequence(final byte[] src, final int literalsOff, final int literals,
+                                     final int offset, final int matchLength, final byte[] dst,
+                                     final int dstOff, final int dstEnd) {
+        // Worst case size of this sequence
+        if (dstOff + 1 + literals + literals / 255 + 1 + 2 + matchLength / 255 + 1 > dstEnd) return -1;
+
+        int op = dstOff;
+        final int tokenPos = op++;
+        int token;
+
+        if (literals >= 15) {
+            token = 15 << 4;
+            op = writeLength(dst, op, literals - 15);
+        } else {
+            token = literals << 4;
+        }
+
+        System.arraycopy(src, literalsOff, dst, op, literals);
+        op += literals;
+
+        if (matchLength > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+
+            final int length = matchLength - MIN_MATCH;
+            if (length >= 15) {
+                token |= 15;
+                op = writeLength(dst, op, length - 15);
+            } else {
+                token |= length;
+            }
+        }
+
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(final byte[] dst, final int dstOff, final int length) {
+        int op = dstOff;
+        int remaining = length;
+        while (remaining >= 255) {
+            dst[op++] = (byte) 255;
+            remaining -= 255;
+        }
+        dst[op++] = (byte) remaining;
+        return op;
+    }
+
+    private static int readInt(final byte[] src, final int off) {
+        return (src[off] & 0xFF) << 24 | (src[off + 1] & 0xFF) << 16 | (src[off + 2] & 0xFF) << 8 | (src[off + 3] & 0xFF);
+    }
+
+    private static int hash(final int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
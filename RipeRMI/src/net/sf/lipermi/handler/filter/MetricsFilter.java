@@ -0,0 +1,97 @@
+/*
+ * MetricsFilter.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.handler.filter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the messages and bytes passing through it, without changing them. Where it
+ * sits in a chain decides what it counts; last in the chain it counts what goes over
+ * the wire.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.filter.FilterChain
+ */
+public class MetricsFilter implements IFrameFilter {
+
+    private final AtomicLong messagesSent = new AtomicLong();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final AtomicLong messagesReceived = new AtomicLong();
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.filter.IFrameFilter#encode(java.nio.ByteBuffer)
+     */
+    public ByteBuffer encode(final ByteBuffer payload) {
+        this.messagesSent.incrementAndGet();
+        this.bytesSent.addAndGet(payload.remaining());
+        return payload;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.filter.IFrameFilter#decode(java.nio.ByteBuffer)
+     */
+    public ByteBuffer decode(final ByteBuffer payload) {
+        this.messagesReceived.incrementAndGet();
+        this.bytesReceived.addAndGet(payload.remaining());
+        return payload;
+    }
+
+    /**
+     * @return .
+     */
+    public long getMessagesSent() {
+        return this.messagesSent.get();
+    }
+
+    /**
+     * @return .
+     */
+    public long getBytesSent() {
+        return this.bytesSent.get();
+    }
+
+    /**
+     * @return .
+     */
+    public long getMessagesReceived() {
+        return this.messagesReceived.get();
+    }
+
+    /**
+     * @return .
+     */
+    public long getBytesReceived() {
+        return this.bytesReceived.get();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * IMetricsListener.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.metrics;
+
+/**
+ * Told about every call and frame measured by {@link Metrics}, e.g., to feed another
+ * metrics system. Listeners are called on the hot path, by the threads making and
+ * executing calls and reading connections, so they must be fast and must not block.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.metrics.Metrics#addMetricsListener(IMetricsListener)
+ */
+public interface IMetricsListener {
+
+    /**
+     * A call we made returned, failed or was given up.
+     * 
+     * @param method Name of the method, as in {@link MethodMetrics#getName()}.
+     * @param nanos Round trip time.
+     * @param failed True if the call did not return a result.
+     */
+    void callCompleted(String method, long nanos, boolean failed);
+
+    /**
+     * We executed a call of the peer.
+     * 
+     * @param method Name of the method, as in {@link MethodMetrics#getName()}.
+     * @param nanos Execution time.
+     * @param failed True if the method threw.
+     */
+    void callExecuted(String method, long nanos, boolean failed);
+
+    /**
+     * We encoded a frame to send.
+     * 
+     * @param bytes Size of the frame.
+     * @param nanos Time spent to serialize and filter the message.
+     */
+    void frameEncoded(int bytes, long nanos);
+
+    /**
+     * We decoded a frame we received.
+     * 
+     * @param bytes Size of the frame.
+     * @param nanos Time spent to filter and deserialize the message.
+     */
+    void frameDecoded(int bytes, long nanos);
+}
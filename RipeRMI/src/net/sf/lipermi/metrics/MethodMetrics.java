@@ -0,0 +1,204 @@
+/*
+ * MethodMetrics.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of one remote method, for calls we make (round trip
+ * time) and for calls we execute (execution time).
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.metrics.Metrics#getMethod(String)
+ */
+public final class MethodMetrics implements MethodMetricsMBean {
+
+    private final Metrics metrics;
+
+    private final String name;
+
+    private final LatencyHistogram roundTrips = new LatencyHistogram();
+
+    private final LatencyHistogram executions = new LatencyHistogram();
+
+    private final AtomicLong callFailures = new AtomicLong();
+
+    private final AtomicLong executionFailures = new AtomicLong();
+
+    MethodMetrics(final Metrics metrics, final String name) {
+        this.metrics = metrics;
+        this.name = name;
+    }
+
+    /**
+     * Records a call we made.
+     * 
+     * @param nanos Round trip time.
+     * @param failed True if the call did not return a result.
+     */
+    public void callCompleted(final long nanos, final boolean failed) {
+        this.roundTrips.record(nanos);
+        if (failed) this.callFailures.incrementAndGet();
+
+        this.metrics.callCompleted(this.name, nanos, failed);
+    }
+
+    /**
+     * Records a call we executed.
+     * 
+     * @param nanos Execution time.
+     * @param failed True if the method threw.
+     */
+    public void callExecuted(final long nanos, final boolean failed) {
+        this.executions.record(nanos);
+        if (failed) this.executionFailures.incrementAndGet();
+
+        this.metrics.callExecuted(this.name, nanos, failed);
+    }
+
+    /**
+     * @return Round trip times of calls we made.
+     */
+    public LatencyHistogram getRoundTrips() {
+        return this.roundTrips;
+    }
+
+    /**
+     * @return Execution times of calls we executed.
+     */
+    public LatencyHistogram getExecutions() {
+        return this.executions;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getName()
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getCallCount()
+     */
+    public long getCallCount() {
+        return this.roundTrips.getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getCallFailureCount()
+     */
+    public long getCallFailureCount() {
+        return this.callFailures.get();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getCallMeanMicros()
+     */
+    public double getCallMeanMicros() {
+        return this.roundTrips.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getCallP50Micros()
+     */
+    public long getCallP50Micros() {
+        return this.roundTrips.getPercentile(50, TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getCallP99Micros()
+     */
+    public long getCallP99Micros() {
+        return this.roundTrips.getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getCallP999Micros()
+     */
+    public long getCallP999Micros() {
+        return this.roundTrips.getPercentile(99.9, TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getCallMaxMicros()
+     */
+    public long getCallMaxMicros() {
+        return this.roundTrips.getMax(TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getExecutionCount()
+     */
+    public long getExecutionCount() {
+        return this.executions.getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getExecutionFailureCount()
+     */
+    public long getExecutionFailureCount() {
+        return this.executionFailures.get();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getExecutionMeanMicros()
+     */
+    public double getExecutionMeanMicros() {
+        return this.executions.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getExecutionP50Micros()
+     */
+    public long getExecutionP50Micros() {
+        return this.executions.getPercentile(50, TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getExecutionP99Micros()
+     */
+    public long getExecutionP99Micros() {
+        return this.executions.getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getExecutionP999Micros()
+     */
+    public long getExecutionP999Micros() {
+        return this.executions.getPercentile(99.9, TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MethodMetricsMBean#getExecutionMaxMicros()
+     */
+    public long getExecutionMaxMicros() {
+        return this.executions.getMax(TimeUnit.MICROSECONDS);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * MethodMetricsMBean.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.metrics;
+
+/**
+ * JMX view of the {@link MethodMetrics} of a remote method. Durations are in
+ * microseconds. Calls are those we made, executions those the peers made on us.
+ * 
+ * @author rb
+ */
+public interface MethodMetricsMBean {
+
+    /**
+     * @return .
+     */
+    String getName();
+
+    /**
+     * @return .
+     */
+    long getCallCount();
+
+    /**
+     * @return .
+     */
+    long getCallFailureCount();
+
+    /**
+     * @return .
+     */
+    double getCallMeanMicros();
+
+    /**
+     * @return .
+     */
+    long getCallP50Micros();
+
+    /**
+     * @return .
+     */
+    long getCallP99Micros();
+
+    /**
+     * @return .
+     */
+    long getCallP999Micros();
+
+    /**
+     * @return .
+     */
+    long getCallMaxMicros();
+
+    /**
+     * @return .
+     */
+    long getExecutionCount();
+
+    /**
+     * @return .
+     */
+    long getExecutionFailureCount();
+
+    /**
+     * @return .
+     */
+    double getExecutionMeanMicros();
+
+    /**
+     * @return .
+     */
+    long getExecutionP50Micros();
+
+    /**
+     * @return .
+     */
+    long getExecutionP99Micros();
+
+    /**
+     * @return .
+     */
+    long getExecutionP999Micros();
+
+    /**
+     * @return .
+     */
+    long getExecutionMaxMicros();
+}
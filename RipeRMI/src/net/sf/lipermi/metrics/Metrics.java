@@ -0,0 +1,461 @@
+/*
+ * Metrics.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.ConnectionHandler;
+
+/**
+ * Metrics of a {@link CallHandler} and all connections using it: per method counters
+ * and latency histograms, traffic, calls in flight and serialization times. Metrics are
+ * always recorded, recording neither locks nor allocates. They can be read directly,
+ * through JMX (see {@link #registerMBeans(String)}) or by listeners.
+ * 
+ * Methods are named by their interface and call name, e.g.
+ * <code>test.Service#test(int)</code>.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.handler.CallHandler#getMetrics()
+ */
+public final class Metrics implements MetricsMBean {
+
+    /** Domain of our MBeans */
+    private static final String DOMAIN = "net.sf.lipermi"; //$NON-NLS-1$
+
+    private final CallHandler callHandler;
+
+    private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<String, MethodMetrics>();
+
+    private final Set<ConnectionHandler> connections = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionHandler, Boolean>());
+
+    /** Traffic of connections closed already */
+    private final AtomicLong closedBytesSent = new AtomicLong();
+
+    private final AtomicLong closedBytesReceived = new AtomicLong();
+
+    /** Leases of peers that ran out */
+    private final AtomicLong expiredLeases = new AtomicLong();
+
+    private final LatencyHistogram encodeTimes = new LatencyHistogram();
+
+    private final LatencyHistogram decodeTimes = new LatencyHistogram();
+
+    /** Copied on write, so calling them doesn't allocate an iterator */
+    private volatile IMetricsListener[] listeners = new IMetricsListener[0];
+
+    /** Name our MBeans are registered with, null if they are not (guarded by this) */
+    private String jmxName = null;
+
+    /**
+     * @param callHandler
+     */
+    public Metrics(final CallHandler callHandler) {
+        this.callHandler = callHandler;
+    }
+
+    /**
+     * @param listener
+     */
+    public synchronized void addMetricsListener(final IMetricsListener listener) {
+        final IMetricsListener[] current = this.listeners;
+        final IMetricsListener[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = listener;
+        this.listeners = added;
+    }
+
+    /**
+     * @param listener
+     */
+    public synchronized void removeMetricsListener(final IMetricsListener listener) {
+        final List<IMetricsListener> remaining = new ArrayList<IMetricsListener>(Arrays.asList(this.listeners));
+        remaining.remove(listener);
+        this.listeners = remaining.toArray(new IMetricsListener[remaining.size()]);
+    }
+
+    /**
+     * Returns the metrics of a method, creating them on first use.
+     * 
+     * @param className Name of the remote interface.
+     * @param callName
+     * @return .
+     */
+    public MethodMetrics getMethod(final String className, final String callName) {
+        final String name = className + "#" + callName; //$NON-NLS-1$
+
+        MethodMetrics metrics = this.methods.get(name);
+        if (metrics != null) return metrics;
+
+        final MethodMetrics created = new MethodMetrics(this, name);
+        metrics = this.methods.putIfAbsent(name, created);
+        if (metrics != null) return metrics;
+
+        synchronized (this) {
+            if (this.jmxName != null) register(created);
+        }
+        return created;
+    }
+
+    /**
+     * @return Metrics of all methods called or executed so far.
+     */
+    public Collection<MethodMetrics> getMethods() {
+        return Collections.unmodifiableCollection(this.methods.values());
+    }
+
+    /**
+     * @return Serialization (and filtering) times of the frames we sent.
+     */
+    public LatencyHistogram getEncodeTimes() {
+        return this.encodeTimes;
+    }
+
+    /**
+     * @return Deserialization (and filtering) times of the frames we received.
+     */
+    public LatencyHistogram getDecodeTimes() {
+        return this.decodeTimes;
+    }
+
+    /**
+     * Called by connection handlers once they are set up.
+     * 
+     * @param connectionHandler
+     */
+    public void connectionOpened(final ConnectionHandler connectionHandler) {
+        this.connections.add(connectionHandler);
+    }
+
+    /**
+     * Called by connection handlers once they are closed.
+     * 
+     * @param connectionHandler
+     */
+    public void connectionClosed(final ConnectionHandler connectionHandler) {
+        if (!this.connections.remove(connectionHandler)) return;
+
+        this.closedBytesSent.addAndGet(connectionHandler.getBytesSent());
+        this.closedBytesReceived.addAndGet(connectionHandler.getBytesReceived());
+    }
+
+    /**
+     * Called by connection handlers once leases of their peer ran out.
+     * 
+     * @param leases
+     */
+    public void leasesExpired(final int leases) {
+        if (leases > 0) this.expiredLeases.addAndGet(leases);
+    }
+
+    /**
+     * Records a frame we encoded.
+     * 
+     * @param bytes
+     * @param nanos
+     */
+    public void frameEncoded(final int bytes, final long nanos) {
+        this.encodeTimes.record(nanos);
+
+        final IMetricsListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].frameEncoded(bytes, nanos);
+        }
+    }
+
+    /**
+     * Records a frame we decoded.
+     * 
+     * @param bytes
+     * @param nanos
+     */
+    public void frameDecoded(final int bytes, final long nanos) {
+        this.decodeTimes.record(nanos);
+
+        final IMetricsListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].frameDecoded(bytes, nanos);
+        }
+    }
+
+    void callCompleted(final String method, final long nanos, final boolean failed) {
+        final IMetricsListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].callCompleted(method, nanos, failed);
+        }
+    }
+
+    void callExecuted(final String method, final long nanos, final boolean failed) {
+        final IMetricsListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].callExecuted(method, nanos, failed);
+        }
+    }
+
+    /**
+     * Registers these metrics, and those of all methods, at the platform MBean server.
+     * Methods used later are registered once they are. The MBeans are named
+     * <code>net.sf.lipermi:type=Metrics,name=</code><i>name</i> and
+     * <code>net.sf.lipermi:type=MethodMetrics,name=</code><i>name</i><code>,method=</code><i>method</i>.
+     * 
+     * @param name Distinguishes the metrics of different call handlers.
+     * @throws JMException
+     */
+    public synchronized void registerMBeans(final String name) throws JMException {
+        if (this.jmxName != null) unregisterMBeans();
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName("Metrics", name, null)); //$NON-NLS-1$
+        this.jmxName = name;
+
+        for (final MethodMetrics metrics : this.methods.values()) {
+            register(metrics);
+        }
+    }
+
+    /**
+     * Removes the MBeans registered by {@link #registerMBeans(String)}.
+     * 
+     * @throws JMException
+     */
+    public synchronized void unregisterMBeans() throws JMException {
+        if (this.jmxName == null) return;
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final String name = this.jmxName;
+        this.jmxName = null;
+
+        server.unregisterMBean(objectName("Metrics", name, null)); //$NON-NLS-1$
+        for (final MethodMetrics metrics : this.methods.values()) {
+            final ObjectName objectName = objectName("MethodMetrics", name, metrics.getName()); //$NON-NLS-1$
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        }
+    }
+
+    /**
+     * Registers a method's MBean, called with the lock held.
+     * 
+     * @param metrics
+     */
+    private void register(final MethodMetrics metrics) {
+        try {
+            final ObjectName objectName = objectName("MethodMetrics", this.jmxName, metrics.getName()); //$NON-NLS-1$
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(objectName)) server.registerMBean(metrics, objectName);
+        } catch (final JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ObjectName objectName(final String type, final String name,
+                                         final String method) throws JMException {
+        final StringBuilder objectName = new StringBuilder(DOMAIN);
+        objectName.append(":type=").append(type); //$NON-NLS-1$
+        objectName.append(",name=").append(ObjectName.quote(name)); //$NON-NLS-1$
+        if (method != null) objectName.append(",method=").append(ObjectName.quote(method)); //$NON-NLS-1$
+
+        return new ObjectName(objectName.toString());
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getConnectionCount()
+     */
+    public int getConnectionCount() {
+        return this.connections.size();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getConnections()
+     */
+    @SuppressWarnings("boxing")
+    public String[] getConnections() {
+        final List<String> lines = new ArrayList<String>();
+        for (final ConnectionHandler connection : this.connections) {
+            final Socket socket = connection.getSocket();
+            lines.add(String.format("%s sent=%d received=%d pending=%d executing=%d leases=%d proxies=%d", socket.getRemoteSocketAddress(), connection.getBytesSent(), connection.getBytesReceived(), connection.getPendingCallCount(), connection.getExecutingCallCount(), connection.getLeaseCount(), connection.getRemoteProxyCount())); //$NON-NLS-1$
+        }
+
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getBytesSent()
+     */
+    public long getBytesSent() {
+        long bytes = this.closedBytesSent.get();
+        for (final ConnectionHandler connection : this.connections) {
+            bytes += connection.getBytesSent();
+        }
+        return bytes;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getBytesReceived()
+     */
+    public long getBytesReceived() {
+        long bytes = this.closedBytesReceived.get();
+        for (final ConnectionHandler connection : this.connections) {
+            bytes += connection.getBytesReceived();
+        }
+        return bytes;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getPendingCalls()
+     */
+    public int getPendingCalls() {
+        int calls = 0;
+        for (final ConnectionHandler connection : this.connections) {
+            calls += connection.getPendingCallCount();
+        }
+        return calls;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getExecutingCalls()
+     */
+    public int getExecutingCalls() {
+        int calls = 0;
+        for (final ConnectionHandler connection : this.connections) {
+            calls += connection.getExecutingCallCount();
+        }
+        return calls;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getExportedObjects()
+     */
+    public int getExportedObjects() {
+        return this.callHandler.getExportedObjectCount();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getLeasedObjects()
+     */
+    public int getLeasedObjects() {
+        return this.callHandler.getLeasedObjectCount();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getLeases()
+     */
+    public int getLeases() {
+        int leases = 0;
+        for (final ConnectionHandler connection : this.connections) {
+            leases += connection.getLeaseCount();
+        }
+        return leases;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getExpiredLeases()
+     */
+    public long getExpiredLeases() {
+        return this.expiredLeases.get();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getRemoteProxies()
+     */
+    public int getRemoteProxies() {
+        int proxies = 0;
+        for (final ConnectionHandler connection : this.connections) {
+            proxies += connection.getRemoteProxyCount();
+        }
+        return proxies;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getDispatchQueueDepth()
+     */
+    public int getDispatchQueueDepth() {
+        final Executor executor = this.callHandler.getDispatchExecutor();
+        if (!(executor instanceof ThreadPoolExecutor)) return -1;
+
+        return ((ThreadPoolExecutor) executor).getQueue().size();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getFramesEncoded()
+     */
+    public long getFramesEncoded() {
+        return this.encodeTimes.getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getEncodeMeanMicros()
+     */
+    public double getEncodeMeanMicros() {
+        return this.encodeTimes.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getEncodeP99Micros()
+     */
+    public long getEncodeP99Micros() {
+        return this.encodeTimes.getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getFramesDecoded()
+     */
+    public long getFramesDecoded() {
+        return this.decodeTimes.getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getDecodeMeanMicros()
+     */
+    public double getDecodeMeanMicros() {
+        return this.decodeTimes.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.metrics.MetricsMBean#getDecodeP99Micros()
+     */
+    public long getDecodeP99Micros() {
+        return this.decodeTimes.getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+}
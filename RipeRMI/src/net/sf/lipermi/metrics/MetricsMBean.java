@@ -0,0 +1,127 @@
+/*
+ * MetricsMBean.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.metrics;
+
+/**
+ * JMX view of the {@link Metrics} of a call handler and its connections. Durations are
+ * in microseconds, byte counts include connections closed already.
+ * 
+ * @author rb
+ */
+public interface MetricsMBean {
+
+    /**
+     * @return Number of open connections.
+     */
+    int getConnectionCount();
+
+    /**
+     * @return One line per open connection with its address, traffic and calls.
+     */
+    String[] getConnections();
+
+    /**
+     * @return .
+     */
+    long getBytesSent();
+
+    /**
+     * @return .
+     */
+    long getBytesReceived();
+
+    /**
+     * @return Number of calls we made that did not return yet.
+     */
+    int getPendingCalls();
+
+    /**
+     * @return Number of calls of the peers we are executing.
+     */
+    int getExecutingCalls();
+
+    /**
+     * @return Number of objects exported, global and auto exported ones.
+     */
+    int getExportedObjects();
+
+    /**
+     * @return Number of auto exported objects, unexported once no lease is left.
+     */
+    int getLeasedObjects();
+
+    /**
+     * @return Number of leases peers hold on our objects, one per object and connection.
+     */
+    int getLeases();
+
+    /**
+     * @return Number of leases that ran out because the peer did not renew them.
+     */
+    long getExpiredLeases();
+
+    /**
+     * @return Number of proxies of the peers' objects we hold.
+     */
+    int getRemoteProxies();
+
+    /**
+     * @return Number of calls waiting for a dispatch thread, -1 if unknown.
+     */
+    int getDispatchQueueDepth();
+
+    /**
+     * @return .
+     */
+    long getFramesEncoded();
+
+    /**
+     * @return .
+     */
+    double getEncodeMeanMicros();
+
+    /**
+     * @return .
+     */
+    long getEncodeP99Micros();
+
+    /**
+     * @return .
+     */
+    long getFramesDecoded();
+
+    /**
+     * @return .
+     */
+    double getDecodeMeanMicros();
+
+    /**
+     * @return .
+     */
+    long getDecodeP99Micros();
+}
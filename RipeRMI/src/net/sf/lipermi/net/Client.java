@@ -24,7 +24,6 @@ package net.sf.lipermi.net;
 
 import java.io.IOException;
 import java.lang.reflect.Proxy;
-import java.net.Socket;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -32,6 +31,7 @@ import net.sf.lipermi.handler.CallHandler;
 import net.sf.lipermi.handler.CallProxy;
 import net.sf.lipermi.handler.ConnectionHandler;
 import net.sf.lipermi.handler.IConnectionHandlerListener;
+import net.sf.lipermi.handler.RemoteFuture;
 import net.sf.lipermi.handler.filter.DefaultFilter;
 import net.sf.lipermi.handler.filter.IProtocolFilter;
 
@@ -40,6 +40,7 @@ import net.sf.lipermi.handler.filter.IProtocolFilter;
  * Connects to a LipeRMI Server in a address:port
  * and create local dynamic proxys to call remote
  * methods through a simple interface.
+ * How the connection is made depends on the {@link Transport}.
  * 
  * @author lipe
  * @date   05/10/2006
@@ -61,8 +62,6 @@ public class Client {
 
     final List<IClientListener> listeners = new LinkedList<IClientListener>();
 
-    private final Socket socket;
-
     /**
      * @param address
      * @param port
@@ -83,10 +82,21 @@ public class Client {
      */
     public Client(final String address, final int port, final CallHandler callHandler,
                   final IProtocolFilter filter) throws IOException {
+        this(address, port, callHandler, filter, new SocketTransport());
+    }
 
-        this.socket = new Socket(address, port);
-        this.socket.setTcpNoDelay(true);
-        this.connectionHandler = ConnectionHandler.createConnectionHandler(this.socket, callHandler, filter, this.connectionHandlerListener);
+    /**
+     * @param address
+     * @param port
+     * @param callHandler
+     * @param filter
+     * @param transport
+     * @throws IOException
+     */
+    public Client(final String address, final int port, final CallHandler callHandler,
+                  final IProtocolFilter filter, final Transport transport) throws IOException {
+
+        this.connectionHandler = transport.connect(address, port, callHandler, filter, this.connectionHandlerListener);
     }
 
     /**
@@ -100,7 +110,7 @@ public class Client {
      * @throws IOException
      */
     public void close() throws IOException {
-        this.socket.close();
+        this.connectionHandler.close();
     }
 
     /**
@@ -112,6 +122,22 @@ public class Client {
         return (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] { clazz }, new CallProxy(this.connectionHandler));
     }
 
+    /**
+     * Returns an asynchronous view of a global remote interface. The view is a local
+     * interface mirroring (some of) the methods of the remote interface with the same
+     * names and parameter types, but returning {@link java.util.concurrent.Future Future}
+     * or {@link RemoteFuture}. Calls on such methods return as soon as the call has been
+     * sent, so a single thread can keep many calls in flight.
+     * 
+     * @param remoteInterface The interface registered at the server
+     * @param asyncView The local mirror interface
+     * @return .
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getAsyncGlobal(final Class<?> remoteInterface, final Class<T> asyncView) {
+        return (T) Proxy.newProxyInstance(asyncView.getClassLoader(), new Class<?>[] { asyncView }, new CallProxy(this.connectionHandler, remoteInterface));
+    }
+
     /**
      * @param listener
      */
@@ -0,0 +1,257 @@
+/*
+ * ClientPool.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.net;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.CallProxy;
+import net.sf.lipermi.handler.ConnectionHandler;
+import net.sf.lipermi.handler.IConnectionHandlerListener;
+import net.sf.lipermi.handler.filter.DefaultFilter;
+import net.sf.lipermi.handler.filter.IProtocolFilter;
+
+/**
+ * A client opening several connections to the same server. Proxies obtained from the
+ * pool send each call on the connection with the fewest calls in flight, so calls are
+ * written, read and decoded in parallel. Use it like a {@link Client}.
+ * 
+ * All connections share the pool's {@link CallHandler}, so objects exported to the
+ * server (i.e., callbacks) can be called on any of them. Remote objects returned by a
+ * call stay bound to the connection they came on.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.net.Client
+ */
+public class ClientPool {
+
+    /** Calls a connection picked per call */
+    private class PooledCallProxy extends CallProxy {
+        private final CallProxy[] proxies;
+
+        PooledCallProxy(final CallProxy[] proxies) {
+            super(ClientPool.this.connectionHandlers[0]);
+            this.proxies = proxies;
+        }
+
+        /* (non-Javadoc)
+         * @see net.sf.lipermi.handler.CallProxy#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+         */
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                                                                                          throws Throwable {
+            return this.proxies[select()].invoke(proxy, method, args);
+        }
+
+        /* (non-Javadoc)
+         * @see net.sf.lipermi.handler.CallProxy#setTimeout(long, java.util.concurrent.TimeUnit)
+         */
+        @Override
+        public void setTimeout(final long timeout, final TimeUnit unit) {
+            super.setTimeout(timeout, unit);
+            for (final CallProxy callProxy : this.proxies) {
+                callProxy.setTimeout(timeout, unit);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see net.sf.lipermi.handler.CallProxy#setOneWay(boolean)
+         */
+        @Override
+        public void setOneWay(final boolean oneWay) {
+            super.setOneWay(oneWay);
+            for (final CallProxy callProxy : this.proxies) {
+                callProxy.setOneWay(oneWay);
+            }
+        }
+    }
+
+    private final ConnectionHandler[] connectionHandlers;
+
+    /** Where the search for the least busy connection starts, so ties are spread */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Number of connections still open */
+    private final AtomicInteger open = new AtomicInteger();
+
+    private final IConnectionHandlerListener connectionHandlerListener = new IConnectionHandlerListener() {
+        public void connectionClosed() {
+            if (ClientPool.this.open.decrementAndGet() > 0) return;
+
+            for (final IClientListener listener : ClientPool.this.listeners) {
+                listener.disconnected();
+            }
+        }
+    };
+
+    final List<IClientListener> listeners = new LinkedList<IClientListener>();
+
+    /**
+     * @param address
+     * @param port
+     * @param callHandler
+     * @param connections Number of connections to open.
+     * @throws IOException
+     */
+    public ClientPool(final String address, final int port, final CallHandler callHandler,
+                      final int connections) throws IOException {
+        this(address, port, callHandler, new DefaultFilter(), new SocketTransport(), connections);
+    }
+
+    /**
+     * @param address
+     * @param port
+     * @param callHandler
+     * @param filter Used by all connections, so it must be thread safe.
+     * @param transport
+     * @param connections Number of connections to open.
+     * @throws IOException
+     */
+    public ClientPool(final String address, final int port, final CallHandler callHandler,
+                      final IProtocolFilter filter, final Transport transport,
+                      final int connections) throws IOException {
+        if (connections < 1) throw new IllegalArgumentException("Need at least one connection."); //$NON-NLS-1$
+
+        this.connectionHandlers = new ConnectionHandler[connections];
+        try {
+            for (int i = 0; i < connections; i++) {
+                this.connectionHandlers[i] = transport.connect(address, port, callHandler, filter, this.connectionHandlerListener);
+                this.open.incrementAndGet();
+            }
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param listener Told once all connections are gone.
+     */
+    public void addClientListener(final IClientListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Closes all connections.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        IOException failure = null;
+
+        for (final ConnectionHandler connectionHandler : this.connectionHandlers) {
+            if (connectionHandler == null) continue;
+            try {
+                connectionHandler.close();
+            } catch (final IOException e) {
+                failure = e;
+            }
+        }
+
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * @return Number of connections of the pool (open or not).
+     */
+    public int getConnectionCount() {
+        return this.connectionHandlers.length;
+    }
+
+    /**
+     * @param clazz
+     * @return A proxy spreading its calls over the connections of the pool.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getGlobal(final Class<T> clazz) {
+        final CallProxy[] proxies = new CallProxy[this.connectionHandlers.length];
+        for (int i = 0; i < proxies.length; i++) {
+            proxies[i] = new CallProxy(this.connectionHandlers[i]);
+        }
+
+        return (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] { clazz }, new PooledCallProxy(proxies));
+    }
+
+    /**
+     * Returns an asynchronous view of a global remote interface, spreading its calls
+     * over the connections of the pool.
+     * 
+     * @param remoteInterface The interface registered at the server
+     * @param asyncView The local mirror interface
+     * @return .
+     * @see Client#getAsyncGlobal(Class, Class)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getAsyncGlobal(final Class<?> remoteInterface, final Class<T> asyncView) {
+        final CallProxy[] proxies = new CallProxy[this.connectionHandlers.length];
+        for (int i = 0; i < proxies.length; i++) {
+            proxies[i] = new CallProxy(this.connectionHandlers[i], remoteInterface);
+        }
+
+        return (T) Proxy.newProxyInstance(asyncView.getClassLoader(), new Class<?>[] { asyncView }, new PooledCallProxy(proxies));
+    }
+
+    /**
+     * @param listener
+     */
+    public void removeClientListener(final IClientListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * @return Index of the open connection with the fewest calls in flight (or of any
+     * connection, if all are closed).
+     */
+    int select() {
+        final ConnectionHandler[] handlers = this.connectionHandlers;
+        final int start = (this.next.getAndIncrement() & Integer.MAX_VALUE) % handlers.length;
+
+        int best = start;
+        int bestCount = Integer.MAX_VALUE;
+        for (int i = 0; i < handlers.length; i++) {
+            final int index = (start + i) % handlers.length;
+            if (handlers[index].isClosed()) continue;
+
+            final int count = handlers[index].getPendingCallCount();
+            if (count < bestCount) {
+                best = index;
+                bestCount = count;
+                if (count == 0) break;
+            }
+        }
+
+        return best;
+    }
+}
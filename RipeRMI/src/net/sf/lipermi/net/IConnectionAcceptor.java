@@ -0,0 +1,55 @@
+/*
+ * IConnectionAcceptor.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.net;
+
+import java.net.Socket;
+
+import net.sf.lipermi.exception.OverloadException;
+import net.sf.lipermi.handler.IConnectionHandlerListener;
+
+/**
+ * Told by a {@link Transport} about every connection it accepted.
+ * 
+ * @author rb
+ * 
+ * @see    net.sf.lipermi.net.Transport#bind
+ */
+public interface IConnectionAcceptor {
+
+    /**
+     * Called for every accepted connection, before its handler starts reading.
+     * 
+     * @param socket
+     * @return Listener to attach to the connection's handler.
+     * @throws OverloadException If the connection is not admitted. The transport then
+     * tells the peer (see {@link net.sf.lipermi.handler.ConnectionHandler#reject}) and
+     * closes the connection without creating a handler.
+     */
+    IConnectionHandlerListener connectionAccepted(Socket socket);
+
+}
@@ -22,15 +22,15 @@
 
 package net.sf.lipermi.net;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.sf.lipermi.exception.OverloadException;
 import net.sf.lipermi.handler.CallHandler;
-import net.sf.lipermi.handler.ConnectionHandler;
 import net.sf.lipermi.handler.IConnectionHandlerListener;
 import net.sf.lipermi.handler.filter.DefaultFilter;
 import net.sf.lipermi.handler.filter.IProtocolFilter;
@@ -40,6 +40,12 @@ import net.sf.lipermi.handler.filter.IProtocolFilter;
  * This object listen to a specific port and
  * when a client connects it delegates the connection
  * to a {@link net.sf.lipermi.handler.ConnectionHandler ConnectionHandler}.
+ * How connections are accepted depends on the {@link Transport}.
+ * 
+ * The number of connections and the rate at which new ones are
+ * admitted can be limited. Connections beyond the limits are told
+ * why they are rejected and closed, their calls fail with an
+ * {@link net.sf.lipermi.exception.OverloadException OverloadException}.
  * 
  * @author lipe
  * @date   05/10/2006
@@ -49,11 +55,42 @@ import net.sf.lipermi.handler.filter.IProtocolFilter;
  */
 public class Server {
 
-    boolean enabled;
-
     final List<IServerListener> listeners = new LinkedList<IServerListener>();
 
-    ServerSocket serverSocket;
+    final List<IServerRejectionListener> rejectionListeners = new LinkedList<IServerRejectionListener>();
+
+    private final Transport transport;
+
+    private Closeable binding;
+
+    /** Number of admitted connections still open */
+    private final AtomicInteger connections = new AtomicInteger(0);
+
+    /** Max. number of open connections, 0 if unlimited */
+    private volatile int maxConnections = 0;
+
+    /** Max. number of connections admitted per second, 0 if unlimited */
+    private double maxAcceptRate = 0;
+
+    /** Connections we may admit right now, refilled at maxAcceptRate (guarded by this) */
+    private double acceptPermits = 0;
+
+    /** When acceptPermits was last refilled (guarded by this) */
+    private long acceptPermitTime = 0;
+
+    /**
+     * Creates a server using a {@link SocketTransport}.
+     */
+    public Server() {
+        this(new SocketTransport());
+    }
+
+    /**
+     * @param transport
+     */
+    public Server(final Transport transport) {
+        this.transport = transport;
+    }
 
     /**
      * @param listener
@@ -62,6 +99,13 @@ public class Server {
         this.listeners.add(listener);
     }
 
+    /**
+     * @param listener Told about connections not admitted.
+     */
+    public void addRejectionListener(final IServerRejectionListener listener) {
+        this.rejectionListeners.add(listener);
+    }
+
     /**
      * @param port
      * @param callHandler
@@ -77,57 +121,128 @@ public class Server {
      * @param filter
      * @throws IOException
      */
-    @SuppressWarnings("boxing")
     public void bind(final int port, final CallHandler callHandler,
                      final IProtocolFilter filter) throws IOException {
-        this.serverSocket = new ServerSocket();
-        this.serverSocket.setPerformancePreferences(1, 2, 0);
-        this.enabled = true;
-
-        this.serverSocket.bind(new InetSocketAddress(port));
-
-        final Thread bindThread = new Thread(new Runnable() {
-            public void run() {
-                while (Server.this.enabled) {
-                    Socket acceptSocket = null;
-                    try {
-                        acceptSocket = Server.this.serverSocket.accept();
-                        acceptSocket.setTcpNoDelay(true);
-
-                        final Socket clientSocket = acceptSocket;
-                        ConnectionHandler.createConnectionHandler(clientSocket, callHandler, filter, new IConnectionHandlerListener() {
-
-                            public void connectionClosed() {
-                                for (final IServerListener listener : Server.this.listeners) {
-                                    listener.clientDisconnected(clientSocket);
-                                }
-                            }
-
-                        });
+        this.binding = this.transport.bind(port, callHandler, filter, new IConnectionAcceptor() {
+
+            public IConnectionHandlerListener connectionAccepted(final Socket clientSocket) {
+                final String rejection = admit();
+                if (rejection != null) {
+                    for (final IServerRejectionListener listener : Server.this.rejectionListeners) {
+                        listener.clientRejected(clientSocket, rejection);
+                    }
+                    throw new OverloadException(rejection);
+                }
+
+                for (final IServerListener listener : Server.this.listeners) {
+                    listener.clientConnected(clientSocket);
+                }
+
+                return new IConnectionHandlerListener() {
+
+                    public void connectionClosed() {
+                        Server.this.connections.decrementAndGet();
+
                         for (final IServerListener listener : Server.this.listeners) {
-                            listener.clientConnected(clientSocket);
+                            listener.clientDisconnected(clientSocket);
                         }
-                    } catch (final IOException e) {
-                        if (acceptSocket == null) return;
-                        if (!acceptSocket.isClosed()) e.printStackTrace();
                     }
-                }
+
+                };
             }
-        }, String.format("Bind (%d)", port)); //$NON-NLS-1$ 
-        bindThread.setDaemon(true);
-        bindThread.start();
+
+        });
     }
 
     /**
      * 
      */
     public void close() {
+        if (this.binding == null) return;
+
         try {
-            this.serverSocket.close();
+            this.binding.close();
         } catch (IOException e) {
             //
         }
-        this.enabled = false;
+    }
+
+    /**
+     * @return Number of open connections.
+     */
+    public int getConnectionCount() {
+        return this.connections.get();
+    }
+
+    /**
+     * @return Max. number of open connections, 0 if unlimited.
+     */
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * Limits the number of open connections. Further connections are rejected until
+     * some are closed.
+     * 
+     * @param max Max. number of connections, 0 for no limit.
+     */
+    public void setMaxConnections(final int max) {
+        this.maxConnections = max;
+    }
+
+    /**
+     * @return Max. number of connections admitted per second, 0 if unlimited.
+     */
+    public synchronized double getMaxAcceptRate() {
+        return this.maxAcceptRate;
+    }
+
+    /**
+     * Limits the rate at which connections are admitted, so reconnect storms don't
+     * flood the server. Up to a second's worth of connections may be admitted at once,
+     * further connections are rejected.
+     * 
+     * @param perSecond Max. number of connections per second, 0 for no limit.
+     */
+    public synchronized void setMaxAcceptRate(final double perSecond) {
+        this.maxAcceptRate = perSecond;
+        this.acceptPermits = Math.max(perSecond, 1);
+        this.acceptPermitTime = System.nanoTime();
+    }
+
+    /**
+     * Decides whether to admit a new connection, and counts it if so.
+     * 
+     * @return Why the connection is rejected, or null if it is admitted.
+     */
+    String admit() {
+        if (!takeAcceptPermit()) return "Too many connection attempts, connection rejected."; //$NON-NLS-1$
+
+        final int max = this.maxConnections;
+        if (this.connections.incrementAndGet() > max && max > 0) {
+            this.connections.decrementAndGet();
+            return "Too many connections, connection rejected."; //$NON-NLS-1$
+        }
+
+        return null;
+    }
+
+    /**
+     * @return True if the accept rate allows another connection right now.
+     */
+    private synchronized boolean takeAcceptPermit() {
+        if (this.maxAcceptRate <= 0) return true;
+
+        final long now = System.nanoTime();
+        final double refill = (now - this.acceptPermitTime) * this.maxAcceptRate / 1000000000d;
+        this.acceptPermits = Math.min(Math.max(this.maxAcceptRate, 1), this.acceptPermits + refill);
+        this.acceptPermitTime = now;
+
+        if (this.acceptPermits < 1) return false;
+
+        this.acceptPermits--;
+        return true;
     }
 
     /**
@@ -137,4 +252,11 @@ public class Server {
         this.listeners.remove(listener);
     }
 
+    /**
+     * @param listener
+     */
+    public void removeRejectionListener(final IServerRejectionListener listener) {
+        this.rejectionListeners.remove(listener);
+    }
+
 }
@@ -0,0 +1,139 @@
+/*
+ * SocketTransport.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import net.sf.lipermi.exception.OverloadException;
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.ConnectionHandler;
+import net.sf.lipermi.handler.IConnectionHandlerListener;
+import net.sf.lipermi.handler.StreamConnectionHandler;
+import net.sf.lipermi.handler.filter.IProtocolFilter;
+
+/**
+ * The default transport. Uses blocking sockets with one
+ * reader thread per connection.
+ * 
+ * @author rb
+ * 
+ * @see    net.sf.lipermi.net.Transport
+ */
+public class SocketTransport extends Transport {
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.net.Transport#connect(java.lang.String, int, net.sf.lipermi.handler.CallHandler, net.sf.lipermi.handler.filter.IProtocolFilter, net.sf.lipermi.handler.IConnectionHandlerListener)
+     */
+    @Override
+    public ConnectionHandler connect(final String address, final int port,
+                                     final CallHandler callHandler, final IProtocolFilter filter,
+                                     final IConnectionHandlerListener listener)
+                                                                               throws IOException {
+        final Socket socket = new Socket(address, port);
+        socket.setTcpNoDelay(true);
+        return createConnectionHandler(socket, callHandler, filter, listener);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.net.Transport#bind(int, net.sf.lipermi.handler.CallHandler, net.sf.lipermi.handler.filter.IProtocolFilter, net.sf.lipermi.net.IConnectionAcceptor)
+     */
+    @SuppressWarnings("boxing")
+    @Override
+    public Closeable bind(final int port, final CallHandler callHandler,
+                          final IProtocolFilter filter, final IConnectionAcceptor acceptor)
+                                                                                           throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setPerformancePreferences(1, 2, 0);
+        serverSocket.bind(new InetSocketAddress(port), getBacklog());
+
+        final Thread bindThread = new Thread(new Runnable() {
+            public void run() {
+                long backoff = MIN_ACCEPT_BACKOFF;
+
+                while (!serverSocket.isClosed()) {
+                    Socket acceptSocket = null;
+                    try {
+                        acceptSocket = serverSocket.accept();
+                        backoff = MIN_ACCEPT_BACKOFF;
+                        acceptSocket.setTcpNoDelay(true);
+
+                        final IConnectionHandlerListener listener = acceptor.connectionAccepted(acceptSocket);
+                        createConnectionHandler(acceptSocket, callHandler, filter, listener);
+                    } catch (final OverloadException e) {
+                        ConnectionHandler.reject(acceptSocket, filter, e.getMessage());
+                    } catch (final IOException e) {
+                        if (serverSocket.isClosed()) return;
+                        if (acceptSocket != null) {
+                            if (!acceptSocket.isClosed()) e.printStackTrace();
+                            continue;
+                        }
+
+                        // Accepting failed (e.g., out of file descriptors), give it time to recover
+                        System.err.println("Accept failed, retrying in " + backoff + " ms: " + e); //$NON-NLS-1$ //$NON-NLS-2$
+                        try {
+                            Thread.sleep(backoff);
+                        } catch (final InterruptedException e1) {
+                            return;
+                        }
+                        backoff = Math.min(backoff * 2, MAX_ACCEPT_BACKOFF);
+                    }
+                }
+            }
+        }, String.format("Bind (%d)", port)); //$NON-NLS-1$ 
+        bindThread.setDaemon(true);
+        bindThread.start();
+
+        return serverSocket;
+    }
+
+    /**
+     * Creates a connection handler for a socket and starts it once it is configured.
+     * 
+     * @param socket
+     * @param callHandler
+     * @param filter
+     * @param listener May be null.
+     * @return .
+     */
+    private ConnectionHandler createConnectionHandler(final Socket socket,
+                                                      final CallHandler callHandler,
+                                                      final IProtocolFilter filter,
+                                                      final IConnectionHandlerListener listener) {
+        final StreamConnectionHandler connectionHandler = new StreamConnectionHandler(socket, callHandler, filter);
+        configure(connectionHandler);
+        if (listener != null) connectionHandler.addConnectionHandlerListener(listener);
+        connectionHandler.start();
+
+        return connectionHandler;
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * Transport.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.ConnectionHandler;
+import net.sf.lipermi.handler.IConnectionHandlerListener;
+import net.sf.lipermi.handler.filter.IProtocolFilter;
+
+/**
+ * A transport creates the connections {@link Server}s and {@link Client}s
+ * talk over. The default {@link SocketTransport} uses blocking sockets and a
+ * thread per connection, {@link net.sf.lipermi.net.nio.NioTransport NioTransport}
+ * multiplexes all connections over a few selector threads.
+ * 
+ * @author rb
+ * 
+ * @see    net.sf.lipermi.net.Server
+ * @see    net.sf.lipermi.net.Client
+ */
+public abstract class Transport {
+
+    /** Wait (in ms) after accepting failed the first time in a row */
+    protected static final long MIN_ACCEPT_BACKOFF = 10;
+
+    /** Max. wait (in ms) after accepting failed */
+    protected static final long MAX_ACCEPT_BACKOFF = 1000;
+
+    /** How long (in ns) connections may hold back writes to batch them */
+    private volatile long maxWriteLatency = 0;
+
+    /** Max. number of calls a connection executes at the same time, 0 if unlimited */
+    private volatile int maxInFlightCalls = 0;
+
+    /** Heartbeat interval (in ns) of connections, 0 if they don't check */
+    private volatile long heartbeatInterval = 0;
+
+    /** Number of heartbeats connections may miss */
+    private volatile int maxMissedHeartbeats = 3;
+
+    /** After how long (in ns) idle connections are closed, 0 if never */
+    private volatile long idleTimeout = 0;
+
+    /** Max. number of connections waiting to be accepted by a server socket */
+    private volatile int backlog = 1024;
+
+    /** Duration (in ns) of leases on auto exported objects, 0 for the default */
+    private volatile long leaseDuration = 0;
+
+    /**
+     * Connects to a server.
+     * 
+     * @param address
+     * @param port
+     * @param callHandler
+     * @param filter
+     * @param listener Attached before the connection starts reading.
+     * @return The handler of the new connection.
+     * @throws IOException
+     */
+    public abstract ConnectionHandler connect(String address, int port,
+                                              CallHandler callHandler,
+                                              IProtocolFilter filter,
+                                              IConnectionHandlerListener listener)
+                                                                                  throws IOException;
+
+    /**
+     * Starts accepting connections on the given port.
+     * 
+     * @param port
+     * @param callHandler
+     * @param filter
+     * @param acceptor Told about every accepted connection.
+     * @return Closing it stops accepting connections.
+     * @throws IOException
+     */
+    public abstract Closeable bind(int port, CallHandler callHandler, IProtocolFilter filter,
+                                   IConnectionAcceptor acceptor) throws IOException;
+
+    /**
+     * Sets how long connections created from now on may hold back a write to batch
+     * it with others.
+     * 
+     * @param time
+     * @param unit
+     * @see ConnectionHandler#setMaxWriteLatency(long, TimeUnit)
+     */
+    public void setMaxWriteLatency(final long time, final TimeUnit unit) {
+        this.maxWriteLatency = unit.toNanos(time);
+    }
+
+    /**
+     * @param unit
+     * @return The max. time connections hold back a write.
+     */
+    public long getMaxWriteLatency(final TimeUnit unit) {
+        return unit.convert(this.maxWriteLatency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how many calls of the peer connections created from now on execute at the
+     * same time. Calls beyond the limit fail with an
+     * {@link net.sf.lipermi.exception.OverloadException OverloadException}.
+     * 
+     * @param max Max. number of calls, 0 for no limit.
+     * @see ConnectionHandler#setMaxInFlightCalls(int)
+     */
+    public void setMaxInFlightCalls(final int max) {
+        this.maxInFlightCalls = max;
+    }
+
+    /**
+     * @return Max. number of calls a connection executes at the same time, 0 if unlimited.
+     */
+    public int getMaxInFlightCalls() {
+        return this.maxInFlightCalls;
+    }
+
+    /**
+     * Sets the heartbeats of connections created from now on.
+     * 
+     * @param interval 0 to turn heartbeats off.
+     * @param unit
+     * @param maxMissed Number of intervals without news before a connection is closed.
+     * @see ConnectionHandler#setHeartbeat(long, TimeUnit, int)
+     */
+    public void setHeartbeat(final long interval, final TimeUnit unit, final int maxMissed) {
+        if (maxMissed < 1) throw new IllegalArgumentException("At least one heartbeat must be allowed to be missed."); //$NON-NLS-1$
+
+        this.heartbeatInterval = unit.toNanos(interval);
+        this.maxMissedHeartbeats = maxMissed;
+    }
+
+    /**
+     * @param unit
+     * @return The heartbeat interval of connections, 0 if they don't check.
+     */
+    public long getHeartbeatInterval(final TimeUnit unit) {
+        return unit.convert(this.heartbeatInterval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets after how long without activity connections created from now on are closed.
+     * Usually set on the transport of a server, to reap connections of clients that
+     * went away silently.
+     * 
+     * @param timeout 0 to keep idle connections open.
+     * @param unit
+     * @see ConnectionHandler#setIdleTimeout(long, TimeUnit)
+     */
+    public void setIdleTimeout(final long timeout, final TimeUnit unit) {
+        this.idleTimeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param unit
+     * @return After how long idle connections are closed, 0 if never.
+     */
+    public long getIdleTimeout(final TimeUnit unit) {
+        return unit.convert(this.idleTimeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how long leases on auto exported objects of connections created from now on
+     * last unless they are renewed.
+     * 
+     * @param duration 0 for the default (10 minutes).
+     * @param unit
+     * @see ConnectionHandler#setLeaseDuration(long, TimeUnit)
+     */
+    public void setLeaseDuration(final long duration, final TimeUnit unit) {
+        this.leaseDuration = unit.toNanos(duration);
+    }
+
+    /**
+     * @param unit
+     * @return The duration of leases, 0 for the default.
+     */
+    public long getLeaseDuration(final TimeUnit unit) {
+        return unit.convert(this.leaseDuration, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how many connections the OS queues for servers bound from now on while they
+     * wait to be accepted. Connections beyond are refused by the OS.
+     * 
+     * @param backlog
+     */
+    public void setBacklog(final int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * @return Max. number of connections waiting to be accepted by a server.
+     */
+    public int getBacklog() {
+        return this.backlog;
+    }
+
+    /**
+     * Applies the settings of this transport to a new connection.
+     * 
+     * @param connectionHandler
+     * @return The connection handler.
+     */
+    protected ConnectionHandler configure(final ConnectionHandler connectionHandler) {
+        connectionHandler.setMaxWriteLatency(this.maxWriteLatency, TimeUnit.NANOSECONDS);
+        connectionHandler.setMaxInFlightCalls(this.maxInFlightCalls);
+        if (this.heartbeatInterval > 0) connectionHandler.setHeartbeat(this.heartbeatInterval, TimeUnit.NANOSECONDS, this.maxMissedHeartbeats);
+        if (this.idleTimeout > 0) connectionHandler.setIdleTimeout(this.idleTimeout, TimeUnit.NANOSECONDS);
+        if (this.leaseDuration > 0) connectionHandler.setLeaseDuration(this.leaseDuration, TimeUnit.NANOSECONDS);
+        return connectionHandler;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * NioConnectionHandler.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.net.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+
+import net.sf.lipermi.call.BufferPool;
+import net.sf.lipermi.call.MessageCodec;
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.ConnectionHandler;
+import net.sf.lipermi.handler.filter.IProtocolFilter;
+
+/**
+ * A ConnectionHandler on a non-blocking channel, driven by a {@link SelectorLoop}.
+ * Messages are sent as frames encoded by the {@link MessageCodec}.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.net.nio.NioTransport
+ */
+class NioConnectionHandler extends ConnectionHandler implements IChannelHandler {
+
+    /** Max. number of reads per readiness, so one busy connection can't starve the loop */
+    private static final int MAX_READS = 16;
+
+    /** Max. number of frames written at once */
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * Max. number of bytes read into or written from a heap buffer at once, as the channel
+     * copies them through a temporary direct buffer of that size
+     */
+    private static final int MAX_HEAP_IO = 256 * 1024;
+
+    /** Our channel */
+    private final SocketChannel channel;
+
+    /** The loop we are registered with */
+    private final SelectorLoop loop;
+
+    /** Partially read frames, only touched by the loop; taken from the pool */
+    private ByteBuffer readBuffer = BufferPool.getDefault().acquire(8192);
+
+    /** Frames handed to a single gathering write, only used by the writing thread */
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    NioConnectionHandler(final SocketChannel channel, final SelectorLoop loop,
+                         final CallHandler callHandler, final IProtocolFilter filter) {
+        super(channel.socket(), callHandler, filter);
+
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /**
+     * Starts reading.
+     */
+    void register() {
+        this.loop.register(this.channel, SelectionKey.OP_READ, this);
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.ConnectionHandler#close()
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.channel.close();
+        } finally {
+            this.loop.wakeup();
+            disconnected();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.net.nio.IChannelHandler#channelReady(java.nio.channels.SelectionKey)
+     */
+    public void channelReady(final SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                key.interestOps(SelectionKey.OP_READ);
+                flushOutbound();
+            }
+        } catch (final Exception e) {
+            if (!(e instanceof EOFException) && this.channel.isOpen()) e.printStackTrace();
+            closeQuietly();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.ConnectionHandler#writeFrames(java.util.Queue)
+     */
+    @Override
+    protected boolean writeFrames(final Queue<ByteBuffer> frames) throws IOException {
+        final ByteBuffer[] gather = this.gather;
+
+        try {
+            while (true) {
+                // Large heap frames (beyond the pooled sizes) are written alone, in slices
+                final ByteBuffer head = frames.peek();
+                if (head != null && isLarge(head)) {
+                    if (!writeSlice(head)) return false;
+                    if (!head.hasRemaining()) BufferPool.getDefault().release(frames.poll());
+                    continue;
+                }
+
+                // Only the writer removes frames, so the head of the queue stays put
+                int count = 0;
+                for (final ByteBuffer frame : frames) {
+                    if (isLarge(frame)) break;
+                    gather[count++] = frame;
+                    if (count == gather.length) break;
+                }
+                if (count == 0) return true;
+
+                this.channel.write(gather, 0, count);
+
+                for (int i = 0; i < count; i++) {
+                    // Channel is full, see writeBlocked()
+                    if (gather[i].hasRemaining()) return false;
+                    BufferPool.getDefault().release(frames.poll());
+                }
+            }
+        } finally {
+            Arrays.fill(gather, null);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.handler.ConnectionHandler#writeBlocked()
+     */
+    @Override
+    protected void writeBlocked() {
+        // The loop continues once the channel is writable again
+        this.loop.interestOps(this.channel, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * @param buffer
+     * @return True if the buffer is a heap buffer the channel should only see slices of.
+     */
+    private static boolean isLarge(final ByteBuffer buffer) {
+        return !buffer.isDirect() && buffer.remaining() > MAX_HEAP_IO;
+    }
+
+    /**
+     * Writes the next bytes of a frame, at most {@link #MAX_HEAP_IO} of them.
+     * 
+     * @param frame
+     * @return False if the channel is full.
+     * @throws IOException
+     */
+    private boolean writeSlice(final ByteBuffer frame) throws IOException {
+        final ByteBuffer slice = frame.duplicate();
+        slice.limit(slice.position() + Math.min(slice.remaining(), MAX_HEAP_IO));
+        this.channel.write(slice);
+        frame.position(slice.position());
+        return !slice.hasRemaining();
+    }
+
+    /**
+     * Reads into a buffer, at most {@link #MAX_HEAP_IO} bytes if it is a heap buffer.
+     * 
+     * @param buffer
+     * @return The number of bytes read, -1 at the end of the stream.
+     * @throws IOException
+     */
+    private int readSlice(final ByteBuffer buffer) throws IOException {
+        if (!isLarge(buffer)) return this.channel.read(buffer);
+
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + MAX_HEAP_IO);
+        final int read = this.channel.read(slice);
+        buffer.position(slice.position());
+        return read;
+    }
+
+    /**
+     * Reads whatever is available and handles all complete frames.
+     * 
+     * @throws Exception
+     */
+    private void read() throws Exception {
+        for (int i = 0; i < MAX_READS; i++) {
+            final int read = readSlice(this.readBuffer);
+            if (read < 0) throw new EOFException();
+            if (read == 0) return;
+
+            this.readBuffer.flip();
+            final int needed = readFrames();
+            this.readBuffer.compact();
+
+            // Make sure the next frame fits
+            if (needed > this.readBuffer.capacity()) {
+                final ByteBuffer larger = BufferPool.getDefault().acquire(needed);
+                this.readBuffer.flip();
+                larger.put(this.readBuffer);
+                BufferPool.getDefault().release(this.readBuffer);
+                this.readBuffer = larger;
+            }
+        }
+    }
+
+    /**
+     * Handles all complete frames in the (flipped) read buffer.
+     * 
+     * @return The size of the next, incomplete frame or 0.
+     * @throws Exception
+     */
+    private int readFrames() throws Exception {
+        final ByteBuffer buffer = this.readBuffer;
+
+        while (buffer.remaining() >= 4) {
+            final int length = buffer.getInt(buffer.position());
+            if (length < 0 || length > MessageCodec.MAX_FRAME_SIZE)
+                throw new IOException("Invalid frame length " + length); //$NON-NLS-1$
+
+            if (buffer.remaining() < length + 4) return length + 4;
+
+            // Hand out the payload, then skip it whatever the handler did with the buffer
+            final int start = buffer.position() + 4;
+            final int limit = buffer.limit();
+            buffer.limit(start + length);
+            buffer.position(start);
+
+            try {
+                frameReceived(buffer);
+            } finally {
+                buffer.limit(limit);
+                buffer.position(start + length);
+            }
+        }
+
+        return 0;
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (final IOException e) {
+            //
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * NioTransport.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.net.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.lipermi.exception.OverloadException;
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.ConnectionHandler;
+import net.sf.lipermi.handler.IConnectionHandlerListener;
+import net.sf.lipermi.handler.filter.IProtocolFilter;
+import net.sf.lipermi.net.IConnectionAcceptor;
+import net.sf.lipermi.net.Transport;
+
+/**
+ * A transport multiplexing all connections over a small number of selector
+ * threads (by default one per core), using non-blocking channels. Connections
+ * don't need a thread of their own, so a single transport can serve many
+ * thousand of them. A transport may be shared by several servers and clients.
+ * 
+ * @author rb
+ * 
+ * @see net.sf.lipermi.net.Server#Server(Transport)
+ * @see net.sf.lipermi.net.Client#Client(String, int, CallHandler, IProtocolFilter, Transport)
+ */
+public class NioTransport extends Transport {
+
+    /** Accepts connections of a server channel */
+    private class Acceptor implements IChannelHandler {
+        private final ServerSocketChannel serverChannel;
+
+        private final SelectorLoop loop;
+
+        private final CallHandler callHandler;
+
+        private final IProtocolFilter filter;
+
+        private final IConnectionAcceptor acceptor;
+
+        /** Wait (in ms) after accepting fails next; only used by the loop thread */
+        private long backoff = MIN_ACCEPT_BACKOFF;
+
+        /** Key of the server channel, once accepting failed */
+        private SelectionKey key = null;
+
+        /**
+         * Accepts again after a failure. Created up front, as loading a class while out of
+         * file descriptors fails too.
+         */
+        private final Runnable resume = new Runnable() {
+            public void run() {
+                if (Acceptor.this.key.isValid()) Acceptor.this.key.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        };
+
+        Acceptor(final ServerSocketChannel serverChannel, final SelectorLoop loop,
+                 final CallHandler callHandler, final IProtocolFilter filter,
+                 final IConnectionAcceptor acceptor) {
+            this.serverChannel = serverChannel;
+            this.loop = loop;
+            this.callHandler = callHandler;
+            this.filter = filter;
+            this.acceptor = acceptor;
+        }
+
+        public void channelReady(final SelectionKey key) {
+            while (true) {
+                final SocketChannel channel;
+                try {
+                    channel = this.serverChannel.accept();
+                } catch (final IOException e) {
+                    acceptFailed(key, e);
+                    return;
+                }
+
+                if (channel == null) return;
+                this.backoff = MIN_ACCEPT_BACKOFF;
+                accepted(channel);
+            }
+        }
+
+        private void accepted(final SocketChannel channel) {
+            final IConnectionHandlerListener listener;
+            try {
+                listener = this.acceptor.connectionAccepted(channel.socket());
+            } catch (final OverloadException e) {
+                ConnectionHandler.reject(channel, this.filter, e.getMessage());
+                return;
+            }
+
+            try {
+                createConnectionHandler(channel, this.callHandler, this.filter, listener);
+            } catch (final IOException e) {
+                abandon(channel, listener, e);
+            } catch (final RuntimeException e) {
+                abandon(channel, listener, e);
+            }
+        }
+
+        /**
+         * Closes a connection we admitted but couldn't create a handler for, and tells
+         * the listener the handler would have told.
+         */
+        private void abandon(final SocketChannel channel, final IConnectionHandlerListener listener,
+                             final Exception e) {
+            e.printStackTrace();
+            try {
+                channel.close();
+            } catch (final IOException e1) {
+                //
+            }
+            if (listener != null) listener.connectionClosed();
+        }
+
+        /**
+         * Stops accepting for a while, so a lasting failure (e.g., out of file descriptors)
+         * doesn't make the loop spin.
+         */
+        private void acceptFailed(final SelectionKey key, final IOException e) {
+            if (!this.serverChannel.isOpen()) return;
+
+            System.err.println("Accept failed, retrying in " + this.backoff + " ms: " + e); //$NON-NLS-1$ //$NON-NLS-2$
+            this.key = key;
+            key.interestOps(0);
+            this.loop.schedule(this.resume, this.backoff);
+            this.backoff = Math.min(this.backoff * 2, MAX_ACCEPT_BACKOFF);
+        }
+    }
+
+    /** Number of loops to create */
+    private final int loopCount;
+
+    /** Our loops, created on first use */
+    private SelectorLoop[] loops;
+
+    /** Round robin counter to pick a loop for a new connection */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Creates a transport with one selector thread per core.
+     */
+    public NioTransport() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param loopCount Number of selector threads.
+     */
+    public NioTransport(final int loopCount) {
+        if (loopCount < 1) throw new IllegalArgumentException("At least one loop is required."); //$NON-NLS-1$
+        this.loopCount = loopCount;
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.net.Transport#connect(java.lang.String, int, net.sf.lipermi.handler.CallHandler, net.sf.lipermi.handler.filter.IProtocolFilter, net.sf.lipermi.handler.IConnectionHandlerListener)
+     */
+    @Override
+    public ConnectionHandler connect(final String address, final int port,
+                                     final CallHandler callHandler, final IProtocolFilter filter,
+                                     final IConnectionHandlerListener listener)
+                                                                               throws IOException {
+        loops();
+
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port));
+        try {
+            return createConnectionHandler(channel, callHandler, filter, listener);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.sf.lipermi.net.Transport#bind(int, net.sf.lipermi.handler.CallHandler, net.sf.lipermi.handler.filter.IProtocolFilter, net.sf.lipermi.net.IConnectionAcceptor)
+     */
+    @Override
+    public Closeable bind(final int port, final CallHandler callHandler,
+                          final IProtocolFilter filter, final IConnectionAcceptor acceptor)
+                                                                                           throws IOException {
+        final SelectorLoop loop = loops()[0];
+
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setPerformancePreferences(1, 2, 0);
+        serverChannel.socket().bind(new InetSocketAddress(port), getBacklog());
+        serverChannel.configureBlocking(false);
+
+        loop.register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor(serverChannel, loop, callHandler, filter, acceptor));
+
+        return new Closeable() {
+            public void close() throws IOException {
+                serverChannel.close();
+                loop.wakeup();
+            }
+        };
+    }
+
+    /**
+     * Stops all selector threads and closes all their connections.
+     */
+    public synchronized void close() {
+        if (this.loops == null) return;
+
+        for (final SelectorLoop loop : this.loops) {
+            loop.close();
+        }
+
+        this.loops = null;
+    }
+
+    ConnectionHandler createConnectionHandler(final SocketChannel channel,
+                                              final CallHandler callHandler,
+                                              final IProtocolFilter filter,
+                                              final IConnectionHandlerListener listener)
+                                                                                        throws IOException {
+        channel.socket().setTcpNoDelay(true);
+        channel.configureBlocking(false);
+
+        final SelectorLoop[] all = loops();
+        final SelectorLoop loop = all[(this.nextLoop.getAndIncrement() & Integer.MAX_VALUE) % all.length];
+
+        final NioConnectionHandler connectionHandler = new NioConnectionHandler(channel, loop, callHandler, filter);
+        configure(connectionHandler);
+        if (listener != null) connectionHandler.addConnectionHandlerListener(listener);
+        connectionHandler.register();
+
+        return connectionHandler;
+    }
+
+    @SuppressWarnings("boxing")
+    private synchronized SelectorLoop[] loops() throws IOException {
+        if (this.loops == null) {
+            final SelectorLoop[] created = new SelectorLoop[this.loopCount];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = new SelectorLoop(String.format("NioTransport (%d)", i)); //$NON-NLS-1$
+            }
+            this.loops = created;
+        }
+
+        return this.loops;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * SelectorLoop.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package net.sf.lipermi.net.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread driving one selector. All registrations and interest changes are
+ * executed on the loop thread, other threads hand them in as tasks.
+ * 
+ * @author rb
+ */
+class SelectorLoop implements Runnable {
+
+    /** Our selector */
+    private final Selector selector;
+
+    /** Tasks to run on the loop thread before the next select */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /** Tasks to run on the loop thread later, by due time (in ns); only used by the loop thread */
+    private final TreeMap<Long, Runnable> delayedTasks = new TreeMap<Long, Runnable>();
+
+    /** The loop thread */
+    private final Thread thread;
+
+    /** Cleared to stop the loop */
+    private volatile boolean running = true;
+
+    /**
+     * Opens the selector and starts the loop thread.
+     * 
+     * @param name
+     * @throws IOException
+     */
+    SelectorLoop(final String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return true if the current thread is the loop thread.
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Runs the task on the loop thread.
+     * 
+     * @param task
+     */
+    void execute(final Runnable task) {
+        this.tasks.add(task);
+        if (!inLoop()) this.selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread once the delay passed. Must be called on the loop
+     * thread.
+     * 
+     * @param task
+     * @param delay In ms.
+     */
+    void schedule(final Runnable task, final long delay) {
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        while (this.delayedTasks.containsKey(Long.valueOf(due))) {
+            due++;
+        }
+        this.delayedTasks.put(Long.valueOf(due), task);
+    }
+
+    /**
+     * Registers a channel with this loop.
+     * 
+     * @param channel
+     * @param ops
+     * @param handler
+     */
+    void register(final SelectableChannel channel, final int ops, final IChannelHandler handler) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    channel.register(SelectorLoop.this.selector, ops, handler);
+                } catch (final ClosedChannelException e) {
+                    // Closed before we got to it, nothing to do
+                }
+            }
+        });
+    }
+
+    /**
+     * Changes the interest set of a key. May be called from any thread.
+     * 
+     * @param channel
+     * @param ops
+     */
+    void interestOps(final SelectableChannel channel, final int ops) {
+        if (inLoop()) {
+            final SelectionKey key = channel.keyFor(this.selector);
+            if (key != null && key.isValid()) key.interestOps(ops);
+            return;
+        }
+
+        execute(new Runnable() {
+            public void run() {
+                interestOps(channel, ops);
+            }
+        });
+    }
+
+    /**
+     * Makes the loop process closed channels.
+     */
+    void wakeup() {
+        this.selector.wakeup();
+    }
+
+    /**
+     * Stops the loop and closes all its channels.
+     */
+    void close() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        while (this.running) {
+            try {
+                final long timeout = runDelayedTasks();
+                runTasks();
+
+                this.selector.select(timeout);
+
+                final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+                    ((IChannelHandler) key.attachment()).channelReady(key);
+                }
+            } catch (final IOException e) {
+                e.printStackTrace();
+            } catch (final RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Close everything we still have
+        for (final SelectionKey key : this.selector.keys()) {
+            try {
+                if (key.attachment() instanceof NioConnectionHandler) {
+                    ((NioConnectionHandler) key.attachment()).close();
+                } else {
+                    key.channel().close();
+                }
+            } catch (final IOException e) {
+                //
+            }
+        }
+
+        try {
+            this.selector.close();
+        } catch (final IOException e) {
+            //
+        }
+    }
+
+    /**
+     * Runs the delayed tasks that are due.
+     * 
+     * @return Time (in ms) until the next one is, 0 if there is none.
+     */
+    private long runDelayedTasks() {
+        Map.Entry<Long, Runnable> next;
+        while ((next = this.delayedTasks.firstEntry()) != null) {
+            final long left = next.getKey().longValue() - System.nanoTime();
+            if (left > 0) return Math.max(TimeUnit.NANOSECONDS.toMillis(left), 1);
+
+            this.delayedTasks.pollFirstEntry();
+            try {
+                next.getValue().run();
+            } catch (final RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return 0;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (final RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * ConnectionScaleTest.java
+ * 
+ * Copyright (c) 2009, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package test.nio;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.IRemoteFutureListener;
+import net.sf.lipermi.handler.RemoteFuture;
+import net.sf.lipermi.handler.filter.DefaultFilter;
+import net.sf.lipermi.net.Client;
+import net.sf.lipermi.net.Server;
+import net.sf.lipermi.net.nio.NioTransport;
+import test.wrapping.plugins.server.Service;
+import test.wrapping.plugins.server.impl.ServerImpl;
+
+/**
+ * Opens many idle and some active connections to a server on the loopback device, all
+ * over one {@link NioTransport}, and reports throughput, threads and heap.
+ * Each active connection always keeps one call in flight.
+ * 
+ * Usage: ConnectionScaleTest [idle] [active] [seconds]. The defaults (10000 idle,
+ * 1000 active) need about 23000 file descriptors (ulimit -n).
+ * 
+ * @author rb
+ */
+public class ConnectionScaleTest {
+
+    /** Asynchronous view of {@link Service#test(int)} */
+    public interface TestAsync {
+        public RemoteFuture<Integer> test(int y);
+    }
+
+    /** Issues the next call as soon as the last one returned */
+    static class Driver implements IRemoteFutureListener<Integer> {
+        private final TestAsync service;
+
+        private final AtomicLong calls;
+
+        private final AtomicLong errors;
+
+        Driver(final TestAsync service, final AtomicLong calls, final AtomicLong errors) {
+            this.service = service;
+            this.calls = calls;
+            this.errors = errors;
+        }
+
+        void next() {
+            try {
+                this.service.test(21).addListener(this);
+            } catch (final RuntimeException e) {
+                this.errors.incrementAndGet();
+            }
+        }
+
+        public void completed(final Integer result) {
+            this.calls.incrementAndGet();
+            next();
+        }
+
+        public void failed(final Throwable cause) {
+            this.errors.incrementAndGet();
+        }
+    }
+
+    @SuppressWarnings("boxing")
+    public static void main(final String[] args) throws Exception {
+        final int idle = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int active = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        final int port = 55662;
+
+        final NioTransport serverTransport = new NioTransport();
+        final NioTransport clientTransport = new NioTransport();
+
+        final CallHandler serverHandler = new CallHandler();
+        serverHandler.registerGlobal(Service.class, new ServerImpl());
+
+        final Server server = new Server(serverTransport);
+        server.bind(port, serverHandler);
+
+        final CallHandler clientHandler = new CallHandler();
+        final List<Client> clients = new ArrayList<Client>();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < idle + active; i++) {
+            clients.add(new Client("127.0.0.1", port, clientHandler, new DefaultFilter(), clientTransport));
+        }
+        System.out.printf("%d connections opened in %d ms%n", clients.size(), System.currentTimeMillis() - start);
+
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        for (int i = idle; i < idle + active; i++) {
+            final TestAsync service = clients.get(i).getAsyncGlobal(Service.class, TestAsync.class);
+            new Driver(service, calls, errors).next();
+        }
+
+        for (int s = 1; s <= seconds; s++) {
+            final long before = calls.get();
+            Thread.sleep(1000);
+
+            final Runtime runtime = Runtime.getRuntime();
+            System.out.printf("%3d s: %8d calls/s, %d errors, %d threads, %d MB heap%n", s, calls.get() - before, errors.get(), ManagementFactory.getThreadMXBean().getThreadCount(), (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        }
+
+        for (final Client client : clients) {
+            client.close();
+        }
+        server.close();
+        clientTransport.close();
+        serverTransport.close();
+    }
+}
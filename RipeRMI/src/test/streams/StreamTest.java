@@ -0,0 +1,232 @@
+/*
+ * StreamTest.java
+ * 
+ * Copyright (c) 2011, Ralf Biedert All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package test.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.handler.filter.DefaultFilter;
+import net.sf.lipermi.net.Client;
+import net.sf.lipermi.net.IClientListener;
+import net.sf.lipermi.net.Server;
+import net.sf.lipermi.net.SocketTransport;
+import net.sf.lipermi.net.Transport;
+import net.sf.lipermi.net.nio.NioTransport;
+
+/**
+ * Passes streams to and returns them from remote methods on the loopback device, and
+ * checks that they arrive completely, that flow control holds back senders of streams
+ * nobody reads, and that streams are closed once calls or connections end.
+ * 
+ * Usage: StreamTest [socket|nio]
+ * 
+ * @author rb
+ */
+public class StreamTest {
+
+    /** The remote interface */
+    public interface StreamService {
+        public long count(InputStream in) throws IOException;
+
+        public long countChannel(ReadableByteChannel channel) throws IOException;
+
+        public int ignore(InputStream in);
+
+        public InputStream produce(long size);
+
+        public ReadableByteChannel produceChannel(long size);
+
+        public long getProduced();
+
+        public int ping(int x);
+    }
+
+    /** Generates a stream of the given size, counting the bytes read from it */
+    static class Generator extends InputStream {
+        private final AtomicLong produced;
+
+        private long left;
+
+        Generator(final long size, final AtomicLong produced) {
+            this.left = size;
+            this.produced = produced;
+        }
+
+        @Override
+        public int read() {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (this.left <= 0) return -1;
+
+            final int count = (int) Math.min(len, this.left);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = (byte) i;
+            }
+            this.left -= count;
+            this.produced.addAndGet(count);
+            return count;
+        }
+    }
+
+    static class StreamServiceImpl implements StreamService {
+        final AtomicLong produced = new AtomicLong();
+
+        public long count(final InputStream in) throws IOException {
+            return StreamTest.count(in);
+        }
+
+        public long countChannel(final ReadableByteChannel channel) throws IOException {
+            return StreamTest.count(Channels.newInputStream(channel));
+        }
+
+        public int ignore(final InputStream in) {
+            return 0;
+        }
+
+        public InputStream produce(final long size) {
+            return new Generator(size, this.produced);
+        }
+
+        public ReadableByteChannel produceChannel(final long size) {
+            return Channels.newChannel(new Generator(size, this.produced));
+        }
+
+        public long getProduced() {
+            return this.produced.get();
+        }
+
+        public int ping(final int x) {
+            return x + 1;
+        }
+    }
+
+    static long count(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[64 * 1024];
+        long count = 0;
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            count += read;
+        }
+        in.close();
+        return count;
+    }
+
+    static void check(final boolean condition, final String message) {
+        if (!condition) throw new IllegalStateException(message);
+        System.out.println("ok   " + message); //$NON-NLS-1$
+    }
+
+    @SuppressWarnings("boxing")
+    public static void main(final String[] args) throws Exception {
+        final boolean nio = args.length > 0 && args[0].equals("nio"); //$NON-NLS-1$
+        final Transport transport = nio ? new NioTransport() : new SocketTransport();
+        transport.setIdleTimeout(2, TimeUnit.SECONDS);
+        final int port = 55663;
+
+        final StreamServiceImpl impl = new StreamServiceImpl();
+        final CallHandler serverHandler = new CallHandler();
+        serverHandler.registerGlobal(StreamService.class, impl);
+
+        final Server server = new Server(transport);
+        server.bind(port, serverHandler);
+
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final Client client = new Client("127.0.0.1", port, new CallHandler(), new DefaultFilter(), transport); //$NON-NLS-1$
+        client.addClientListener(new IClientListener() {
+            public void disconnected() {
+                disconnected.countDown();
+            }
+        });
+        final StreamService service = client.getGlobal(StreamService.class);
+        final AtomicLong uploaded = new AtomicLong();
+
+        // Both directions, streams and channels
+        long start = System.currentTimeMillis();
+        check(service.count(new Generator(200L << 20, uploaded)) == 200L << 20, "200 MB upload"); //$NON-NLS-1$
+        System.out.printf("     in %d ms%n", System.currentTimeMillis() - start);
+        check(count(service.produce(50L << 20)) == 50L << 20, "50 MB download"); //$NON-NLS-1$
+        check(service.countChannel(Channels.newChannel(new Generator(123456, uploaded))) == 123456, "channel upload"); //$NON-NLS-1$
+        check(count(Channels.newInputStream(service.produceChannel(300000))) == 300000, "channel download"); //$NON-NLS-1$
+
+        // A reader that doesn't read holds back the sender, calls still go through
+        final long before = impl.getProduced();
+        final InputStream idle = service.produce(200L << 20);
+        idle.read(new byte[10]);
+        Thread.sleep(500);
+        final long held = impl.getProduced() - before;
+        check(held <= 1 << 20, "idle reader holds back the sender (" + held + " bytes sent)"); //$NON-NLS-1$
+        start = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            service.ping(i);
+        }
+        System.out.printf("     100 calls during an open stream in %d ms%n", System.currentTimeMillis() - start);
+
+        // Closing early stops the sender
+        idle.close();
+        Thread.sleep(300);
+        final long stopped = impl.getProduced();
+        Thread.sleep(300);
+        check(impl.getProduced() == stopped, "closing early stops the sender"); //$NON-NLS-1$
+
+        // Streams a method did not read are closed once it returns
+        uploaded.set(0);
+        service.ignore(new Generator(200L << 20, uploaded));
+        Thread.sleep(500);
+        final long ignored = uploaded.get();
+        Thread.sleep(300);
+        check(ignored <= 1 << 20 && uploaded.get() == ignored, "unread argument stream stopped (" + ignored + " bytes sent)"); //$NON-NLS-1$
+
+        // ... so the connection counts as idle again
+        check(disconnected.await(10, TimeUnit.SECONDS), "idle connection closed"); //$NON-NLS-1$
+
+        // Losing the connection fails open streams
+        final Client second = new Client("127.0.0.1", port, new CallHandler(), new DefaultFilter(), transport); //$NON-NLS-1$
+        final InputStream open = second.getGlobal(StreamService.class).produce(100L << 20);
+        open.read(new byte[10]);
+        second.close();
+        try {
+            count(open);
+            check(false, "closed connection fails open stream"); //$NON-NLS-1$
+        } catch (final IOException e) {
+            check(true, "closed connection fails open stream (" + e.getMessage() + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        server.close();
+        if (transport instanceof NioTransport) ((NioTransport) transport).close();
+    }
+}
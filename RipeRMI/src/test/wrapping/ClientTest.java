@@ -29,6 +29,8 @@ package test.wrapping;
 
 import java.awt.Dimension;
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import net.sf.lipermi.exception.LipeRMIException;
 import net.sf.lipermi.handler.CallHandler;
@@ -36,10 +38,12 @@ import net.sf.lipermi.net.Client;
 import test.wrapping.plugins.server.Callback;
 import test.wrapping.plugins.server.Input;
 import test.wrapping.plugins.server.Service;
+import test.wrapping.plugins.server.ServiceAsync;
 import test.wrapping.plugins.server.SubService;
 
 public class ClientTest {
-    public static void main(final String[] args) throws IOException, LipeRMIException {
+    public static void main(final String[] args) throws IOException, LipeRMIException,
+                                              InterruptedException, ExecutionException {
         
         final CallHandler callHandler = new CallHandler();
         final Client client = new Client("127.0.0.1", 55661, callHandler);
@@ -62,5 +66,11 @@ public class ClientTest {
         System.out.println(subService.yo());
         service.test(34);
         System.out.println("D");
+
+        final ServiceAsync serviceAsync = client.getAsyncGlobal(Service.class, ServiceAsync.class);
+        final Future<Integer> result = serviceAsync.test(35);
+        System.out.println(serviceAsync.r().get());
+        System.out.println(result.get());
+        System.out.println("E");
     }
 }